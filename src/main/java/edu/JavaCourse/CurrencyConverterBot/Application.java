@@ -1,17 +1,21 @@
 package edu.JavaCourse.CurrencyConverterBot;
 
 import edu.JavaCourse.CurrencyConverterBot.config.ApplicationConfig;
+import edu.JavaCourse.CurrencyConverterBot.controller.UpdateDecoder;
 import edu.JavaCourse.CurrencyConverterBot.controller.WebhookController;
+import edu.JavaCourse.CurrencyConverterBot.telegram.BotRegistry;
+import edu.JavaCourse.CurrencyConverterBot.telegram.LongPollingReceiver;
 import edu.JavaCourse.CurrencyConverterBot.telegram.MyBot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.server.reactive.HttpHandler;
 import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
 import org.springframework.web.reactive.function.server.RouterFunctions;
 import org.springframework.web.reactive.function.server.ServerResponse;
 import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
-import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import reactor.netty.DisposableServer;
 import reactor.netty.http.server.HttpServer;
@@ -26,33 +30,60 @@ public class Application {
         AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(ApplicationConfig.class);
         Logger logger = LoggerFactory.getLogger(Application.class);
 
-        MyBot bot = context.getBean(MyBot.class);
-        String botToken = context.getEnvironment().getProperty("bot.token");
+        BotRegistry botRegistry = context.getBean(BotRegistry.class);
+        logger.info("Serving {} bot(s) from one process: {}", botRegistry.getBots().size(),
+                botRegistry.getBots().stream().map(MyBot::getName).toList());
+
+        // Long polling mode: no public ingress needed, updates are pulled with getUpdates
+        if ("polling".equalsIgnoreCase(context.getEnvironment().getProperty("bot.mode", "webhook"))) {
+            LongPollingReceiver receiver = context.getBean(LongPollingReceiver.class);
+            try {
+                receiver.start();
+                context.registerShutdownHook();
+                receiver.awaitTermination();
+            } catch (TelegramApiException e) {
+                logger.error("Failed to start long polling: {}", e.getMessage());
+                System.exit(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
         String localtunnelSubdomain = context.getEnvironment().getProperty("localtunnel.subdomain", "mybot");
         
         // LocalTunnel URL (предполагаем, что субдомен известен)
         String localtunnelUrl = "https://" + localtunnelSubdomain + ".loca.lt";
         logger.info("Using LocalTunnel URL: {}", localtunnelUrl);
 
-        // Create a SetWebhook request
-        SetWebhook setWebhook = new SetWebhook();
-        setWebhook.setUrl(localtunnelUrl + "/" + botToken);
+        // Create a SetWebhook request for every bot, they differ by the token in the path
+        for (MyBot bot : botRegistry.getBots()) {
+            SetWebhook setWebhook = new SetWebhook();
+            setWebhook.setUrl(localtunnelUrl + "/" + bot.getBotToken());
 
-        try {
-            bot.setWebhook(setWebhook);
-            logger.info("Webhook successfully set to: {}", setWebhook.getUrl());
-        } catch (TelegramApiException e) {
-            logger.error("Failed to set webhook: {}", e.getMessage());
-            System.exit(1);
+            try {
+                bot.setWebhook(setWebhook);
+                logger.info("Webhook of bot {} successfully set", bot.getName());
+            } catch (TelegramApiException e) {
+                logger.error("Failed to set webhook of bot {}: {}", bot.getName(), e.getMessage());
+                System.exit(1);
+            }
         }
 
         // Configure server
+        UpdateDecoder updateDecoder = context.getBean(UpdateDecoder.class);
         HttpHandler httpHandler = RouterFunctions.toHttpHandler(
-                RouterFunctions.route(POST("/" + botToken + "/callback/"), request ->
-                        context.getBean(WebhookController.class).handleWebhook(request.bodyToMono(Update.class))
-                                .flatMap(message -> message != null
-                                        ? ok().contentType(TEXT_PLAIN).bodyValue(message.getText())
-                                        : ok().contentType(TEXT_PLAIN).bodyValue(""))
+                RouterFunctions.route(POST("/{botToken}/callback/"), request -> {
+                            String requestToken = request.pathVariable("botToken");
+                            if (botRegistry.getByToken(requestToken) == null) {
+                                return ServerResponse.notFound().build();
+                            }
+                            return context.getBean(WebhookController.class).handleWebhook(requestToken,
+                                            DataBufferUtils.join(request.bodyToFlux(DataBuffer.class)).map(updateDecoder::decode))
+                                    .flatMap(message -> message != null
+                                            ? ok().contentType(TEXT_PLAIN).bodyValue(message.getText())
+                                            : ok().contentType(TEXT_PLAIN).bodyValue(""));
+                        }
                 ).andRoute(GET("/"), request -> ServerResponse.ok().bodyValue("Server is running"))
         );
 
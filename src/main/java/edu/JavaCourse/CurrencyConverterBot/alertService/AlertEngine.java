@@ -0,0 +1,202 @@
+package edu.JavaCourse.CurrencyConverterBot.alertService;
+
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshot;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// In-memory index of rate alerts. For every currency pair the thresholds are kept sorted in primitive arrays,
+// one list for "rate rises above" and one for "rate falls below". On a refresh only the range of thresholds
+// between the previous and the new rate is visited, so evaluation is O(log n + k) per pair with alerts.
+//
+// Hysteresis: a fired alert is disarmed and only re-armed once the rate has moved back past
+// threshold * (1 -/+ hysteresis), so a rate oscillating around the threshold doesn't flap. A move that isn't seen as
+// a crossing (the first snapshot after a restart, or the pair had no rate in the previous one) re-arms the alerts the
+// rate is already past the band of, so an alert can't stay disarmed for good because the move happened in a gap.
+public class AlertEngine {
+    public static final char ABOVE = '>';
+    public static final char BELOW = '<';
+
+    private final double hysteresis;
+    private final Map<Integer, PairAlerts> pairs = new HashMap<>();
+    // alert id -> pair key, to find an alert on removal
+    private final Map<Long, Integer> pairKeys = new HashMap<>();
+
+    public AlertEngine(double hysteresis) {
+        this.hysteresis = hysteresis;
+    }
+
+    public synchronized void add(long id, String bot, long chatId, int fromOrdinal, int toOrdinal, char direction, double threshold, boolean armed) {
+        int pairKey = fromOrdinal * Currencies.count() + toOrdinal;
+        PairAlerts pairAlerts = pairs.computeIfAbsent(pairKey, k -> new PairAlerts());
+        (direction == ABOVE ? pairAlerts.above : pairAlerts.below).insert(id, bot, chatId, threshold, armed);
+        pairKeys.put(id, pairKey);
+    }
+
+    public synchronized boolean remove(long id) {
+        Integer pairKey = pairKeys.remove(id);
+        if (pairKey == null) {
+            return false;
+        }
+        PairAlerts pairAlerts = pairs.get(pairKey);
+        if (!pairAlerts.above.remove(id)) {
+            pairAlerts.below.remove(id);
+        }
+        if (pairAlerts.above.size == 0 && pairAlerts.below.size == 0) {
+            pairs.remove(pairKey);
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return pairKeys.size();
+    }
+
+    // Collects alerts crossed between the two snapshots into 'fired' and alerts that got re-armed into 'rearmed';
+    // previous - null for the first snapshot
+    public synchronized void evaluate(RateSnapshot previous, RateSnapshot current, List<FiredAlert> fired, List<Long> rearmed) {
+        int count = Currencies.count();
+        for (Map.Entry<Integer, PairAlerts> entry : pairs.entrySet()) {
+            int fromOrdinal = entry.getKey() / count;
+            int toOrdinal = entry.getKey() % count;
+            if (!current.hasRate(fromOrdinal) || !current.hasRate(toOrdinal)) {
+                continue;
+            }
+            double newRate = current.getRate(fromOrdinal, toOrdinal);
+            ThresholdList above = entry.getValue().above;
+            ThresholdList below = entry.getValue().below;
+            if (previous == null || !previous.hasRate(fromOrdinal) || !previous.hasRate(toOrdinal)) {
+                // No crossing to see, re-arm by level: "below" alerts with threshold * (1 + h) <= rate,
+                // "above" alerts with threshold * (1 - h) >= rate
+                below.rearm(0, below.upperBound(newRate / (1 + hysteresis)), rearmed);
+                above.rearm(above.lowerBound(newRate / (1 - hysteresis)), above.size, rearmed);
+                continue;
+            }
+            double oldRate = previous.getRate(fromOrdinal, toOrdinal);
+            if (newRate == oldRate) {
+                continue;
+            }
+
+            if (newRate > oldRate) {
+                // thresholds in (oldRate, newRate] are crossed upwards
+                above.fire(above.upperBound(oldRate), above.upperBound(newRate), fromOrdinal, toOrdinal, ABOVE, newRate, fired);
+                // "below" alerts re-arm once threshold * (1 + h) is in (oldRate, newRate]
+                below.rearm(below.upperBound(oldRate / (1 + hysteresis)), below.upperBound(newRate / (1 + hysteresis)), rearmed);
+            } else {
+                // thresholds in [newRate, oldRate) are crossed downwards
+                below.fire(below.lowerBound(newRate), below.lowerBound(oldRate), fromOrdinal, toOrdinal, BELOW, newRate, fired);
+                // "above" alerts re-arm once threshold * (1 - h) is in [newRate, oldRate)
+                above.rearm(above.lowerBound(newRate / (1 - hysteresis)), above.lowerBound(oldRate / (1 - hysteresis)), rearmed);
+            }
+        }
+    }
+
+    public record FiredAlert(long id, String bot, long chatId, int fromOrdinal, int toOrdinal, char direction, double threshold, double rate) {
+    }
+
+    private static class PairAlerts {
+        private final ThresholdList above = new ThresholdList();
+        private final ThresholdList below = new ThresholdList();
+    }
+
+    private static class ThresholdList {
+        private double[] thresholds = new double[4];
+        private long[] ids = new long[4];
+        private String[] bots = new String[4];
+        private long[] chatIds = new long[4];
+        private boolean[] armed = new boolean[4];
+        private int size;
+
+        void insert(long id, String bot, long chatId, double threshold, boolean isArmed) {
+            if (size == thresholds.length) {
+                int capacity = size * 2;
+                thresholds = Arrays.copyOf(thresholds, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                bots = Arrays.copyOf(bots, capacity);
+                chatIds = Arrays.copyOf(chatIds, capacity);
+                armed = Arrays.copyOf(armed, capacity);
+            }
+            int index = upperBound(threshold);
+            int tail = size - index;
+            System.arraycopy(thresholds, index, thresholds, index + 1, tail);
+            System.arraycopy(ids, index, ids, index + 1, tail);
+            System.arraycopy(bots, index, bots, index + 1, tail);
+            System.arraycopy(chatIds, index, chatIds, index + 1, tail);
+            System.arraycopy(armed, index, armed, index + 1, tail);
+            thresholds[index] = threshold;
+            ids[index] = id;
+            bots[index] = bot;
+            chatIds[index] = chatId;
+            armed[index] = isArmed;
+            size++;
+        }
+
+        boolean remove(long id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id) {
+                    int tail = size - i - 1;
+                    System.arraycopy(thresholds, i + 1, thresholds, i, tail);
+                    System.arraycopy(ids, i + 1, ids, i, tail);
+                    System.arraycopy(bots, i + 1, bots, i, tail);
+                    System.arraycopy(chatIds, i + 1, chatIds, i, tail);
+                    bots[size - 1] = null;
+                    System.arraycopy(armed, i + 1, armed, i, tail);
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void fire(int from, int to, int fromOrdinal, int toOrdinal, char direction, double rate, List<FiredAlert> fired) {
+            for (int i = from; i < to; i++) {
+                if (armed[i]) {
+                    armed[i] = false;
+                    fired.add(new FiredAlert(ids[i], bots[i], chatIds[i], fromOrdinal, toOrdinal, direction, thresholds[i], rate));
+                }
+            }
+        }
+
+        void rearm(int from, int to, List<Long> rearmed) {
+            for (int i = from; i < to; i++) {
+                if (!armed[i]) {
+                    armed[i] = true;
+                    rearmed.add(ids[i]);
+                }
+            }
+        }
+
+        // First index with thresholds[i] >= value
+        int lowerBound(double value) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (thresholds[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        // First index with thresholds[i] > value
+        int upperBound(double value) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (thresholds[mid] <= value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
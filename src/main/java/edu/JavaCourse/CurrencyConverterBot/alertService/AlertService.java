@@ -0,0 +1,118 @@
+package edu.JavaCourse.CurrencyConverterBot.alertService;
+
+import edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateService;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshot;
+import edu.JavaCourse.CurrencyConverterBot.telegram.SendToUserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AlertService {
+    private final DatabaseService databaseService;
+    private final RateService rateService;
+    private final AlertEngine alertEngine;
+    private final Logger logger = LoggerFactory.getLogger(AlertService.class);
+
+    public AlertService(DatabaseService databaseService, RateService rateService, AlertEngine alertEngine) {
+        this.databaseService = databaseService;
+        this.rateService = rateService;
+        this.alertEngine = alertEngine;
+    }
+
+    public void loadAlerts() {
+        databaseService.loadAlerts((id, bot, chatId, fromCurrencyId, toCurrencyId, direction, threshold, armed) ->
+                alertEngine.add(id, bot.intern(), chatId, Currencies.ordinalOfDatabaseId(fromCurrencyId), Currencies.ordinalOfDatabaseId(toCurrencyId),
+                        direction, threshold, armed));
+        logger.info("Loaded {} rate alerts", alertEngine.size());
+    }
+
+    // Returns true if the condition already holds for the current rate (the alert then waits for the next crossing)
+    // bot - the bot the alert was created through, it also sends the notification
+    public boolean createAlert(String bot, String tgUsername, Long chatId, String from, String to, String direction, String thresholdS) throws SendToUserException, SQLException {
+        logger.info("Creating alert for user with tgUsername: {}, {}-{} {} {}", tgUsername, from, to, direction, thresholdS);
+
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            logger.info("FAILED(user is not logged in): Creating alert for user with tgUsername: {}", tgUsername);
+            throw new SendToUserException("You are not logged in!");
+        }
+
+        from = from.toUpperCase();
+        to = to.toUpperCase();
+        if (!databaseService.isCurrencyExists(from)) {
+            throw new SendToUserException("Currency '" + from + "' does not exist!");
+        }
+        if (!databaseService.isCurrencyExists(to)) {
+            throw new SendToUserException("Currency '" + to + "' does not exist!");
+        }
+        if (!direction.equals(">") && !direction.equals("<")) {
+            throw new SendToUserException("Condition should be '>' or '<'");
+        }
+        double threshold = Double.parseDouble(thresholdS);
+        char directionChar = direction.charAt(0);
+
+        int fromOrdinal = Currencies.ordinal(from);
+        int toOrdinal = Currencies.ordinal(to);
+        RateSnapshot snapshot = rateService.getSnapshot();
+        boolean alreadyMet = false;
+        if (snapshot.hasRate(fromOrdinal) && snapshot.hasRate(toOrdinal)) {
+            double rate = snapshot.getRate(fromOrdinal, toOrdinal);
+            alreadyMet = directionChar == AlertEngine.ABOVE ? rate > threshold : rate < threshold;
+        }
+
+        Long alertId = databaseService.createAlert(userId, chatId, Currencies.databaseId(fromOrdinal), Currencies.databaseId(toOrdinal),
+                directionChar, threshold, !alreadyMet);
+        alertEngine.add(alertId, bot, chatId, fromOrdinal, toOrdinal, directionChar, threshold, !alreadyMet);
+
+        logger.info("SUCCESS: Alert #{} created for user with tgUsername: {}", alertId, tgUsername);
+        return alreadyMet;
+    }
+
+    public List<String> getAlerts(String tgUsername) throws SendToUserException, SQLException {
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            throw new SendToUserException("You are not logged in!");
+        }
+        return databaseService.findAlertsByUserId(userId);
+    }
+
+    public void deleteAlert(String tgUsername, Long alertId) throws SendToUserException, SQLException {
+        logger.info("Deleting alert #{} for user with tgUsername: {}", alertId, tgUsername);
+
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            throw new SendToUserException("You are not logged in!");
+        }
+        if (!databaseService.deleteAlert(userId, alertId)) {
+            logger.info("FAILED(no such alert): Deleting alert #{} for user with tgUsername: {}", alertId, tgUsername);
+            throw new SendToUserException("You have no alert #" + alertId);
+        }
+        alertEngine.remove(alertId);
+    }
+
+    // Evaluates the alerts against a refresh (previous - null for the first snapshot) and persists the new armed state
+    // of the touched alerts
+    public List<AlertEngine.FiredAlert> evaluate(RateSnapshot previous, RateSnapshot current) {
+        List<AlertEngine.FiredAlert> fired = new ArrayList<>();
+        List<Long> rearmed = new ArrayList<>();
+        alertEngine.evaluate(previous, current, fired, rearmed);
+
+        if (!fired.isEmpty()) {
+            List<Long> firedIds = new ArrayList<>(fired.size());
+            for (AlertEngine.FiredAlert alert : fired) {
+                firedIds.add(alert.id());
+            }
+            databaseService.setAlertsArmed(firedIds, false);
+        }
+        if (!rearmed.isEmpty()) {
+            databaseService.setAlertsArmed(rearmed, true);
+        }
+        logger.info("Alerts evaluated for rates version {}: {} fired, {} re-armed", current.getVersion(), fired.size(), rearmed.size());
+        return fired;
+    }
+}
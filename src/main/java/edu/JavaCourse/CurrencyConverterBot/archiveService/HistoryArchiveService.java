@@ -0,0 +1,173 @@
+package edu.JavaCourse.CurrencyConverterBot.archiveService;
+
+import edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.HistoryReadRepository;
+import edu.JavaCourse.CurrencyConverterBot.exportService.CsvChunkWriter;
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Moves monthly partitions of conversion_history older than the retention window into gzip-compressed CSV files
+// and drops them from the table, so the hot table (and its indexes) only hold recent months.
+// Archived months stay readable: /history and /export merge them back in through streamArchivedHistory.
+public class HistoryArchiveService {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final DatabaseService databaseService;
+    private final HistoryReadRepository historyReadRepository;
+    private final int retentionMonths;
+    private final Path archiveDir;
+    private final long checkPeriodSeconds;
+    private final Logger logger = LoggerFactory.getLogger(HistoryArchiveService.class);
+    private ScheduledExecutorService scheduler;
+
+    public HistoryArchiveService(DatabaseService databaseService, HistoryReadRepository historyReadRepository, int retentionMonths, String archiveDir, long checkPeriodSeconds) {
+        this.databaseService = databaseService;
+        this.historyReadRepository = historyReadRepository;
+        this.retentionMonths = retentionMonths;
+        this.archiveDir = Paths.get(archiveDir);
+        this.checkPeriodSeconds = checkPeriodSeconds;
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "history-archiver"));
+        scheduler.scheduleWithFixedDelay(this::archiveExpired, 0, checkPeriodSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    // Archives every partition that is older than retentionMonths full months
+    public synchronized void archiveExpired() {
+        int cutoff = DatabaseService.partitionOf(LocalDate.now().withDayOfMonth(1).minusMonths(retentionMonths));
+        try {
+            for (int partitionMonth : databaseService.findPartitionsBefore(cutoff)) {
+                archivePartition(partitionMonth);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("FAILED: Archiving conversion history before partition {}", cutoff, e);
+        }
+    }
+
+    private void archivePartition(int partitionMonth) throws IOException {
+        if (databaseService.isPartitionArchived(partitionMonth)) {
+            // A previous run stopped between registering the archive and dropping the rows. Past months get no new
+            // rows, so the registered file already holds every row left: only the delete is repeated. Archiving
+            // them again as another part would return them twice from /history and /export
+            int deleted = databaseService.deletePartition(partitionMonth);
+            logger.info("SUCCESS: Finished archiving partition {} of conversion history: {} archived rows deleted", partitionMonth, deleted);
+            return;
+        }
+        Files.createDirectories(archiveDir);
+        Path file = archiveDir.resolve("conversion_history_" + partitionMonth + "_" + System.currentTimeMillis() + ".csv.gz");
+        Path tmp = archiveDir.resolve(file.getFileName() + ".tmp");
+
+        long[] rows = {0};
+        try (CsvChunkWriter csv = new CsvChunkWriter(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), 64 * 1024))) {
+            csv.field("user_id").field("created_at").field("from_currency_id").field("to_currency_id").field("amount").field("rate").endRow();
+            databaseService.streamPartition(partitionMonth, (userId, createdAt, fromCurrencyId, toCurrencyId, amount, rate) -> {
+                try {
+                    csv.field(Long.toString(userId))
+                            .field(createdAt.format(TIMESTAMP_FORMAT))
+                            .field(Long.toString(fromCurrencyId))
+                            .field(Long.toString(toCurrencyId))
+                            .field(amount.toPlainString())
+                            .field(rate.toPlainString())
+                            .endRow();
+                    rows[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        // The rows are only dropped once the complete file is in place and registered.
+        // Past months get no new rows, so nothing can slip in between the copy and the delete, and a crash
+        // in between is finished by the next run (see above).
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        databaseService.saveHistoryArchive(partitionMonth, file.toString(), rows[0]);
+        int deleted = databaseService.deletePartition(partitionMonth);
+        logger.info("SUCCESS: Archived partition {} of conversion history: {} rows to {} ({} deleted)", partitionMonth, rows[0], file, deleted);
+    }
+
+    // Streams the user's archived conversions of [startDate, endDate] (inclusive) in chronological order
+    public void streamArchivedHistory(Long userId, LocalDate startDate, LocalDate endDate, DatabaseService.ConversionRowHandler handler) {
+        LocalDateTime start = startDate.atStartOfDay();
+        LocalDateTime end = endDate.plusDays(1).atStartOfDay();
+        String userPrefix = userId + ",";
+        for (String filePath : historyReadRepository.findHistoryArchives(userId, DatabaseService.partitionOf(startDate), DatabaseService.partitionOf(endDate))) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(Paths.get(filePath)), 64 * 1024), StandardCharsets.US_ASCII))) {
+                reader.readLine(); // header
+                boolean seen = false;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.startsWith(userPrefix)) {
+                        // Files are ordered by user, so the user's rows are contiguous
+                        if (seen) {
+                            break;
+                        }
+                        continue;
+                    }
+                    seen = true;
+                    String[] fields = line.split(",");
+                    LocalDateTime createdAt = LocalDateTime.parse(fields[1], TIMESTAMP_FORMAT);
+                    if (createdAt.isBefore(start) || !createdAt.isBefore(end)) {
+                        continue;
+                    }
+                    handler.handle(createdAt, Long.parseLong(fields[2]), Long.parseLong(fields[3]), new BigDecimal(fields[4]), new BigDecimal(fields[5]));
+                }
+            } catch (NoSuchFileException e) {
+                logger.error("FAILED(archive file is missing): Reading archived history from {}", filePath);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Archived part of /history, formatted like DatabaseService.findConversionHistoryByUserIdAndPeriod
+    public List<String> findArchivedHistory(Long userId, String fromCurrency, String toCurrency, LocalDate startDate, LocalDate endDate) {
+        List<String> history = new ArrayList<>();
+        streamArchivedHistory(userId, startDate, endDate, (createdAt, fromCurrencyId, toCurrencyId, amount, rate) -> {
+            String from = Currencies.code(Currencies.ordinalOfDatabaseId(fromCurrencyId));
+            String to = Currencies.code(Currencies.ordinalOfDatabaseId(toCurrencyId));
+            if (fromCurrency != null && toCurrency != null) {
+                if (!from.equals(fromCurrency) || !to.equals(toCurrency)) {
+                    return;
+                }
+            } else if (fromCurrency != null && !from.equals(fromCurrency) && !to.equals(fromCurrency)) {
+                return;
+            }
+            history.add(DatabaseService.formatConversion(createdAt, from, to, amount.doubleValue(), rate.doubleValue()));
+        });
+        return history;
+    }
+}
@@ -1,97 +1,117 @@
 package edu.JavaCourse.CurrencyConverterBot.businessLogicService;
 
+import edu.JavaCourse.CurrencyConverterBot.archiveService.HistoryArchiveService;
 import edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.HistoryReadRepository;
 import edu.JavaCourse.CurrencyConverterBot.telegram.SendToUserException;
-import org.json.JSONObject;
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateService;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
-import org.apache.commons.codec.digest.DigestUtils; // for sha256Hex
+import org.springframework.dao.DuplicateKeyException;
 
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import java.sql.SQLException;
 
 public class BusinessLogicService {
-    private final String currenciesRateApiUrl;
     private final DatabaseService databaseService;
+    private final RateService rateService;
+    private final HistoryReadRepository historyReadRepository;
+    private final HistoryArchiveService historyArchiveService;
+    private final RecentHistory recentHistory;
+    private final PasswordHasher passwordHasher;
+    // The database writes of /signup and /login run here once the password is hashed, not on the hashing pool
+    private final Executor commandExecutor;
     private final Logger logger = LoggerFactory.getLogger(BusinessLogicService.class);
 
-    public BusinessLogicService(
-            DatabaseService databaseService,
-            @Value("${currenciesRateApiUrl}") String currenciesRateApiUrl) {
+    public static final String FAVOURITES_KEYWORD = "fav";
+    private static final int MAX_TARGETS = 20;
+
+    public BusinessLogicService(DatabaseService databaseService, RateService rateService, HistoryReadRepository historyReadRepository,
+                                HistoryArchiveService historyArchiveService, RecentHistory recentHistory, PasswordHasher passwordHasher,
+                                Executor commandExecutor) {
         this.databaseService = databaseService;
-        this.currenciesRateApiUrl = currenciesRateApiUrl;
+        this.rateService = rateService;
+        this.historyReadRepository = historyReadRepository;
+        this.historyArchiveService = historyArchiveService;
+        this.recentHistory = recentHistory;
+        this.passwordHasher = passwordHasher;
+        this.commandExecutor = commandExecutor;
     }
 
-    public void signUp(String tgUsername, String username, String password, String defaultPairFrom, String defaultPairTo) throws SendToUserException, SQLException {
-        logger.info("Signing up user with tgUsername: {}, username: {}, defaultPairFrom: {}, defaultPairTo: {}", tgUsername, username, defaultPairFrom, defaultPairTo);
-
-        // Check that tgUsername is not already logged in
-        if (databaseService.getUserIdIfLoggedIn(tgUsername) != null) {
-            logger.info("FAILED(user already logged in): Signing up user with tgUsername: {}, username: {}, defaultPairFrom: {}, defaultPairTo: {}", tgUsername, username, defaultPairFrom, defaultPairTo);
-            throw new SendToUserException("You are already logged in!");
-        }
-
-        // Check if username already exists
-        if (databaseService.getUserIdIfExists(username) != null) {
-            logger.info("FAILED(username is already exists): Signing up user with tgUsername: {}, username: {}, defaultPairFrom: {}, defaultPairTo: {}", tgUsername, username, defaultPairFrom, defaultPairTo);
-            throw new SendToUserException("This username already exists!");
-        }
-
-        // Create new user
-        String passwordHash = DigestUtils.sha256Hex(password);
-        Long defaultPairFromId = databaseService.getCurrencyIdIfExists(defaultPairFrom);
-        Long defaultPairToId = databaseService.getCurrencyIdIfExists(defaultPairTo);
-
-        databaseService.createUser(username, passwordHash, defaultPairFromId, defaultPairToId);
-
-        // Verify that user created
-        Long userId = databaseService.getUserIdIfExists(username);
-        if (userId == null) {
-            logger.error("FAILED(internalError): Signing up user with tgUsername: {}, username: {}, defaultPairFrom: {}, defaultPairTo: {}", tgUsername, username, defaultPairFrom, defaultPairTo);
-            throw new SendToUserException("Internal error: User hasn't created");
+    // bot - name of the bot the user signs up with, tgUsername and username are already in its namespace.
+    // Completes once the user is created; fails with SendToUserException if tgUsername is logged in, the username is
+    // taken or hashing is busy
+    public CompletableFuture<Void> signUp(String bot, String tgUsername, String username, String password, String defaultPairFrom, String defaultPairTo) throws SendToUserException, SQLException {
+        logger.debug("Signing up user with tgUsername: {}, username: {}, defaultPairFrom: {}, defaultPairTo: {}", tgUsername, username, defaultPairFrom, defaultPairTo);
+
+        int fromOrdinal = Currencies.ordinal(defaultPairFrom);
+        int toOrdinal = Currencies.ordinal(defaultPairTo);
+        if (fromOrdinal < 0 || toOrdinal < 0) {
+            logger.info("FAILED(currency doesn't exist): Signing up user with tgUsername: {}, username: {}, defaultPairFrom: {}, defaultPairTo: {}", tgUsername, username, defaultPairFrom, defaultPairTo);
+            throw new SendToUserException("Currency '" + (fromOrdinal < 0 ? defaultPairFrom : defaultPairTo) + "' does not exist!");
         }
 
-        // Log in this user
-        databaseService.logInUser(userId, tgUsername);
-
-        logger.info("SUCCESS: User {} successfully signed up", username);
+        // Create the user and log it in in one write, which also checks that tgUsername is not logged in;
+        // the unique username decides concurrent signups
+        return passwordHasher.hash(password).thenComposeAsync(passwordHash -> {
+            Long userId;
+            try {
+                userId = databaseService.createUserAndLogIn(bot, username, passwordHash, Currencies.databaseId(fromOrdinal), Currencies.databaseId(toOrdinal), tgUsername);
+            } catch (DuplicateKeyException e) {
+                logger.info("FAILED(username is already exists): Signing up user with tgUsername: {}, username: {}, defaultPairFrom: {}, defaultPairTo: {}", tgUsername, username, defaultPairFrom, defaultPairTo);
+                return CompletableFuture.failedFuture(new SendToUserException("This username already exists!"));
+            }
+            if (userId == null) {
+                logger.info("FAILED(user already logged in): Signing up user with tgUsername: {}, username: {}, defaultPairFrom: {}, defaultPairTo: {}", tgUsername, username, defaultPairFrom, defaultPairTo);
+                return CompletableFuture.failedFuture(new SendToUserException("You are already logged in!"));
+            }
+            logger.info("SUCCESS: User {} successfully signed up", username);
+            return CompletableFuture.completedFuture(null);
+        }, commandExecutor);
     }
 
-    public void logIn(String tgUsername, String username, String password) throws SendToUserException, SQLException {
-        logger.info("Logging in user with tgUsername: {}, username: {}", tgUsername, username);
-
-        String passwordHash = DigestUtils.sha256Hex(password);
-
-        // Check that tgUsername is not logged in
-        if (databaseService.getUserIdIfLoggedIn(tgUsername) != null) {
-            logger.info("FAILED(user already logged in): Logging in user with tgUsername: {}, username: {}", tgUsername, username);
-            throw new SendToUserException("You are already logged in!");
-        }
+    // Completes once the user is logged in; fails with SendToUserException if tgUsername is logged in, on a wrong
+    // password or if hashing is busy
+    public CompletableFuture<Void> logIn(String tgUsername, String username, String password) throws SendToUserException, SQLException {
+        logger.debug("Logging in user with tgUsername: {}, username: {}", tgUsername, username);
 
-        // Check if this user exists
-        Long userId = databaseService.getUserIdIfExists(username);
-        if (userId == null) {
+        // Id and password hash in one query
+        DatabaseService.UserCredentials credentials = databaseService.findUserCredentials(username);
+        if (credentials == null) {
             logger.info("FAILED(this account doesn't exist): Logging in user with tgUsername: {}, username: {}", tgUsername, username);
             throw new SendToUserException("This user doesn't exist! You can register this user using /sign_up command.");
         }
 
-        // Get password hash
-        String passwordHashFromDB = databaseService.getPasswordHash(userId);
-
-        if (!passwordHash.equals(passwordHashFromDB)) {
-            logger.info("FAILED(incorrect password is typed): Logging in user with tgUsername: {}, username: {}", tgUsername, username);
-            throw new SendToUserException("Incorrect password for user " + username);
-        }
-        databaseService.logInUser(userId, tgUsername);
-        logger.info("SUCCESS: User {} successfully logged in", username);
+        // The session is only created if tgUsername is not logged in and the hash the password matched is still the user's
+        return passwordHasher.verify(password, credentials.passwordHash()).thenComposeAsync(matches -> {
+            DatabaseService.LogInResult result = matches
+                    ? databaseService.logInUser(credentials.userId(), credentials.passwordHash(), tgUsername)
+                    : DatabaseService.LogInResult.PASSWORD_CHANGED;
+            if (result == DatabaseService.LogInResult.ALREADY_LOGGED_IN) {
+                logger.info("FAILED(user already logged in): Logging in user with tgUsername: {}, username: {}", tgUsername, username);
+                return CompletableFuture.failedFuture(new SendToUserException("You are already logged in!"));
+            }
+            if (result != DatabaseService.LogInResult.LOGGED_IN) {
+                logger.info("FAILED(incorrect password is typed): Logging in user with tgUsername: {}, username: {}", tgUsername, username);
+                return CompletableFuture.failedFuture(new SendToUserException("Incorrect password for user " + username));
+            }
+            logger.info("SUCCESS: User {} successfully logged in", username);
+            return CompletableFuture.completedFuture(null);
+        }, commandExecutor);
     }
 
     public void logOut(String tgUsername) throws SendToUserException, SQLException {
-        logger.info("Logging out user with tgUsername: {}", tgUsername);
+        logger.debug("Logging out user with tgUsername: {}", tgUsername);
 
         Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
         if (userId == null) {
@@ -104,7 +124,7 @@ public class BusinessLogicService {
     }
 
     public String getHomeCurrency(String tgUsername) throws SendToUserException, SQLException {
-        logger.info("Getting home currency for user with tgUsername: {}", tgUsername);
+        logger.debug("Getting home currency for user with tgUsername: {}", tgUsername);
 
         Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
         if (userId == null) {
@@ -112,23 +132,23 @@ public class BusinessLogicService {
             throw new SendToUserException("You are not logged in!");
         }
 
-        logger.info("SUCCESS: Getting home currency for user with tgUsername: {}", tgUsername);
+        logger.debug("SUCCESS: Getting home currency for user with tgUsername: {}", tgUsername);
         return databaseService.getHomeCurrency(userId);
     }
 
     public String getDefaultToCurrency(String tgUsername) throws SendToUserException, SQLException {
-        logger.info("Getting default 'to' currency for user with tgUsername: {}", tgUsername);
+        logger.debug("Getting default 'to' currency for user with tgUsername: {}", tgUsername);
         Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
         if (userId == null) {
             logger.info("FAILED(user is not logged in): Getting default 'to' currency for user with tgUsername: {}", tgUsername);
             throw new SendToUserException("You are not logged in!");
         }
-        logger.info("SUCCESS: Getting default 'to' currency for user with tgUsername: {}", tgUsername);
+        logger.debug("SUCCESS: Getting default 'to' currency for user with tgUsername: {}", tgUsername);
         return databaseService.getDefaultToCurrency(userId);
     }
 
     public String getDefaultPair(String tgUsername) throws SendToUserException, SQLException {
-        logger.info("Getting default currency pair for user with tgUsername: {}", tgUsername);
+        logger.debug("Getting default currency pair for user with tgUsername: {}", tgUsername);
 
         Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
         if (userId == null) {
@@ -136,12 +156,12 @@ public class BusinessLogicService {
             throw new SendToUserException("You are not logged in!");
         }
 
-        logger.info("SUCCESS: Getting default currency pair for user with tgUsername: {}", tgUsername);
+        logger.debug("SUCCESS: Getting default currency pair for user with tgUsername: {}", tgUsername);
         return databaseService.getDefaultPair(userId);
     }
 
     public void chHomeCurrency(String tgUsername, String currency) throws SendToUserException, SQLException {
-        logger.info("Changing home currency for user with tgUsername: {} to {}", tgUsername, currency);
+        logger.debug("Changing home currency for user with tgUsername: {} to {}", tgUsername, currency);
 
         Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
         if (userId == null) {
@@ -165,7 +185,7 @@ public class BusinessLogicService {
     }
 
     public void chDefaultPair(String tgUsername, String from, String to) throws SendToUserException, SQLException {
-        logger.info("Changing default currency pair for user with tgUsername: {} to {}-{}", tgUsername, from, to);
+        logger.debug("Changing default currency pair for user with tgUsername: {} to {}-{}", tgUsername, from, to);
 
         // Check that tgUsername is logged in and get userId
         Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
@@ -194,8 +214,8 @@ public class BusinessLogicService {
         logger.info("SUCCESS: Default currency pair for user with tgUsername: {} successfully changed to {}-{}", tgUsername, from, to);
     }
 
-    public String getExchangeRate(String tgUsername, String fromS, String toS, String amountS) throws SendToUserException, SQLException {
-        logger.info("Getting exchange rate for user with tgUsername: {}, from: {}, to: {}, amount: {}", tgUsername, fromS, toS, amountS);
+    public Conversion getExchangeRate(String tgUsername, String fromS, String toS, String amountS) throws SendToUserException, SQLException {
+        logger.debug("Getting exchange rate for user with tgUsername: {}, from: {}, to: {}, amount: {}", tgUsername, fromS, toS, amountS);
 
         Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
         if (userId == null) {
@@ -235,26 +255,148 @@ public class BusinessLogicService {
             throw new SendToUserException("Currency '" + to + "' does not exist!");
         }
 
-        // FOR RELEASE: (limited)
-        /*
-            String response = HttpClient.newHttpClient()
-                    .send(HttpRequest.newBuilder()
-                                    .uri(java.net.URI.create(currenciesRateApiUrl))
-                                    .build(),
-                            HttpResponse.BodyHandlers.ofString())
-                    .body();
-            JSONObject jsonObject = new JSONObject(response);
-         */
+        RateSnapshot snapshot = rateService.getSnapshot();
+        int fromOrdinal = Currencies.ordinal(from);
+        int toOrdinal = Currencies.ordinal(to);
+        if (!snapshot.hasRate(fromOrdinal) || !snapshot.hasRate(toOrdinal)) {
+            logger.info("FAILED(no rate for the pair): Getting exchange rate for user with tgUsername: {}, from: {}, to: {}, amount: {}", tgUsername, fromS, toS, amountS);
+            throw new SendToUserException("Exchange rate for " + from + "-" + to + " is not available right now");
+        }
+        Double rate = snapshot.getRate(fromOrdinal, toOrdinal);
+
+        LocalDateTime createdAt = databaseService.saveLogToConversionHistory(userId, databaseService.getCurrencyIdByName(from), databaseService.getCurrencyIdByName(to), amount, rate);
+        recentHistory.recordConversion(userId, createdAt, fromOrdinal, toOrdinal, amount, rate);
+        logger.debug("SUCCESS: Getting exchange rate for user with tgUsername: {}, from: {}, to: {}, amount: {}", tgUsername, fromS, toS, amountS);
+        return new Conversion(from, to, fromOrdinal, toOrdinal, amount, rate, snapshot.getVersion());
+    }
+
+    // Converts 'amount' of 'from' into every currency of 'targets' (comma separated, or FAVOURITES_KEYWORD)
+    // with one pass over the rate snapshot and logs all conversions with one batched insert
+    public MultiConversion getExchangeRates(String tgUsername, String fromS, String targets, String amountS) throws SendToUserException, SQLException {
+        logger.debug("Getting exchange rates for user with tgUsername: {}, from: {}, to: {}, amount: {}", tgUsername, fromS, targets, amountS);
+
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            logger.info("FAILED(user is not logged in): Getting exchange rates for user with tgUsername: {}, from: {}, to: {}, amount: {}", tgUsername, fromS, targets, amountS);
+            throw new SendToUserException("You are not logged in!");
+        }
+
+        double amount = amountS == null ? 1. : Double.parseDouble(amountS);
+        String from = fromS == null ? databaseService.getHomeCurrency(userId) : fromS.toUpperCase();
+        int fromOrdinal = Currencies.ordinal(from);
+        if (fromOrdinal < 0) {
+            logger.info("FAILED(user has inputted currency name (from) that doesn't exist): Getting exchange rates for user with tgUsername: {}, from: {}, to: {}, amount: {}", tgUsername, fromS, targets, amountS);
+            throw new SendToUserException("Currency '" + from + "' does not exist!");
+        }
+
+        List<String> toCurrencies;
+        if (targets.equalsIgnoreCase(FAVOURITES_KEYWORD)) {
+            toCurrencies = databaseService.getFavouriteCurrencies(userId);
+            if (toCurrencies.isEmpty()) {
+                throw new SendToUserException("You have no favourite currencies, set them with /chfav");
+            }
+        } else {
+            toCurrencies = parseCurrencyList(targets);
+        }
+        int[] toOrdinals = new int[toCurrencies.size()];
+        for (int i = 0; i < toOrdinals.length; i++) {
+            toOrdinals[i] = Currencies.ordinal(toCurrencies.get(i));
+            if (toOrdinals[i] < 0) {
+                logger.info("FAILED(user has inputted currency name (to) that doesn't exist): Getting exchange rates for user with tgUsername: {}, from: {}, to: {}, amount: {}", tgUsername, fromS, targets, amountS);
+                throw new SendToUserException("Currency '" + toCurrencies.get(i) + "' does not exist!");
+            }
+        }
+
+        RateSnapshot snapshot = rateService.getSnapshot();
+        if (!snapshot.hasRate(fromOrdinal)) {
+            logger.info("FAILED(no rate for the currency): Getting exchange rates for user with tgUsername: {}, from: {}, to: {}, amount: {}", tgUsername, fromS, targets, amountS);
+            throw new SendToUserException("Exchange rate for " + from + " is not available right now");
+        }
+        double[] rates = new double[toOrdinals.length];
+        snapshot.getRates(fromOrdinal, toOrdinals, rates);
+
+        // Targets without a rate are reported but not logged
+        int available = 0;
+        for (double rate : rates) {
+            if (!Double.isNaN(rate)) {
+                available++;
+            }
+        }
+        long[] loggedIds = new long[available];
+        double[] loggedRates = new double[available];
+        double[] results = new double[rates.length];
+        for (int i = 0, j = 0; i < rates.length; i++) {
+            results[i] = amount * rates[i];
+            if (!Double.isNaN(rates[i])) {
+                loggedIds[j] = Currencies.databaseId(toOrdinals[i]);
+                loggedRates[j++] = rates[i];
+            }
+        }
+        if (available > 0) {
+            LocalDateTime createdAt = databaseService.saveLogsToConversionHistory(userId, Currencies.databaseId(fromOrdinal), loggedIds, amount, loggedRates);
+            recentHistory.recordConversions(userId, createdAt, fromOrdinal, toOrdinals, amount, rates);
+        }
 
-        // Fetch exchange rate from API (or use a mock response for demonstration purposes)
-        JSONObject jsonObject = new JSONObject("{\"valid\":true,\"updated\":1716386402,\"base\":\"USD\",\"rates\":{\"AED\":3.673,\"AFN\":71.9014,\"ALL\":92.64645,\"AMD\":388.37,\"ANG\":1.803234,\"AOA\":850.5,\"ARS\":889.7541,\"AUD\":1.503127,\"AWG\":1.8,\"AZN\":1.7,\"BAM\":1.805659,\"BBD\":2.020191,\"BCH\":0.002007064,\"BDT\":117.2121,\"BGN\":1.8048,\"BHD\":0.3768049,\"BIF\":2872.046,\"BMD\":1,\"BND\":1.349398,\"BOB\":6.914157,\"BRL\":5.1465,\"BSD\":1.000586,\"BTC\":0.00001438353,\"BTG\":0.027824923,\"BWP\":13.52075,\"BZD\":2.016821,\"CAD\":1.36683,\"CDF\":2802,\"CHF\":0.91353,\"CLP\":896.15,\"CNH\":7.251865,\"CNY\":7.2025,\"COP\":3821.98,\"CRC\":513.0382,\"CUC\":1,\"CUP\":24.01329,\"CVE\":101.7998,\"CZK\":22.8157,\"DASH\":0.0325,\"DJF\":178.1446,\"DKK\":6.8863,\"DOP\":58.71763,\"DZD\":134.404,\"EGP\":46.74993,\"EOS\":1.179532,\"ETB\":57.48398,\"ETH\":0.0002718048,\"EUR\":0.92288,\"FJD\":2.261,\"GBP\":0.78485,\"GEL\":2.73,\"GHS\":14.50874,\"GIP\":0.78485,\"GMD\":67.775,\"GNF\":8601.644,\"GTQ\":7.774439,\"GYD\":209.331,\"HKD\":7.80635,\"HNL\":24.72788,\"HRK\":6.8253273,\"HTG\":133.3241,\"HUF\":357.438,\"IDR\":16032.9,\"ILS\":3.6779,\"INR\":83.26845,\"IQD\":1310.714,\"IRR\":42075,\"ISK\":138.51,\"JMD\":156.1003,\"JOD\":0.7089,\"JPY\":156.421,\"KES\":132,\"KGS\":88.021,\"KHR\":4076.998,\"KMF\":453.75,\"KRW\":1366.455,\"KWD\":0.30692,\"KYD\":0.8338565,\"KZT\":443.0073,\"LAK\":21373.05,\"LBP\":89601.44,\"LKR\":300.1062,\"LRD\":193.55,\"LSL\":18.09,\"LTC\":0.0116117,\"LYD\":4.842358,\"MAD\":9.906938,\"MDL\":17.6798,\"MKD\":56.84827,\"MMK\":2101.167,\"MOP\":8.044887,\"MUR\":46.16,\"MVR\":15.46,\"MWK\":1734.823,\"MXN\":16.6507,\"MYR\":4.6925,\"MZN\":63.5,\"NAD\":18.09,\"NGN\":1443.9,\"NIO\":36.82726,\"NOK\":10.67478,\"NPR\":133.2881,\"NZD\":1.634475,\"OMR\":0.3848351,\"PAB\":1.000609,\"PEN\":3.736181,\"PGK\":3.888658,\"PHP\":58.0815,\"PKR\":278.5074,\"PLN\":3.938657,\"PYG\":7528.043,\"QAR\":3.6415,\"RON\":4.5915,\"RSD\":108.106,\"RUB\":90.33,\"RWF\":1315.687,\"SAR\":3.750433,\"SBD\":8.511255,\"SCR\":13.73689,\"SDG\":601,\"SEK\":10.72004,\"SGD\":1.349045,\"SLL\":19750,\"SOS\":571,\"SRD\":32.3565,\"SVC\":8.754899,\"SZL\":18.19113,\"THB\":36.391,\"TJS\":10.79097,\"TMT\":3.51,\"TND\":3.1125,\"TOP\":2.36205,\"TRY\":32.18232,\"TTD\":6.790443,\"TWD\":32.276,\"TZS\":2595,\"UAH\":39.8099,\"UGX\":3813.823,\"USD\":1,\"UYU\":38.44343,\"UZS\":12715.69,\"VND\":25465,\"XAF\":605.6013,\"XAG\":0.031598971137499765,\"XAU\":0.0004146654738123203,\"XCD\":2.70255,\"XLM\":9.012988,\"XOF\":605.5985,\"XRP\":1.886632,\"YER\":249.9,\"ZAR\":18.16636,\"ZMW\":26.08989}}");
+        logger.debug("SUCCESS: Getting exchange rates for user with tgUsername: {}, from: {}, to: {}, amount: {}", tgUsername, fromS, targets, amountS);
+        return new MultiConversion(from, amount, toCurrencies, results);
+    }
 
-        JSONObject ratesObject = jsonObject.getJSONObject("rates");
-        Double rate = ratesObject.getDouble(to) / ratesObject.getDouble(from);
+    public List<String> getFavouriteCurrencies(String tgUsername) throws SendToUserException, SQLException {
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            throw new SendToUserException("You are not logged in!");
+        }
+        return databaseService.getFavouriteCurrencies(userId);
+    }
+
+    public void chFavouriteCurrencies(String tgUsername, String currencies) throws SendToUserException, SQLException {
+        logger.debug("Changing favourite currencies for user with tgUsername: {} to {}", tgUsername, currencies);
 
-        databaseService.saveLogToConversionHistory(userId, databaseService.getCurrencyIdByName(from), databaseService.getCurrencyIdByName(to), amount, rate);
-        logger.info("SUCCESS: Getting exchange rate for user with tgUsername: {}, from: {}, to: {}, amount: {}", tgUsername, fromS, toS, amountS);
-        return String.format(Locale.US, "%.2f", amount * rate);
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            logger.info("FAILED(user is not logged in): Changing favourite currencies for user with tgUsername: {} to {}", tgUsername, currencies);
+            throw new SendToUserException("You are not logged in!");
+        }
+
+        List<Long> currencyIds = new ArrayList<>();
+        for (String currency : parseCurrencyList(currencies)) {
+            int ordinal = Currencies.ordinal(currency);
+            if (ordinal < 0) {
+                logger.info("FAILED(user has inputted currency name that doesn't exist): Changing favourite currencies for user with tgUsername: {} to {}", tgUsername, currencies);
+                throw new SendToUserException("Currency '" + currency + "' does not exist!");
+            }
+            currencyIds.add(Currencies.databaseId(ordinal));
+        }
+        databaseService.changeFavouriteCurrencies(userId, currencyIds);
+
+        logger.info("SUCCESS: Favourite currencies for user with tgUsername: {} successfully changed to {}", tgUsername, currencies);
+    }
+
+    // Upper-cased codes of a comma separated list, duplicates dropped
+    private static List<String> parseCurrencyList(String currencies) throws SendToUserException {
+        Set<String> codes = new LinkedHashSet<>();
+        for (String code : currencies.split(",")) {
+            if (!code.isEmpty()) {
+                codes.add(code.toUpperCase());
+            }
+        }
+        if (codes.isEmpty()) {
+            throw new SendToUserException("No currencies given");
+        }
+        if (codes.size() > MAX_TARGETS) {
+            throw new SendToUserException("At most " + MAX_TARGETS + " currencies at a time");
+        }
+        return new ArrayList<>(codes);
+    }
+
+    // Warning appended to conversion replies while the rate providers are down and old rates are in use
+    public String getStaleRatesNote() {
+        if (!rateService.isStale()) {
+            return "";
+        }
+        String updated = LocalDateTime.ofInstant(Instant.ofEpochSecond(rateService.getSnapshot().getUpdated()), ZoneId.systemDefault())
+                .format(DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm"));
+        return "\n(rates may be outdated, last update: " + updated + ")";
     }
 
     public void saveLogToConversionHistory(Long userId, Long fromCurrencyId, Long toCurrencyId, Double amount, Double rate) throws SQLException {
@@ -262,7 +404,7 @@ public class BusinessLogicService {
     }
 
     public String getHistory(String tgUsername, String dateFrom, String dateTo, String curFrom, String curTo) throws SendToUserException, IllegalArgumentException, SQLException {
-        logger.info("Getting conversion history for user with tgUsername: {}, dateFrom: {}, dateTo: {}, curFrom: {}, curTo: {}", tgUsername, dateFrom, dateTo, curFrom, curTo);
+        logger.debug("Getting conversion history for user with tgUsername: {}, dateFrom: {}, dateTo: {}, curFrom: {}, curTo: {}", tgUsername, dateFrom, dateTo, curFrom, curTo);
 
         Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
         if (userId == null) {
@@ -314,7 +456,7 @@ public class BusinessLogicService {
                 for (String conversionHistory : history) {
                     sb.append(conversionHistory).append("\n");
                 }
-                logger.info("SUCCESS: Getting conversion history for user with tgUsername: {}, dateFrom: {}, dateTo: {}, curFrom: {}, curTo: {}", tgUsername, dateFrom, dateTo, curFrom, curTo);
+                logger.debug("SUCCESS: Getting conversion history for user with tgUsername: {}, dateFrom: {}, dateTo: {}, curFrom: {}, curTo: {}", tgUsername, dateFrom, dateTo, curFrom, curTo);
                 return sb.toString();
             }
         } else {
@@ -324,6 +466,21 @@ public class BusinessLogicService {
     }
 
     private List<String> findConversionHistoryByUserIdAndPeriod(Long userId, String fromCurrency, String toCurrency, LocalDate startDate, LocalDate endDate) throws SQLException {
-        return databaseService.findConversionHistoryByUserIdAndPeriod(userId, fromCurrency, toCurrency, startDate, endDate);
+        // Today's and other ranges within the current month usually come from memory
+        List<String> recent = recentHistory.find(userId, fromCurrency, toCurrency, startDate, endDate);
+        if (recent != null) {
+            return recent;
+        }
+        // Archived months come first, they are all older than the ones still in the table
+        List<String> history = historyArchiveService.findArchivedHistory(userId, fromCurrency, toCurrency, startDate, endDate);
+        history.addAll(historyReadRepository.findConversionHistoryByUserIdAndPeriod(userId, fromCurrency, toCurrency, startDate, endDate));
+        return history;
+    }
+
+    // ratesVersion - version of the rate snapshot the rate was taken from
+    public record Conversion(String from, String to, int fromOrdinal, int toOrdinal, double amount, double rate, long ratesVersion) {
+    }
+
+    public record MultiConversion(String from, double amount, List<String> targets, double[] results) {
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,73 @@
+package edu.JavaCourse.CurrencyConverterBot.businessLogicService;
+
+import edu.JavaCourse.CurrencyConverterBot.telegram.SendToUserException;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Password hashing for /signup and /login on its own bounded pool. A burst of logins can only occupy 'threads'
+// threads; once queueSize of them are waiting further ones are turned away instead of queueing behind each other.
+// Callers don't wait: they get a future and finish the command in its continuation, so the threads handling
+// commands are never held up by hashing. A hash not done within timeoutMillis fails with the busy message and is
+// skipped if it hasn't started yet.
+public class PasswordHasher {
+    private static final String BUSY_MESSAGE = "Too many logins at the moment, please try again later";
+
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+
+    public PasswordHasher(int threads, int queueSize, long timeoutMillis) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "password-hash-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public CompletableFuture<String> hash(String password) {
+        return submit(() -> DigestUtils.sha256Hex(password));
+    }
+
+    // Compares in constant time, so the time taken doesn't tell how much of a hash matched
+    public CompletableFuture<Boolean> verify(String password, String passwordHash) {
+        return submit(() -> MessageDigest.isEqual(DigestUtils.sha256Hex(password).getBytes(StandardCharsets.US_ASCII),
+                passwordHash.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    // Continuations run on the hashing thread (or on the timer thread for a timeout)
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    result.complete(task.get());
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(new IllegalStateException("Password hashing failed", e));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new SendToUserException(BUSY_MESSAGE));
+            return result;
+        }
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS)
+                .execute(() -> result.completeExceptionally(new SendToUserException(BUSY_MESSAGE)));
+        return result;
+    }
+}
@@ -0,0 +1,225 @@
+package edu.JavaCourse.CurrencyConverterBot.businessLogicService;
+
+import edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.HistoryReadRepository;
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Recent conversions of active users, so /history of today (or any range within the current month) is answered
+// from memory. Every user has a ring buffer of compact primitive records (wall-clock epoch millis, currency ordinals,
+// amount in cents and rate in 1e-8 units - the precision of conversion_history). A ring is loaded from the database
+// on the user's first such /history and then kept up to date by recordConversion; it knows since when it holds all
+// of the user's conversions, older ranges (and rings that overflowed past the start of a range) go to the database.
+// At most maxUsers rings are kept, the least recently used one is dropped first.
+//
+// A ring is published before its rows are read, conversions recorded meanwhile are buffered and added once the read
+// is done. A conversion is recorded with the created_at of its row, so one that is both read and recorded (written
+// before the read, recorded after it started) is recognised by its time and pair and kept once.
+//
+// The current month is never archived (HistoryArchiveService keeps at least the current partition), so the rows of
+// a ring are exactly the hot rows of its range.
+public class RecentHistory {
+    private static final long AMOUNT_SCALE = 100;
+    private static final double RATE_SCALE = 1e8;
+
+    private final HistoryReadRepository historyReadRepository;
+    private final int perUser;
+    private final Map<Long, Ring> rings;
+
+    public RecentHistory(HistoryReadRepository historyReadRepository, int perUser, int maxUsers) {
+        this.historyReadRepository = historyReadRepository;
+        this.perUser = perUser;
+        this.rings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Ring> eldest) {
+                return size() > maxUsers;
+            }
+        };
+    }
+
+    // Called after a conversion has been written to the database with the created_at of its row; users without a
+    // ring are skipped
+    public void recordConversion(long userId, LocalDateTime createdAt, int fromOrdinal, int toOrdinal, double amount, double rate) {
+        Ring ring = ring(userId);
+        if (ring != null) {
+            ring.record(toMillis(createdAt), fromOrdinal, toOrdinal, amount, rate);
+        }
+    }
+
+    public void recordConversions(long userId, LocalDateTime createdAt, int fromOrdinal, int[] toOrdinals, double amount, double[] rates) {
+        Ring ring = ring(userId);
+        if (ring != null) {
+            long millis = toMillis(createdAt);
+            for (int i = 0; i < toOrdinals.length; i++) {
+                if (!Double.isNaN(rates[i])) {
+                    ring.record(millis, fromOrdinal, toOrdinals[i], amount, rates[i]);
+                }
+            }
+        }
+    }
+
+    // The formatted history like HistoryReadRepository returns it, or null if the range has to be read from the database
+    public List<String> find(long userId, String fromCurrency, String toCurrency, LocalDate startDate, LocalDate endDate) {
+        LocalDate today = LocalDate.now();
+        if (startDate.isBefore(today.withDayOfMonth(1)) || endDate.isBefore(today)) {
+            return null;
+        }
+        Ring ring = ring(userId);
+        if (ring == null) {
+            ring = load(userId, startDate);
+        }
+        return ring.find(fromCurrency, toCurrency, toMillis(startDate.atStartOfDay()), toMillis(endDate.plusDays(1).atStartOfDay()));
+    }
+
+    // Reads the user's rows since 'since' into a new ring (one query, on the user's first /history). The ring is
+    // published first so recordConversion buffers into it; a /history of the same user meanwhile gets the loading
+    // ring, which answers nothing, and goes to the database.
+    private Ring load(long userId, LocalDate since) {
+        Ring ring = new Ring(perUser, toMillis(since.atStartOfDay()));
+        synchronized (rings) {
+            Ring existing = rings.putIfAbsent(userId, ring);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        try {
+            historyReadRepository.streamConversionHistory(userId, since, LocalDate.now(), (createdAt, fromCurrencyId, toCurrencyId, amount, rate) ->
+                    ring.load(toMillis(createdAt), Currencies.ordinalOfDatabaseId(fromCurrencyId), Currencies.ordinalOfDatabaseId(toCurrencyId),
+                            amount.doubleValue(), rate.doubleValue()));
+        } catch (RuntimeException e) {
+            synchronized (rings) {
+                rings.remove(userId, ring);
+            }
+            throw e;
+        }
+        ring.loaded();
+        return ring;
+    }
+
+    private Ring ring(long userId) {
+        synchronized (rings) {
+            return rings.get(userId);
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private record Recorded(long millis, int fromOrdinal, int toOrdinal, double amount, double rate) {
+    }
+
+    private static class Ring {
+        private final long[] createdAt;
+        private final short[] fromOrdinals;
+        private final short[] toOrdinals;
+        private final long[] amounts;
+        private final long[] rates;
+        // Index of the oldest record and number of records
+        private int head;
+        private int size;
+        // All conversions of the user at or after this millisecond are in the ring
+        private long completeSince;
+        // Conversions recorded while the rows are read, null once they are read
+        private List<Recorded> pending = new ArrayList<>();
+        // Newest created_at read from the database; a recorded conversion not newer may already be in the ring
+        private long loadedUpTo = Long.MIN_VALUE;
+
+        Ring(int capacity, long completeSince) {
+            createdAt = new long[capacity];
+            fromOrdinals = new short[capacity];
+            toOrdinals = new short[capacity];
+            amounts = new long[capacity];
+            rates = new long[capacity];
+            this.completeSince = completeSince;
+        }
+
+        synchronized void load(long millis, int fromOrdinal, int toOrdinal, double amount, double rate) {
+            loadedUpTo = Math.max(loadedUpTo, millis);
+            add(millis, fromOrdinal, toOrdinal, amount, rate);
+        }
+
+        // Adds what was recorded during the read and makes the ring answer
+        synchronized void loaded() {
+            List<Recorded> recorded = pending;
+            pending = null;
+            for (Recorded conversion : recorded) {
+                record(conversion.millis(), conversion.fromOrdinal(), conversion.toOrdinal(), conversion.amount(), conversion.rate());
+            }
+        }
+
+        synchronized void record(long millis, int fromOrdinal, int toOrdinal, double amount, double rate) {
+            if (pending != null) {
+                pending.add(new Recorded(millis, fromOrdinal, toOrdinal, amount, rate));
+            } else if (millis > loadedUpTo || !contains(millis, fromOrdinal, toOrdinal)) {
+                add(millis, fromOrdinal, toOrdinal, amount, rate);
+            }
+        }
+
+        // One /rate logs a pair once, so time and pair identify a conversion
+        private boolean contains(long millis, int fromOrdinal, int toOrdinal) {
+            for (int n = 0; n < size; n++) {
+                int i = (head + n) % createdAt.length;
+                if (createdAt[i] == millis && fromOrdinals[i] == fromOrdinal && toOrdinals[i] == toOrdinal) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void add(long millis, int fromOrdinal, int toOrdinal, double amount, double rate) {
+            int capacity = createdAt.length;
+            int index;
+            if (size == capacity) {
+                // The oldest record is overwritten, the ring is complete only after it from now on
+                completeSince = Math.max(completeSince, createdAt[head] + 1);
+                index = head;
+                head = (head + 1) % capacity;
+            } else {
+                index = (head + size) % capacity;
+                size++;
+            }
+            createdAt[index] = millis;
+            fromOrdinals[index] = (short) fromOrdinal;
+            toOrdinals[index] = (short) toOrdinal;
+            amounts[index] = Math.round(amount * AMOUNT_SCALE);
+            rates[index] = Math.round(rate * RATE_SCALE);
+        }
+
+        // Rows of [start, end) in insertion order, same filters as the SQL query; null if the ring isn't complete there
+        // or still loading
+        synchronized List<String> find(String fromCurrency, String toCurrency, long start, long end) {
+            if (pending != null || start < completeSince) {
+                return null;
+            }
+            int fromOrdinal = fromCurrency == null ? -1 : Currencies.ordinal(fromCurrency);
+            int toOrdinal = toCurrency == null ? -1 : Currencies.ordinal(toCurrency);
+            List<String> history = new ArrayList<>();
+            for (int n = 0; n < size; n++) {
+                int i = (head + n) % createdAt.length;
+                if (createdAt[i] < start || createdAt[i] >= end) {
+                    continue;
+                }
+                if (fromCurrency != null && toCurrency != null) {
+                    if (fromOrdinals[i] != fromOrdinal || toOrdinals[i] != toOrdinal) {
+                        continue;
+                    }
+                } else if (fromCurrency != null && fromOrdinals[i] != fromOrdinal && toOrdinals[i] != fromOrdinal) {
+                    continue;
+                }
+                history.add(DatabaseService.formatConversion(LocalDateTime.ofInstant(Instant.ofEpochMilli(createdAt[i]), ZoneOffset.UTC),
+                        Currencies.code(fromOrdinals[i]), Currencies.code(toOrdinals[i]),
+                        (double) amounts[i] / AMOUNT_SCALE, rates[i] / RATE_SCALE));
+            }
+            return history;
+        }
+    }
+}
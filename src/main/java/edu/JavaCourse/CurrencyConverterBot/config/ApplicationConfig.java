@@ -1,22 +1,69 @@
 package edu.JavaCourse.CurrencyConverterBot.config;
 
+import edu.JavaCourse.CurrencyConverterBot.alertService.AlertEngine;
+import edu.JavaCourse.CurrencyConverterBot.alertService.AlertService;
+import edu.JavaCourse.CurrencyConverterBot.archiveService.HistoryArchiveService;
 import edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.EmbeddedDatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.HistoryReadRepository;
+import edu.JavaCourse.CurrencyConverterBot.dbService.HistoryReplicator;
+import edu.JavaCourse.CurrencyConverterBot.dbService.HistoryShardRebalancer;
+import edu.JavaCourse.CurrencyConverterBot.dbService.HistoryShards;
+import edu.JavaCourse.CurrencyConverterBot.dbService.JdbcDatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.JdbcHistoryReadRepository;
+import edu.JavaCourse.CurrencyConverterBot.dbService.ReadReplicaRouter;
+import edu.JavaCourse.CurrencyConverterBot.digestService.DigestService;
+import edu.JavaCourse.CurrencyConverterBot.exportService.ExportService;
+import edu.JavaCourse.CurrencyConverterBot.portfolioService.PortfolioEngine;
+import edu.JavaCourse.CurrencyConverterBot.portfolioService.PortfolioService;
+import edu.JavaCourse.CurrencyConverterBot.rateService.HedgedRateFetcher;
+import edu.JavaCourse.CurrencyConverterBot.rateService.HttpRateProvider;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateProvider;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateService;
+import edu.JavaCourse.CurrencyConverterBot.telegram.AlertNotifier;
+import edu.JavaCourse.CurrencyConverterBot.telegram.BotRegistry;
+import edu.JavaCourse.CurrencyConverterBot.telegram.DigestDispatcher;
+import edu.JavaCourse.CurrencyConverterBot.telegram.InlineQueryHandler;
+import edu.JavaCourse.CurrencyConverterBot.telegram.LongPollingReceiver;
 import edu.JavaCourse.CurrencyConverterBot.telegram.MyBot;
+import edu.JavaCourse.CurrencyConverterBot.telegram.RateLimitedSender;
+import edu.JavaCourse.CurrencyConverterBot.telegram.ReplyCache;
+import edu.JavaCourse.CurrencyConverterBot.tracing.Tracer;
+import edu.JavaCourse.CurrencyConverterBot.controller.UpdateDecoder;
 import edu.JavaCourse.CurrencyConverterBot.controller.WebhookController;
 import edu.JavaCourse.CurrencyConverterBot.businessLogicService.BusinessLogicService;
+import edu.JavaCourse.CurrencyConverterBot.businessLogicService.PasswordHasher;
+import edu.JavaCourse.CurrencyConverterBot.businessLogicService.RecentHistory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
 import org.springframework.core.io.ResourceLoader;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
 import javax.sql.DataSource;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Configuration
 @PropertySource("classpath:application.properties")
@@ -45,6 +92,11 @@ public class ApplicationConfig {
         return new JdbcTemplate(dataSource);
     }
 
+    @Bean
+    public TransactionTemplate transactionTemplate(DataSource dataSource) {
+        return new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+    }
+
     @Bean
     public DatabaseConfig databaseConfig(ResourceLoader resourceLoader) {
         return new DatabaseConfig(dataSourceUrl, dataSourceUsername, dataSourcePassword, resourceLoader);
@@ -55,23 +107,284 @@ public class ApplicationConfig {
         return new TelegramBotsApi(DefaultBotSession.class);
     }
 
+    // trace.sampleRate.<command> (the command without '/', or inline, text, unknown, other) overrides trace.sampleRate
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public Tracer tracer(Environment environment, @Value("${trace.slowMs:500}") long slowMillis,
+                         @Value("${trace.sampleRate:0.01}") double sampleRate,
+                         @Value("${trace.reportPeriod:60}") long reportPeriodSeconds) {
+        return new Tracer(slowMillis, command -> environment.getProperty(
+                "trace.sampleRate." + (command.startsWith("/") ? command.substring(1) : command), Double.class, sampleRate), reportPeriodSeconds);
+    }
+
+    // db.engine=embedded keeps all data in-process (write-ahead log + snapshots in db.embedded.dir) instead of H2
+    @Bean
+    public DatabaseService databaseService(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, ReadReplicaRouter readReplicaRouter,
+                                           HistoryShards historyShards, Tracer tracer,
+                                           @Value("${db.engine:jdbc}") String engine,
+                                           ObjectProvider<EmbeddedDatabaseService> embeddedDatabaseService) {
+        if (engine.equals("embedded")) {
+            return tracer.traced(embeddedDatabaseService.getObject(), "db.");
+        }
+        return tracer.traced(new JdbcDatabaseService(jdbcTemplate, transactionTemplate, readReplicaRouter, historyShards), "db.");
+    }
+
+    @Bean(initMethod = "open", destroyMethod = "close")
+    @Lazy
+    public EmbeddedDatabaseService embeddedDatabaseService(@Value("${db.embedded.dir:data}") String dir,
+                                                           @Value("${db.embedded.snapshotPeriod:300}") long snapshotPeriodSeconds,
+                                                           @Value("${db.embedded.fsync:false}") boolean fsync) {
+        return new EmbeddedDatabaseService(dir, snapshotPeriodSeconds, fsync);
+    }
+
+    // History reads go to spring.datasource.read.url when it is set, otherwise to the primary
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public ReadReplicaRouter readReplicaRouter(JdbcTemplate jdbcTemplate, ResourceLoader resourceLoader,
+                                               @Value("${spring.datasource.read.url:}") String readUrl,
+                                               @Value("${spring.datasource.read.username:${spring.datasource.username}}") String readUsername,
+                                               @Value("${spring.datasource.read.password:${spring.datasource.password}}") String readPassword,
+                                               @Value("${spring.datasource.read.maxStalenessMs:5000}") long maxStalenessMillis,
+                                               @Value("${spring.datasource.read.simulatedLagMs:-1}") long simulatedLagMillis) {
+        if (readUrl.isEmpty()) {
+            return new ReadReplicaRouter(jdbcTemplate, null, maxStalenessMillis);
+        }
+        if (simulatedLagMillis >= 0) {
+            // The simulated replica is a second local database with the same schema
+            new DatabaseConfig(readUrl, readUsername, readPassword, resourceLoader).initializeDatabase();
+        }
+        DriverManagerDataSource readDataSource = new DriverManagerDataSource();
+        readDataSource.setUrl(readUrl);
+        readDataSource.setUsername(readUsername);
+        readDataSource.setPassword(readPassword);
+        return new ReadReplicaRouter(jdbcTemplate, new JdbcTemplate(readDataSource), maxStalenessMillis);
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public HistoryReplicator historyReplicator(ReadReplicaRouter readReplicaRouter, @Value("${spring.datasource.read.simulatedLagMs:-1}") long simulatedLagMillis) {
+        return new HistoryReplicator(readReplicaRouter.getPrimary(), readReplicaRouter.getReplica(), simulatedLagMillis);
+    }
+
+    // history.shards splits conversion_history over the listed databases by user (default: everything on the primary).
+    // history.shards.previous is the layout to move the rows from when the list changes, see HistoryShardRebalancer
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public HistoryShards historyShards(JdbcTemplate jdbcTemplate, ResourceLoader resourceLoader,
+                                       @Value("${history.shards:}") String[] shardUrls,
+                                       @Value("${history.shards.previous:}") String[] previousShardUrls) {
+        List<HistoryShards.Shard> shards = historyShardsOf(shardUrls.length == 0 ? new String[]{dataSourceUrl} : shardUrls, jdbcTemplate, resourceLoader);
+        HistoryShards historyShards = new HistoryShards(dataSourceUrl, shards);
+        if (previousShardUrls.length > 0) {
+            new HistoryShardRebalancer(historyShardsOf(previousShardUrls, jdbcTemplate, resourceLoader), historyShards).rebalance();
+        }
+        historyShards.copyArchivesFrom(jdbcTemplate);
+        return historyShards;
+    }
+
+    // Shards other than the primary are local databases with the same schema and user as the primary
+    private List<HistoryShards.Shard> historyShardsOf(String[] urls, JdbcTemplate primary, ResourceLoader resourceLoader) {
+        List<HistoryShards.Shard> shards = new ArrayList<>(urls.length);
+        for (String url : urls) {
+            if (url.equals(dataSourceUrl)) {
+                shards.add(new HistoryShards.Shard(url, primary));
+                continue;
+            }
+            new DatabaseConfig(url, dataSourceUsername, dataSourcePassword, resourceLoader).initializeDatabase();
+            DriverManagerDataSource shardDataSource = new DriverManagerDataSource();
+            shardDataSource.setUrl(url);
+            shardDataSource.setUsername(dataSourceUsername);
+            shardDataSource.setPassword(dataSourcePassword);
+            shards.add(new HistoryShards.Shard(url, new JdbcTemplate(shardDataSource)));
+        }
+        return shards;
+    }
+
     @Bean
-    public DatabaseService databaseService(JdbcTemplate jdbcTemplate) {
-        return new DatabaseService(jdbcTemplate);
+    public HistoryReadRepository historyReadRepository(ReadReplicaRouter readReplicaRouter, HistoryShards historyShards, Tracer tracer,
+                                                       @Value("${db.engine:jdbc}") String engine,
+                                                       ObjectProvider<EmbeddedDatabaseService> embeddedDatabaseService) {
+        if (engine.equals("embedded")) {
+            return tracer.traced(embeddedDatabaseService.getObject(), "db.read.");
+        }
+        return tracer.traced(new JdbcHistoryReadRepository(readReplicaRouter, historyShards), "db.read.");
     }
 
     @Bean
-    public BusinessLogicService businessLogicService(DatabaseService databaseService, @Value("${currenciesRateApiUrl}") String currenciesRateApiUrl) {
-        return new BusinessLogicService(databaseService, currenciesRateApiUrl);
+    public HedgedRateFetcher hedgedRateFetcher(@Value("${currenciesRateApiUrl}") String currenciesRateApiUrl,
+                                               @Value("${rates.providers:}") String[] fallbackProviderUrls,
+                                               @Value("${rates.hedgeDelayMs:300}") long hedgeDelayMillis,
+                                               @Value("${rates.deadlineMs:3000}") long deadlineMillis,
+                                               @Value("${rates.breaker.failureThreshold:3}") int failureThreshold,
+                                               @Value("${rates.breaker.openSeconds:60}") long openSeconds) {
+        HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(deadlineMillis)).build();
+        List<RateProvider> providers = new ArrayList<>();
+        providers.add(new HttpRateProvider("primary", currenciesRateApiUrl, httpClient, Duration.ofMillis(deadlineMillis)));
+        for (int i = 0; i < fallbackProviderUrls.length; i++) {
+            if (!fallbackProviderUrls[i].isBlank()) {
+                providers.add(new HttpRateProvider("fallback-" + (i + 1), fallbackProviderUrls[i].trim(), httpClient, Duration.ofMillis(deadlineMillis)));
+            }
+        }
+        return new HedgedRateFetcher(providers, hedgeDelayMillis, deadlineMillis, failureThreshold, openSeconds * 1000);
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public RateService rateService(HedgedRateFetcher hedgedRateFetcher,
+                                   @Value("${rates.refreshPeriod:600}") long refreshPeriodSeconds,
+                                   @Value("${rates.maxStaleness:7200}") long maxStalenessSeconds,
+                                   ResourceLoader resourceLoader) {
+        return new RateService(hedgedRateFetcher, resourceLoader, refreshPeriodSeconds, maxStalenessSeconds);
+    }
+
+    @Bean
+    public BusinessLogicService businessLogicService(DatabaseService databaseService, RateService rateService,
+                                                     HistoryReadRepository historyReadRepository, HistoryArchiveService historyArchiveService,
+                                                     RecentHistory recentHistory, PasswordHasher passwordHasher,
+                                                     @Qualifier("commandExecutor") ExecutorService commandExecutor) {
+        return new BusinessLogicService(databaseService, rateService, historyReadRepository, historyArchiveService, recentHistory,
+                passwordHasher, commandExecutor);
+    }
+
+    // Threads and waiting requests of the password hashing pool, see PasswordHasher
+    @Bean(destroyMethod = "stop")
+    public PasswordHasher passwordHasher(@Value("${auth.hashThreads:2}") int threads,
+                                         @Value("${auth.hashQueueSize:64}") int queueSize,
+                                         @Value("${auth.hashTimeoutMs:2000}") long timeoutMillis) {
+        return new PasswordHasher(threads, queueSize, timeoutMillis);
+    }
+
+    // Finishes /signup and /login once the password is hashed: the database write and the reply. Their number is
+    // bounded by auth.hashQueueSize, so the queue is not
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService commandExecutor(@Value("${bot.commandThreads:4}") int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> new Thread(r, "command-" + threadNumber.getAndIncrement()));
+    }
+
+    @Bean
+    public RecentHistory recentHistory(HistoryReadRepository historyReadRepository,
+                                       @Value("${history.recent.perUser:64}") int perUser,
+                                       @Value("${history.recent.maxUsers:10000}") int maxUsers) {
+        return new RecentHistory(historyReadRepository, perUser, maxUsers);
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public HistoryArchiveService historyArchiveService(DatabaseService databaseService, HistoryReadRepository historyReadRepository,
+                                                       @Value("${history.retentionMonths:12}") int retentionMonths,
+                                                       @Value("${history.archiveDir:archive}") String archiveDir,
+                                                       @Value("${history.archiveCheckPeriod:86400}") long checkPeriodSeconds) {
+        return new HistoryArchiveService(databaseService, historyReadRepository, retentionMonths, archiveDir, checkPeriodSeconds);
+    }
+
+    @Bean
+    public InlineQueryHandler inlineQueryHandler(RateService rateService, @Value("${inline.cacheTime:300}") int cacheTimeSeconds) {
+        InlineQueryHandler inlineQueryHandler = new InlineQueryHandler(rateService, cacheTimeSeconds);
+        rateService.addListener(inlineQueryHandler);
+        return inlineQueryHandler;
+    }
+
+    @Bean
+    public DefaultBotOptions botOptions(@Value("${bot.apiUrl:https://api.telegram.org/bot}") String botApiUrl) {
+        DefaultBotOptions botOptions = new DefaultBotOptions();
+        botOptions.setBaseUrl(botApiUrl);
+        return botOptions;
+    }
+
+    // The primary bot (bot.token) plus one bot per name in bot.extra, configured with bot.<name>.token and bot.<name>.username.
+    // All of them share the services below, so N bots cost one set of rates, caches and connections instead of N.
+    @Bean
+    public BotRegistry botRegistry(DefaultBotOptions botOptions, Environment environment,
+                                   @Value("${bot.token}") String botToken, @Value("${bot.username}") String botUsername,
+                                   @Value("${bot.extra:}") String[] extraBots,
+                                   BusinessLogicService businessLogicService, InlineQueryHandler inlineQueryHandler, AlertService alertService,
+                                   DigestService digestService, PortfolioService portfolioService, ReplyCache replyCache,
+                                   ExportService exportService, @Qualifier("exportExecutor") ExecutorService exportExecutor,
+                                   @Qualifier("commandExecutor") ExecutorService commandExecutor, Tracer tracer) {
+        BotRegistry botRegistry = new BotRegistry();
+        botRegistry.register(new MyBot(botOptions, BotRegistry.PRIMARY, botToken, botUsername, businessLogicService, inlineQueryHandler,
+                alertService, digestService, portfolioService, replyCache, exportService, exportExecutor, commandExecutor, tracer));
+        for (String name : extraBots) {
+            if (name.isBlank()) {
+                continue;
+            }
+            name = name.trim();
+            botRegistry.register(new MyBot(botOptions, name, environment.getRequiredProperty("bot." + name + ".token"),
+                    environment.getRequiredProperty("bot." + name + ".username"), businessLogicService, inlineQueryHandler,
+                    alertService, digestService, portfolioService, replyCache, exportService, exportExecutor, commandExecutor, tracer));
+        }
+        return botRegistry;
+    }
+
+    @Bean
+    public ExportService exportService(DatabaseService databaseService, HistoryReadRepository historyReadRepository,
+                                       HistoryArchiveService historyArchiveService) {
+        return new ExportService(databaseService, historyReadRepository, historyArchiveService);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService exportExecutor(@Value("${export.threads:2}") int threads, @Value("${export.queueSize:8}") int queueSize) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                r -> new Thread(r, "history-export"), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public RateLimitedSender rateLimitedSender(BotRegistry botRegistry, @Value("${sender.messagesPerSecond:25}") int messagesPerSecond) {
+        return new RateLimitedSender(botRegistry, messagesPerSecond);
+    }
+
+    @Bean
+    public AlertService alertService(DatabaseService databaseService, RateService rateService, @Value("${alerts.hysteresis:0.005}") double hysteresis) {
+        AlertService alertService = new AlertService(databaseService, rateService, new AlertEngine(hysteresis));
+        alertService.loadAlerts();
+        return alertService;
+    }
+
+    @Bean
+    public AlertNotifier alertNotifier(AlertService alertService, RateLimitedSender rateLimitedSender, RateService rateService) {
+        AlertNotifier alertNotifier = new AlertNotifier(alertService, rateLimitedSender);
+        rateService.addListener(alertNotifier);
+        return alertNotifier;
+    }
+
+    @Bean
+    public DigestService digestService(DatabaseService databaseService, RateService rateService) {
+        DigestService digestService = new DigestService(databaseService, rateService);
+        digestService.loadSubscriptions();
+        return digestService;
+    }
+
+    @Bean
+    public PortfolioService portfolioService(DatabaseService databaseService, RateService rateService) {
+        PortfolioService portfolioService = new PortfolioService(databaseService, new PortfolioEngine());
+        portfolioService.loadPortfolios();
+        rateService.addListener(portfolioService);
+        return portfolioService;
+    }
+
+    @Bean
+    public ReplyCache replyCache(@Value("${replyCache.maxEntries:10000}") int maxEntries,
+                                 @Value("${replyCache.doorkeeperWindow:50000}") int doorkeeperWindow, Tracer tracer) {
+        ReplyCache replyCache = new ReplyCache(maxEntries, doorkeeperWindow);
+        tracer.addReporter(replyCache::report);
+        return replyCache;
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public DigestDispatcher digestDispatcher(DigestService digestService, RateLimitedSender rateLimitedSender) {
+        return new DigestDispatcher(digestService, rateLimitedSender);
+    }
+
+    @Bean(destroyMethod = "stop")
+    @Lazy
+    public LongPollingReceiver longPollingReceiver(BotRegistry botRegistry,
+                                                   @Value("${bot.polling.timeout:50}") int pollTimeoutSeconds,
+                                                   @Value("${bot.polling.threads:8}") int workerThreads) {
+        return new LongPollingReceiver(botRegistry.getBots(), pollTimeoutSeconds, workerThreads);
     }
 
     @Bean
-    public MyBot myBot(@Value("${bot.token}") String botToken, @Value("${bot.username}") String botUsername, BusinessLogicService businessLogicService) {
-        return new MyBot(botToken, botUsername, businessLogicService);
+    public UpdateDecoder updateDecoder() {
+        return new UpdateDecoder();
     }
 
     @Bean
-    public WebhookController webhookController(MyBot myBot) {
-        return new WebhookController(myBot);
+    public WebhookController webhookController(BotRegistry botRegistry) {
+        return new WebhookController(botRegistry);
     }
 }
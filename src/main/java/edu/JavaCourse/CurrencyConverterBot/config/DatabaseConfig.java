@@ -1,5 +1,6 @@
 package edu.JavaCourse.CurrencyConverterBot.config;
 
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Configuration;
@@ -45,6 +46,7 @@ public class DatabaseConfig {
                         sb.append(line).append("\n");
                     }
                     statement.execute(sb.toString());
+                    widenPortfolioAmounts(connection, statement);
                     logger.info("Database schema initialized successfully");
                 } catch (IOException e) {
                     logger.error("Failed to initialize database schema", e);
@@ -53,19 +55,10 @@ public class DatabaseConfig {
                 }
 
                 // Insert initial currency data
-                String[] currencies = {"USD", "AED", "AFN", "ALL", "AMD", "ANG", "AOA", "ARS", "AUD", "AWG", "AZN", "BAM",
-                        "BBD", "BCH", "BDT", "BGN", "BHD", "BIF", "BMD", "BND", "BOB", "BRL", "BSD", "BTC", "BTG", "BWP",
-                        "BZD", "CAD", "CDF", "CHF", "CLP", "CNH", "CNY", "COP", "CRC", "CUC", "CUP", "CVE", "CZK", "DJF",
-                        "DKK", "DOP", "DZD", "EGP", "EOS", "ETB", "ETH", "EUR", "FJD", "GBP", "GEL", "GHS", "GIP", "GMD",
-                        "GNF", "GTQ", "GYD", "HKD", "HNL", "HRK", "HTG", "HUF", "IDR", "ILS", "INR", "IQD", "IRR", "ISK",
-                        "JMD", "JOD", "JPY", "KES", "KGS", "KHR", "KMF", "KRW", "KWD", "KYD", "KZT", "LAK", "LBP", "LKR",
-                        "LRD", "LSL", "LTC", "LYD", "MAD", "MDL", "MKD", "MMK", "MOP", "MUR", "MVR", "MWK", "MXN", "MYR",
-                        "MZN", "NAD", "NGN", "NIO", "NOK", "NPR", "NZD", "OMR", "PAB", "PEN", "PGK", "PHP", "PKR", "PLN",
-                        "PYG", "QAR", "RON", "RSD", "RUB", "RWF", "SAR", "SBD", "SCR", "SDG", "SEK", "SGD", "SLL", "SOS",
-                        "SRD", "SVC", "SZL", "THB", "TJS", "TMT", "TND", "TOP", "TRY", "TTD", "TWD", "TZS", "UAH", "UGX",
-                        "UYU", "UZS", "VND", "XAF", "XAG", "XAU", "XCD", "XLM", "XOF", "XRP", "YER", "ZAR", "ZMW"};
+                String[] currencies = Currencies.codes();
 
-                String insertSql = "INSERT INTO currency (name) VALUES (?)";
+                // MERGE: shard and replica databases in files keep their currencies across restarts
+                String insertSql = "MERGE INTO currency (name) KEY (name) VALUES (?)";
                 try (PreparedStatement ps = connection.prepareStatement(insertSql)) {
                     for (String currency : currencies) {
                         ps.setString(1, currency);
@@ -87,4 +80,16 @@ public class DatabaseConfig {
         }
     }
 
-}
\ No newline at end of file
+    // portfolio_holding amounts had cents only, which rounded small BTC/ETH/XAU holdings away; databases created
+    // before get the column widened once
+    private static void widenPortfolioAmounts(Connection connection, Statement statement) throws SQLException {
+        String scaleSql = "SELECT NUMERIC_SCALE FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = CURRENT_SCHEMA AND TABLE_NAME = 'PORTFOLIO_HOLDING' AND COLUMN_NAME = 'AMOUNT'";
+        try (PreparedStatement ps = connection.prepareStatement(scaleSql);
+             ResultSet rs = ps.executeQuery()) {
+            if (rs.next() && rs.getInt(1) < 8) {
+                statement.execute("ALTER TABLE portfolio_holding ALTER COLUMN amount SET DATA TYPE DECIMAL(28, 8)");
+                logger.info("portfolio_holding.amount widened to DECIMAL(28, 8)");
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package edu.JavaCourse.CurrencyConverterBot.controller;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.User;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// Decodes webhook bodies. Plain messages - the bulk of the traffic - are read with a streaming parser that
+// only keeps what MyBot uses (update id, message id, date, text, chat id/type, sender id/name/username) and
+// skips everything else, so the Update gets five small objects instead of the full graph.
+// Any other update type (inline queries, edits, callbacks, ...) is handed to full Jackson data binding at its first
+// unknown field, on the same parser. The request buffer is read once, in place; the body is never copied into an array.
+public class UpdateDecoder {
+    private final ObjectMapper objectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    public Update decode(DataBuffer buffer) {
+        try (JsonParser parser = objectMapper.createParser(buffer.asInputStream())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Update is not a JSON object");
+            }
+            Update update = new Update();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                if (!field.equals("update_id") && !field.equals("message")) {
+                    // binds the rest of the body from this field on, the same parser continues
+                    return objectMapper.readerForUpdating(update).readValue(parser);
+                }
+                parser.nextToken();
+                if (field.equals("update_id")) {
+                    update.setUpdateId(parser.getIntValue());
+                } else {
+                    update.setMessage(readMessage(parser));
+                }
+            }
+            return update;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            DataBufferUtils.release(buffer);
+        }
+    }
+
+    private static Message readMessage(JsonParser parser) throws IOException {
+        Message message = new Message();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "message_id" -> message.setMessageId(parser.getIntValue());
+                case "date" -> message.setDate(parser.getIntValue());
+                case "text" -> message.setText(parser.getText());
+                case "from" -> message.setFrom(readUser(parser));
+                case "chat" -> message.setChat(readChat(parser));
+                default -> parser.skipChildren();
+            }
+        }
+        return message;
+    }
+
+    private static User readUser(JsonParser parser) throws IOException {
+        User user = new User();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "id" -> user.setId(parser.getLongValue());
+                case "is_bot" -> user.setIsBot(parser.getBooleanValue());
+                case "first_name" -> user.setFirstName(parser.getText());
+                case "username" -> user.setUserName(parser.getText());
+                default -> parser.skipChildren();
+            }
+        }
+        return user;
+    }
+
+    private static Chat readChat(JsonParser parser) throws IOException {
+        Chat chat = new Chat();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "id" -> chat.setId(parser.getLongValue());
+                case "type" -> chat.setType(parser.getText());
+                default -> parser.skipChildren();
+            }
+        }
+        return chat;
+    }
+}
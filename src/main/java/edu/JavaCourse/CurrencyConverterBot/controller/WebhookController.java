@@ -1,7 +1,9 @@
 package edu.JavaCourse.CurrencyConverterBot.controller;
 
+import edu.JavaCourse.CurrencyConverterBot.telegram.BotRegistry;
 import edu.JavaCourse.CurrencyConverterBot.telegram.MyBot;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
@@ -13,28 +15,25 @@ import reactor.core.publisher.Mono;
 @RestController
 @PropertySource("classpath:application.properties")
 public class WebhookController {
-    private final MyBot bot;
+    private final BotRegistry botRegistry;
 
-    public WebhookController(MyBot bot) {
-        this.bot = bot;
+    public WebhookController(BotRegistry botRegistry) {
+        this.botRegistry = botRegistry;
     }
 
-    @PostMapping("/${bot.token}/callback/")
-    public Mono<SendMessage> handleWebhook(@RequestBody Mono<Update> updateMono) {
-        return updateMono.flatMap(update -> {
-            SendMessage sendMessage = bot.onWebhookUpdateReceived(update);
-            if (sendMessage != null) {
-                return Mono.fromCallable(() -> {
-                    try {
-                        bot.execute(sendMessage);
-                        return sendMessage;
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                });
-            } else {
-                return Mono.empty();
+    // Every bot's webhook is "/<its token>/callback/"; empty for an unknown token
+    @PostMapping("/{botToken}/callback/")
+    public Mono<SendMessage> handleWebhook(@PathVariable String botToken, @RequestBody Mono<Update> updateMono) {
+        MyBot bot = botRegistry.getByToken(botToken);
+        if (bot == null) {
+            return Mono.empty();
+        }
+        return updateMono.flatMap(update -> Mono.fromCallable(() -> {
+            try {
+                return bot.processUpdate(update);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
             }
-        });
+        }));
     }
 }
\ No newline at end of file
@@ -1,182 +1,145 @@
 package edu.JavaCourse.CurrencyConverterBot.dbService;
 
+import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.NoSuchElementException;
 
-import org.slf4j.Logger;
-import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.jdbc.core.JdbcTemplate;
+// Storage used by the services. Implemented by JdbcDatabaseService (H2/SQL, the default) and by
+// EmbeddedDatabaseService (in-process, write-ahead log + snapshots), selected with db.engine.
+// History range reads are not here but in HistoryReadRepository.
+public interface DatabaseService {
+    DateTimeFormatter HISTORY_DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy");
+    // Portfolio amounts are kept in units of 1e-8 (a satoshi), so small crypto and metal holdings aren't rounded away
+    long PORTFOLIO_UNITS = 100_000_000L;
 
-public class DatabaseService {
-    private Logger logger;
-    private final JdbcTemplate jdbcTemplate;
+    Long getUserIdIfLoggedIn(String tgUsername);
 
-    public DatabaseService(JdbcTemplate jdbcTemplate) {
-        this.jdbcTemplate = jdbcTemplate;
-    }
+    Long getUserIdIfExists(String username);
 
-    public Long getUserIdIfLoggedIn(String tgUsername) {
-        String sql = "SELECT user_id, is_in FROM log_in_out WHERE tg_username = ? ORDER BY time_at DESC LIMIT 1";
-        try {
-            return jdbcTemplate.queryForObject(sql, new Object[]{tgUsername}, (rs, rowNum) -> rs.getBoolean("is_in") ? rs.getLong("user_id") : null);
-        } catch (EmptyResultDataAccessException e) {
-            return null;
-        }
-    }
+    Long getCurrencyIdIfExists(String currencyStr);
 
-    public Long getUserIdIfExists(String username) {
-        String sql = "SELECT id FROM users WHERE username = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, new Object[]{username}, Long.class);
-        } catch (EmptyResultDataAccessException e) {
-            return null;
-        }
-    }
+    // Creates the user and logs tgUsername in as it, atomically; returns the new user's id, null (nothing is created)
+    // if tgUsername is already logged in. Throws DuplicateKeyException if the username is taken.
+    // bot - name of the bot the user signed up with, alerts and digests are sent through it
+    Long createUserAndLogIn(String bot, String username, String passwordHash, Long defaultPairFromId, Long defaultPairToId, String tgUsername);
 
-    public Long getCurrencyIdIfExists(String currencyStr) {
-        String sql = "SELECT id FROM currency WHERE name = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, new Object[]{currencyStr}, Long.class);
-        } catch (EmptyResultDataAccessException e) {
-            throw new NoSuchElementException("No such currency: " + currencyStr);
-        }
-    }
+    // Id and password hash of the account, null if there is no such username
+    UserCredentials findUserCredentials(String username);
 
-    public void createUser(String username, String passwordHash, Long defaultPairFromId, Long defaultPairToId) {
-        String sql = "INSERT INTO users (username, password_hash, default_pair_from_id, default_pair_to_id) VALUES (?, ?, ?, ?)";
-        jdbcTemplate.update(sql, username, passwordHash, defaultPairFromId, defaultPairToId);
-    }
+    // Logs tgUsername in as the user if it isn't logged in and passwordHash (the hash the password was verified
+    // against) is still the user's hash, as one write
+    LogInResult logInUser(Long userId, String passwordHash, String tgUsername);
 
-    public String getPasswordHash(Long userId) {
-        String sql = "SELECT password_hash FROM users WHERE id = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, new Object[]{userId}, String.class);
-        } catch (EmptyResultDataAccessException e) {
-            throw new RuntimeException("Logic error");
-        }
-    }
+    void logOutUser(Long userId, String tgUsername);
 
-    public void logInUser(Long userId, String tgUsername) {
-        String sql = "INSERT INTO log_in_out (user_id, tg_username, is_in) VALUES (?, ?, ?)";
-        jdbcTemplate.update(sql, userId, tgUsername, true);
-    }
+    String getHomeCurrency(Long userId);
+
+    String getDefaultToCurrency(Long userId);
+
+    String getDefaultPair(Long userId);
+
+    void changeHomeCurrency(Long userId, String currency);
+
+    Boolean isCurrencyExists(String currency);
+
+    void changeDefaultPair(Long userId, String from, String to);
+
+    Long getCurrencyIdByName(String name);
+
+    // Both return the created_at written, so RecentHistory can tell a conversion it records from the same row it read
+    LocalDateTime saveLogToConversionHistory(Long userId, Long fromCurrencyId, Long toCurrencyId, Double amount, Double rate);
+
+    // One batched write for the conversions of a multi-target /rate
+    LocalDateTime saveLogsToConversionHistory(Long userId, Long fromCurrencyId, long[] toCurrencyIds, Double amount, double[] rates);
+
+    // Favourite currencies in the order they were given
+    List<String> getFavouriteCurrencies(Long userId);
+
+    void changeFavouriteCurrencies(Long userId, List<Long> currencyIds);
+
+    List<Integer> findPartitionsBefore(int partitionMonth);
+
+    // Streams a whole partition ordered by user, for archiving
+    void streamPartition(int partitionMonth, PartitionRowHandler handler);
+
+    int deletePartition(int partitionMonth);
+
+    void saveHistoryArchive(int partitionMonth, String filePath, long rowCount);
+
+    // Whether an archive of the partition is registered
+    boolean isPartitionArchived(int partitionMonth);
+
+    Long createAlert(Long userId, Long chatId, Long fromCurrencyId, Long toCurrencyId, char direction, Double threshold, boolean armed);
+
+    boolean deleteAlert(Long userId, Long alertId);
+
+    List<String> findAlertsByUserId(Long userId);
+
+    // Streams all alerts row by row, without building an intermediate list
+    void loadAlerts(AlertRowHandler handler);
+
+    void setAlertsArmed(List<Long> alertIds, boolean armed);
+
+    void saveDigestSubscription(Long userId, Long chatId, String period, int atMinute, LocalDateTime nextRunAt);
+
+    boolean deleteDigestSubscription(Long userId);
+
+    String findDigestSubscription(Long userId);
+
+    void loadDigestSubscriptions(DigestRowHandler handler);
+
+    // Default pairs of the given subscribers, one row per user: (user_id, bot, chat_id, from id, to id)
+    void findDigestTargets(List<Long> userIds, DigestTargetHandler handler);
+
+    void updateDigestNextRunAt(List<Long> userIds, List<LocalDateTime> nextRunAts);
+
+    // Adds delta (negative - removes) to the user's holding of the currency, a holding that reaches 0 is deleted.
+    // The caller serializes the changes of a user
+    void addPortfolioHolding(Long userId, Long currencyId, double delta);
+
+    // Streams all portfolio holdings row by row
+    void loadPortfolioHoldings(PortfolioRowHandler handler);
 
-    public void logOutUser(Long userId, String tgUsername) {
-        String sql = "INSERT INTO log_in_out (user_id, tg_username, is_in) VALUES (?, ?, ?)";
-        jdbcTemplate.update(sql, userId, tgUsername, false);
+    static String formatConversion(LocalDateTime createdAt, String fromCurrency, String toCurrency, double amount, double rate) {
+        return String.format("%s: %s-%s amount: %.2f, rate: %.2f", createdAt.format(HISTORY_DATE_FORMAT), fromCurrency, toCurrency, amount, rate);
     }
 
-    public String getHomeCurrency(Long userId) {
-        String sql = "SELECT currency.name FROM users JOIN currency ON default_pair_from_id = currency.id WHERE users.id = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, new Object[]{userId}, String.class);
-        } catch (EmptyResultDataAccessException e) {
-            throw new RuntimeException("Error: user cannot be without default_pair_from_id, code problem");
-        }
+    // Partition key of conversion_history: yyyyMM of the date
+    static int partitionOf(LocalDate date) {
+        return date.getYear() * 100 + date.getMonthValue();
     }
 
-    public String getDefaultToCurrency(Long userId) {
-        String sql = "SELECT currency.name FROM users JOIN currency ON default_pair_to_id = currency.id WHERE users.id = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, new Object[]{userId}, String.class);
-        } catch (EmptyResultDataAccessException e) {
-            throw new RuntimeException("Error: user cannot be without default_pair_to_id, code problem");
-        }
+    record UserCredentials(long userId, String passwordHash) {
     }
 
-    public String getDefaultPair(Long userId) {
-        String sql = "SELECT c1.name AS currencyFrom, c2.name AS currencyTo " +
-                "FROM users " +
-                "JOIN currency c1 ON default_pair_from_id = c1.id " +
-                "JOIN currency c2 ON default_pair_to_id = c2.id " +
-                "WHERE users.id = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, new Object[]{userId}, (rs, rowNum) ->
-                    rs.getString("currencyFrom") + "-" + rs.getString("currencyTo"));
-        } catch (EmptyResultDataAccessException e) {
-            throw new RuntimeException("Error: user must have currency pair!");
-        }
+    // PASSWORD_CHANGED - the user's hash is no longer the one the password was verified against
+    enum LogInResult {
+        LOGGED_IN, ALREADY_LOGGED_IN, PASSWORD_CHANGED
     }
 
-    public void changeHomeCurrency(Long userId, String currency) {
-        String sql = "UPDATE users " +
-                "SET default_pair_from_id = (SELECT id FROM currency WHERE name = ?) " +
-                "WHERE id = ?";
-        jdbcTemplate.update(sql, currency, userId);
+    interface ConversionRowHandler {
+        void handle(LocalDateTime createdAt, long fromCurrencyId, long toCurrencyId, BigDecimal amount, BigDecimal rate);
     }
 
-    public Boolean isCurrencyExists(String currency) {
-        String sql = "SELECT EXISTS(SELECT 1 FROM currency WHERE name = ?)";
-        return jdbcTemplate.queryForObject(sql, new Object[]{currency}, Boolean.class);
+    interface PartitionRowHandler {
+        void handle(long userId, LocalDateTime createdAt, long fromCurrencyId, long toCurrencyId, BigDecimal amount, BigDecimal rate);
     }
 
-    public void changeDefaultPair(Long userId, String from, String to) {
-        String sql = "UPDATE users " +
-                "SET default_pair_from_id = (SELECT id FROM currency WHERE name = ?), " +
-                "    default_pair_to_id = (SELECT id FROM currency WHERE name = ?) " +
-                "WHERE id = ?";
-        jdbcTemplate.update(sql, from, to, userId);
+    interface DigestRowHandler {
+        void handle(long userId, long chatId, String period, int atMinute, LocalDateTime nextRunAt);
     }
 
-    public Long getCurrencyIdByName(String name) {
-        String sql = "SELECT id FROM currency WHERE name = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, new Object[]{name}, Long.class);
-        } catch (EmptyResultDataAccessException e) {
-            throw new NoSuchElementException("There is no currency with this name");
-        }
+    interface DigestTargetHandler {
+        void handle(long userId, String bot, long chatId, long fromCurrencyId, long toCurrencyId);
     }
 
-    public void saveLogToConversionHistory(Long userId, Long fromCurrencyId, Long toCurrencyId, Double amount, Double rate) {
-        String sql = "INSERT INTO conversion_history (user_id, from_currency_id, to_currency_id, amount, rate) VALUES (?, ?, ?, ?, ?)";
-        jdbcTemplate.update(sql, userId, fromCurrencyId, toCurrencyId, amount, rate);
+    interface PortfolioRowHandler {
+        void handle(long userId, long currencyId, double amount);
     }
 
-    public List<String> findConversionHistoryByUserIdAndPeriod(Long userId, String fromCurrency, String toCurrency, LocalDate startDate, LocalDate endDate) {
-        List<String> conversionHistories = new ArrayList<>();
-        endDate = endDate.plusDays(1); // to include the entire day
-
-        String sql = "SELECT c1.name AS currencyFrom, c2.name AS currencyTo, ch.amount, ch.rate, ch.created_at " +
-                "FROM conversion_history ch " +
-                "JOIN currency c1 ON ch.from_currency_id = c1.id " +
-                "JOIN currency c2 ON ch.to_currency_id = c2.id " +
-                "WHERE ch.user_id = ? " +
-                "AND ch.created_at BETWEEN ? AND ? ";
-
-        if (fromCurrency != null && toCurrency != null) {
-            sql += "AND c1.name = ? AND c2.name = ? ";
-        } else if (fromCurrency != null) {
-            sql += "AND (c1.name = ? OR c2.name = ?) ";
-        }
-
-        sql += "ORDER BY ch.created_at";
-
-        Object[] args = new Object[fromCurrency == null && toCurrency == null ? 3 : fromCurrency == null ? 4 : 5];
-        int index = 0;
-        args[index++] = userId;
-        args[index++] = startDate;
-        args[index++] = endDate;
-
-        if (fromCurrency != null && toCurrency != null) {
-            args[index++] = fromCurrency;
-            args[index++] = toCurrency;
-        } else if (fromCurrency != null) {
-            args[index++] = fromCurrency;
-        }
-
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd.MM.yyyy");
-        jdbcTemplate.query(sql, args, (rs) -> {
-            String fromCurrencyName = rs.getString("currencyFrom");
-            String toCurrencyName = rs.getString("currencyTo");
-            Double amount = rs.getDouble("amount");
-            Double rate = rs.getDouble("rate");
-            LocalDate createdAt = rs.getDate("created_at").toLocalDate();
-            conversionHistories.add(String.format("%s: %s-%s amount: %.2f, rate: %.2f", createdAt.format(formatter), fromCurrencyName, toCurrencyName, amount, rate));
-        });
-
-        return conversionHistories;
+    interface AlertRowHandler {
+        void handle(long id, String bot, long chatId, long fromCurrencyId, long toCurrencyId, char direction, double threshold, boolean armed);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,1214 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// In-process storage engine for single-node deployments (db.engine=embedded). All state is kept in memory:
+// users in parallel arrays indexed by id, conversion history in per-user primitive columns, the rest in small maps.
+// Every write is encoded as a record, appended to the write-ahead log and then applied by decoding that same
+// record, so replaying the log at startup goes through exactly the code the live write went through.
+// A snapshot of the whole state is written every snapshotPeriodSeconds, after which the log starts over.
+public class EmbeddedDatabaseService implements DatabaseService, HistoryReadRepository {
+    // 2 - portfolios added, 3 - portfolio amounts in 1e-8 units instead of cents; older snapshots are still read
+    private static final int SNAPSHOT_FORMAT = 3;
+    private static final long UNITS_PER_CENT = DatabaseService.PORTFOLIO_UNITS / 100;
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final String LOG_FILE = "wal.log";
+
+    // Record types of the write-ahead log
+    private static final byte CREATE_USER = 1;
+    private static final byte LOG_IN = 2;
+    private static final byte LOG_OUT = 3;
+    private static final byte CHANGE_HOME = 4;
+    private static final byte CHANGE_PAIR = 5;
+    private static final byte CONVERSIONS = 6;
+    private static final byte FAVOURITES = 7;
+    private static final byte DELETE_PARTITION = 8;
+    private static final byte SAVE_ARCHIVE = 9;
+    private static final byte CREATE_ALERT = 10;
+    private static final byte DELETE_ALERT = 11;
+    private static final byte ALERTS_ARMED = 12;
+    private static final byte SAVE_DIGEST = 13;
+    private static final byte DELETE_DIGEST = 14;
+    private static final byte DIGEST_NEXT_RUN = 15;
+    // PORTFOLIO_ADD has the delta in cents and is only replayed from older logs, PORTFOLIO_ADD_UNITS is written now
+    private static final byte PORTFOLIO_ADD = 16;
+    private static final byte SIGN_UP = 17;
+    private static final byte PORTFOLIO_ADD_UNITS = 18;
+
+    private final Path dir;
+    private final long snapshotPeriodSeconds;
+    private final boolean fsync;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final RecordBuffer record = new RecordBuffer();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final Logger logger = LoggerFactory.getLogger(EmbeddedDatabaseService.class);
+    private WriteAheadLog wal;
+    private long sequence;
+    private ScheduledExecutorService scheduler;
+
+    // Users, index = id - 1
+    private String[] usernames = new String[64];
+    private String[] bots = new String[64];
+    private String[] passwordHashes = new String[64];
+    private short[] pairFromIds = new short[64];
+    private short[] pairToIds = new short[64];
+    private int userCount;
+    private final Map<String, Integer> userIdsByName = new HashMap<>();
+    // tgUsername -> id of the user it is logged in as
+    private final Map<String, Long> sessions = new HashMap<>();
+    private final TreeMap<Long, HistoryColumns> histories = new TreeMap<>();
+    private final Map<Long, short[]> favourites = new HashMap<>();
+    private final TreeMap<Long, AlertRow> alerts = new TreeMap<>();
+    private long nextAlertId = 1;
+    private final TreeMap<Long, DigestRow> digests = new TreeMap<>();
+    private final List<ArchiveRow> archives = new ArrayList<>();
+    private final Set<Integer> archivedPartitions = new HashSet<>();
+    // user id -> currency id -> amount in cents
+    private final TreeMap<Long, TreeMap<Short, Long>> portfolios = new TreeMap<>();
+
+    public EmbeddedDatabaseService(String dir, long snapshotPeriodSeconds, boolean fsync) {
+        this.dir = Paths.get(dir);
+        this.snapshotPeriodSeconds = snapshotPeriodSeconds;
+        this.fsync = fsync;
+    }
+
+    public void open() throws IOException {
+        Files.createDirectories(dir);
+        Path snapshotFile = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile), 64 * 1024))) {
+                readSnapshot(in);
+            }
+        }
+        long snapshotSequence = sequence;
+        wal = new WriteAheadLog(dir.resolve(LOG_FILE), fsync);
+        sequence = wal.open(snapshotSequence, (recordSequence, payload) -> apply(new DataInputStream(new ByteArrayInputStream(payload))));
+        logger.info("Embedded database opened from {}: {} users, {} log records replayed", dir, userCount, sequence - snapshotSequence);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "embedded-db-snapshot"));
+        scheduler.scheduleWithFixedDelay(this::snapshotQuietly, snapshotPeriodSeconds, snapshotPeriodSeconds, TimeUnit.SECONDS);
+    }
+
+    public void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        snapshot();
+        wal.close();
+    }
+
+    // Writes the whole state to a new snapshot file and empties the log. Writes wait meanwhile.
+    // If the process dies between the two steps, the log records are skipped on replay by their sequence.
+    public void snapshot() throws IOException {
+        lock.writeLock().lock();
+        try {
+            Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+                writeSnapshot(out);
+            }
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            wal.truncate();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            logger.error("FAILED: Writing embedded database snapshot", e);
+        }
+    }
+
+    // ---------------------------------------------------------------- users and sessions
+
+    @Override
+    public Long getUserIdIfLoggedIn(String tgUsername) {
+        lock.readLock().lock();
+        try {
+            return sessions.get(tgUsername);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Long getUserIdIfExists(String username) {
+        lock.readLock().lock();
+        try {
+            Integer userId = userIdsByName.get(username);
+            return userId == null ? null : userId.longValue();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Long getCurrencyIdIfExists(String currencyStr) {
+        int ordinal = Currencies.ordinal(currencyStr);
+        if (ordinal < 0) {
+            throw new NoSuchElementException("No such currency: " + currencyStr);
+        }
+        return Currencies.databaseId(ordinal);
+    }
+
+    // One log record, so a signup is replayed whole or not at all
+    @Override
+    public Long createUserAndLogIn(String bot, String username, String passwordHash, Long defaultPairFromId, Long defaultPairToId, String tgUsername) {
+        lock.writeLock().lock();
+        try {
+            if (sessions.containsKey(tgUsername)) {
+                return null;
+            }
+            if (userIdsByName.containsKey(username)) {
+                throw new DuplicateKeyException("User " + username + " already exists");
+            }
+            return (Long) write(out -> {
+                out.writeByte(SIGN_UP);
+                out.writeUTF(bot);
+                out.writeUTF(username);
+                out.writeUTF(passwordHash);
+                out.writeShort(defaultPairFromId.intValue());
+                out.writeShort(defaultPairToId.intValue());
+                out.writeUTF(tgUsername);
+            });
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public UserCredentials findUserCredentials(String username) {
+        lock.readLock().lock();
+        try {
+            Integer userId = userIdsByName.get(username);
+            return userId == null ? null : new UserCredentials(userId, passwordHashes[userId - 1]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public LogInResult logInUser(Long userId, String passwordHash, String tgUsername) {
+        lock.writeLock().lock();
+        try {
+            if (sessions.containsKey(tgUsername)) {
+                return LogInResult.ALREADY_LOGGED_IN;
+            }
+            if (!userExists(userId) || !passwordHashes[(int) (userId - 1)].equals(passwordHash)) {
+                return LogInResult.PASSWORD_CHANGED;
+            }
+            write(out -> {
+                out.writeByte(LOG_IN);
+                out.writeLong(userId);
+                out.writeUTF(tgUsername);
+            });
+            return LogInResult.LOGGED_IN;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void logOutUser(Long userId, String tgUsername) {
+        write(out -> {
+            out.writeByte(LOG_OUT);
+            out.writeLong(userId);
+            out.writeUTF(tgUsername);
+        });
+    }
+
+    @Override
+    public String getHomeCurrency(Long userId) {
+        lock.readLock().lock();
+        try {
+            if (!userExists(userId)) {
+                throw new RuntimeException("Error: user cannot be without default_pair_from_id, code problem");
+            }
+            return codeOf(pairFromIds[(int) (userId - 1)]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getDefaultToCurrency(Long userId) {
+        lock.readLock().lock();
+        try {
+            if (!userExists(userId)) {
+                throw new RuntimeException("Error: user cannot be without default_pair_to_id, code problem");
+            }
+            return codeOf(pairToIds[(int) (userId - 1)]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getDefaultPair(Long userId) {
+        lock.readLock().lock();
+        try {
+            if (!userExists(userId)) {
+                throw new RuntimeException("Error: user must have currency pair!");
+            }
+            int index = (int) (userId - 1);
+            return codeOf(pairFromIds[index]) + "-" + codeOf(pairToIds[index]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void changeHomeCurrency(Long userId, String currency) {
+        long currencyId = getCurrencyIdByName(currency);
+        write(out -> {
+            out.writeByte(CHANGE_HOME);
+            out.writeLong(userId);
+            out.writeShort((int) currencyId);
+        });
+    }
+
+    @Override
+    public Boolean isCurrencyExists(String currency) {
+        return Currencies.ordinal(currency) >= 0;
+    }
+
+    @Override
+    public void changeDefaultPair(Long userId, String from, String to) {
+        long fromId = getCurrencyIdByName(from);
+        long toId = getCurrencyIdByName(to);
+        write(out -> {
+            out.writeByte(CHANGE_PAIR);
+            out.writeLong(userId);
+            out.writeShort((int) fromId);
+            out.writeShort((int) toId);
+        });
+    }
+
+    @Override
+    public Long getCurrencyIdByName(String name) {
+        int ordinal = Currencies.ordinal(name);
+        if (ordinal < 0) {
+            throw new NoSuchElementException("There is no currency with this name");
+        }
+        return Currencies.databaseId(ordinal);
+    }
+
+    // ---------------------------------------------------------------- conversion history
+
+    @Override
+    public LocalDateTime saveLogToConversionHistory(Long userId, Long fromCurrencyId, Long toCurrencyId, Double amount, Double rate) {
+        return saveLogsToConversionHistory(userId, fromCurrencyId, new long[]{toCurrencyId}, amount, new double[]{rate});
+    }
+
+    @Override
+    public LocalDateTime saveLogsToConversionHistory(Long userId, Long fromCurrencyId, long[] toCurrencyIds, Double amount, double[] rates) {
+        long createdAt = toMillis(LocalDateTime.now());
+        write(out -> {
+            out.writeByte(CONVERSIONS);
+            out.writeLong(userId);
+            out.writeLong(createdAt);
+            out.writeShort(fromCurrencyId.intValue());
+            out.writeDouble(amount);
+            out.writeInt(toCurrencyIds.length);
+            for (int i = 0; i < toCurrencyIds.length; i++) {
+                out.writeShort((int) toCurrencyIds[i]);
+                out.writeDouble(rates[i]);
+            }
+        });
+        return fromMillis(createdAt);
+    }
+
+    @Override
+    public List<String> getFavouriteCurrencies(Long userId) {
+        lock.readLock().lock();
+        try {
+            short[] currencyIds = favourites.get(userId);
+            List<String> codes = new ArrayList<>();
+            if (currencyIds != null) {
+                for (short currencyId : currencyIds) {
+                    codes.add(codeOf(currencyId));
+                }
+            }
+            return codes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void changeFavouriteCurrencies(Long userId, List<Long> currencyIds) {
+        write(out -> {
+            out.writeByte(FAVOURITES);
+            out.writeLong(userId);
+            out.writeInt(currencyIds.size());
+            for (Long currencyId : currencyIds) {
+                out.writeShort(currencyId.intValue());
+            }
+        });
+    }
+
+    @Override
+    public List<String> findConversionHistoryByUserIdAndPeriod(Long userId, String fromCurrency, String toCurrency, LocalDate startDate, LocalDate endDate) {
+        int fromId = fromCurrency == null ? 0 : currencyIdOrMinusOne(fromCurrency);
+        int toId = toCurrency == null ? 0 : currencyIdOrMinusOne(toCurrency);
+        HistoryColumns rows = copyHistory(userId, startDate, endDate);
+        List<String> conversionHistories = new ArrayList<>();
+        for (int i = 0; i < rows.size; i++) {
+            if (fromCurrency != null && toCurrency != null) {
+                if (rows.fromIds[i] != fromId || rows.toIds[i] != toId) {
+                    continue;
+                }
+            } else if (fromCurrency != null && rows.fromIds[i] != fromId && rows.toIds[i] != fromId) {
+                continue;
+            }
+            conversionHistories.add(DatabaseService.formatConversion(fromMillis(rows.createdAt[i]), codeOf(rows.fromIds[i]), codeOf(rows.toIds[i]),
+                    amountOf(rows.amounts[i]).doubleValue(), rateOf(rows.rates[i]).doubleValue()));
+        }
+        return conversionHistories;
+    }
+
+    @Override
+    public void streamConversionHistory(Long userId, LocalDate startDate, LocalDate endDate, ConversionRowHandler handler) {
+        // The rows are copied out first, so a slow consumer (an export) doesn't hold up writers
+        HistoryColumns rows = copyHistory(userId, startDate, endDate);
+        for (int i = 0; i < rows.size; i++) {
+            handler.handle(fromMillis(rows.createdAt[i]), rows.fromIds[i], rows.toIds[i], amountOf(rows.amounts[i]), rateOf(rows.rates[i]));
+        }
+    }
+
+    @Override
+    public List<String> findHistoryArchives(Long userId, int startMonth, int endMonth) {
+        lock.readLock().lock();
+        try {
+            List<String> files = new ArrayList<>();
+            for (ArchiveRow archive : archives) {
+                if (archive.partitionMonth >= startMonth && archive.partitionMonth <= endMonth) {
+                    files.add(archive.filePath);
+                }
+            }
+            return files;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Integer> findPartitionsBefore(int partitionMonth) {
+        lock.readLock().lock();
+        try {
+            TreeSet<Integer> partitions = new TreeSet<>();
+            for (HistoryColumns columns : histories.values()) {
+                for (int i = 0; i < columns.size; i++) {
+                    if (columns.partitions[i] < partitionMonth) {
+                        partitions.add(columns.partitions[i]);
+                    }
+                }
+            }
+            return new ArrayList<>(partitions);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void streamPartition(int partitionMonth, PartitionRowHandler handler) {
+        List<Long> userIds = new ArrayList<>();
+        List<HistoryColumns> userRows = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<Long, HistoryColumns> entry : histories.entrySet()) {
+                HistoryColumns rows = entry.getValue().copy(i -> entry.getValue().partitions[i] == partitionMonth);
+                if (rows.size > 0) {
+                    userIds.add(entry.getKey());
+                    userRows.add(rows);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (int u = 0; u < userIds.size(); u++) {
+            HistoryColumns rows = userRows.get(u);
+            for (int i = 0; i < rows.size; i++) {
+                handler.handle(userIds.get(u), fromMillis(rows.createdAt[i]), rows.fromIds[i], rows.toIds[i], amountOf(rows.amounts[i]), rateOf(rows.rates[i]));
+            }
+        }
+    }
+
+    @Override
+    public int deletePartition(int partitionMonth) {
+        return (Integer) write(out -> {
+            out.writeByte(DELETE_PARTITION);
+            out.writeInt(partitionMonth);
+        });
+    }
+
+    @Override
+    public void saveHistoryArchive(int partitionMonth, String filePath, long rowCount) {
+        long archivedAt = toMillis(LocalDateTime.now());
+        write(out -> {
+            out.writeByte(SAVE_ARCHIVE);
+            out.writeInt(partitionMonth);
+            out.writeUTF(filePath);
+            out.writeLong(rowCount);
+            out.writeLong(archivedAt);
+        });
+    }
+
+    @Override
+    public boolean isPartitionArchived(int partitionMonth) {
+        lock.readLock().lock();
+        try {
+            return archivedPartitions.contains(partitionMonth);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------- alerts
+
+    @Override
+    public Long createAlert(Long userId, Long chatId, Long fromCurrencyId, Long toCurrencyId, char direction, Double threshold, boolean armed) {
+        return (Long) write(out -> {
+            out.writeByte(CREATE_ALERT);
+            out.writeLong(userId);
+            out.writeLong(chatId);
+            out.writeShort(fromCurrencyId.intValue());
+            out.writeShort(toCurrencyId.intValue());
+            out.writeChar(direction);
+            out.writeDouble(threshold);
+            out.writeBoolean(armed);
+        });
+    }
+
+    @Override
+    public boolean deleteAlert(Long userId, Long alertId) {
+        return (Boolean) write(out -> {
+            out.writeByte(DELETE_ALERT);
+            out.writeLong(userId);
+            out.writeLong(alertId);
+        });
+    }
+
+    @Override
+    public List<String> findAlertsByUserId(Long userId) {
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            for (AlertRow alert : alerts.values()) {
+                if (alert.userId == userId) {
+                    result.add(String.format(Locale.US, "#%d: %s-%s %s %s", alert.id, codeOf(alert.fromId), codeOf(alert.toId), alert.direction,
+                            BigDecimal.valueOf(alert.threshold).setScale(8, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString()));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void loadAlerts(AlertRowHandler handler) {
+        lock.readLock().lock();
+        try {
+            for (AlertRow alert : alerts.values()) {
+                handler.handle(alert.id, bots[(int) (alert.userId - 1)], alert.chatId, alert.fromId, alert.toId, alert.direction, alert.threshold, alert.armed);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setAlertsArmed(List<Long> alertIds, boolean armed) {
+        write(out -> {
+            out.writeByte(ALERTS_ARMED);
+            out.writeBoolean(armed);
+            out.writeInt(alertIds.size());
+            for (Long alertId : alertIds) {
+                out.writeLong(alertId);
+            }
+        });
+    }
+
+    // ---------------------------------------------------------------- digests
+
+    @Override
+    public void saveDigestSubscription(Long userId, Long chatId, String period, int atMinute, LocalDateTime nextRunAt) {
+        write(out -> {
+            out.writeByte(SAVE_DIGEST);
+            out.writeLong(userId);
+            out.writeLong(chatId);
+            out.writeUTF(period);
+            out.writeInt(atMinute);
+            out.writeLong(toMillis(nextRunAt));
+        });
+    }
+
+    @Override
+    public boolean deleteDigestSubscription(Long userId) {
+        return (Boolean) write(out -> {
+            out.writeByte(DELETE_DIGEST);
+            out.writeLong(userId);
+        });
+    }
+
+    @Override
+    public String findDigestSubscription(Long userId) {
+        lock.readLock().lock();
+        try {
+            DigestRow digest = digests.get(userId);
+            if (digest == null) {
+                return null;
+            }
+            return digest.period.equals("DAILY")
+                    ? String.format("daily at %02d:%02d", digest.atMinute / 60, digest.atMinute % 60)
+                    : String.format("hourly at minute %02d", digest.atMinute);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void loadDigestSubscriptions(DigestRowHandler handler) {
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<Long, DigestRow> entry : digests.entrySet()) {
+                DigestRow digest = entry.getValue();
+                handler.handle(entry.getKey(), digest.chatId, digest.period, digest.atMinute, fromMillis(digest.nextRunAt));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void findDigestTargets(List<Long> userIds, DigestTargetHandler handler) {
+        lock.readLock().lock();
+        try {
+            for (Long userId : userIds) {
+                DigestRow digest = digests.get(userId);
+                if (digest != null && userExists(userId)) {
+                    int index = (int) (userId - 1);
+                    handler.handle(userId, bots[index], digest.chatId, pairFromIds[index], pairToIds[index]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateDigestNextRunAt(List<Long> userIds, List<LocalDateTime> nextRunAts) {
+        write(out -> {
+            out.writeByte(DIGEST_NEXT_RUN);
+            out.writeInt(userIds.size());
+            for (int i = 0; i < userIds.size(); i++) {
+                out.writeLong(userIds.get(i));
+                out.writeLong(toMillis(nextRunAts.get(i)));
+            }
+        });
+    }
+
+    @Override
+    public void addPortfolioHolding(Long userId, Long currencyId, double delta) {
+        write(out -> {
+            out.writeByte(PORTFOLIO_ADD_UNITS);
+            out.writeLong(userId);
+            out.writeShort(currencyId.intValue());
+            out.writeLong(Math.round(delta * DatabaseService.PORTFOLIO_UNITS));
+        });
+    }
+
+    @Override
+    public void loadPortfolioHoldings(PortfolioRowHandler handler) {
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<Long, TreeMap<Short, Long>> portfolio : portfolios.entrySet()) {
+                for (Map.Entry<Short, Long> holding : portfolio.getValue().entrySet()) {
+                    handler.handle(portfolio.getKey(), holding.getKey(), (double) holding.getValue() / DatabaseService.PORTFOLIO_UNITS);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ---------------------------------------------------------------- write path
+
+    // Logs the record built by 'encoder' and applies it, returning what apply() returns for it
+    private Object write(RecordEncoder encoder) {
+        lock.writeLock().lock();
+        try {
+            record.reset();
+            encoder.encode(recordOut);
+            wal.append(sequence + 1, record.buffer(), record.size());
+            sequence++;
+            return apply(new DataInputStream(new ByteArrayInputStream(record.buffer(), 0, record.size())));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // The only place state changes; called for live writes and for replayed log records
+    private Object apply(DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case CREATE_USER:
+                createUser(in);
+                return null;
+            case SIGN_UP: {
+                long userId = createUser(in);
+                sessions.put(in.readUTF(), userId);
+                return userId;
+            }
+            case LOG_IN: {
+                long userId = in.readLong();
+                sessions.put(in.readUTF(), userId);
+                return null;
+            }
+            case LOG_OUT: {
+                in.readLong();
+                sessions.remove(in.readUTF());
+                return null;
+            }
+            case CHANGE_HOME: {
+                long userId = in.readLong();
+                short currencyId = in.readShort();
+                if (userExists(userId)) {
+                    pairFromIds[(int) (userId - 1)] = currencyId;
+                }
+                return null;
+            }
+            case CHANGE_PAIR: {
+                long userId = in.readLong();
+                short fromId = in.readShort();
+                short toId = in.readShort();
+                if (userExists(userId)) {
+                    pairFromIds[(int) (userId - 1)] = fromId;
+                    pairToIds[(int) (userId - 1)] = toId;
+                }
+                return null;
+            }
+            case CONVERSIONS: {
+                long userId = in.readLong();
+                long createdAt = in.readLong();
+                short fromId = in.readShort();
+                double amount = in.readDouble();
+                int count = in.readInt();
+                int partition = DatabaseService.partitionOf(fromMillis(createdAt).toLocalDate());
+                HistoryColumns columns = histories.computeIfAbsent(userId, id -> new HistoryColumns(8));
+                for (int i = 0; i < count; i++) {
+                    columns.add(createdAt, partition, fromId, in.readShort(), amount, in.readDouble());
+                }
+                return null;
+            }
+            case FAVOURITES: {
+                long userId = in.readLong();
+                short[] currencyIds = new short[in.readInt()];
+                for (int i = 0; i < currencyIds.length; i++) {
+                    currencyIds[i] = in.readShort();
+                }
+                favourites.put(userId, currencyIds);
+                return null;
+            }
+            case DELETE_PARTITION: {
+                int partition = in.readInt();
+                int deleted = 0;
+                for (HistoryColumns columns : histories.values()) {
+                    deleted += columns.removeIf(i -> columns.partitions[i] == partition);
+                }
+                histories.values().removeIf(columns -> columns.size == 0);
+                return deleted;
+            }
+            case SAVE_ARCHIVE: {
+                int partition = in.readInt();
+                String filePath = in.readUTF();
+                long rowCount = in.readLong();
+                long archivedAt = in.readLong();
+                int part = 1;
+                for (ArchiveRow archive : archives) {
+                    if (archive.partitionMonth == partition) {
+                        part = Math.max(part, archive.part + 1);
+                    }
+                }
+                addArchive(new ArchiveRow(partition, part, filePath, rowCount, archivedAt));
+                return null;
+            }
+            case CREATE_ALERT: {
+                long id = nextAlertId++;
+                alerts.put(id, new AlertRow(id, in.readLong(), in.readLong(), in.readShort(), in.readShort(), in.readChar(), in.readDouble(), in.readBoolean()));
+                return id;
+            }
+            case DELETE_ALERT: {
+                long userId = in.readLong();
+                long alertId = in.readLong();
+                AlertRow alert = alerts.get(alertId);
+                if (alert == null || alert.userId != userId) {
+                    return false;
+                }
+                alerts.remove(alertId);
+                return true;
+            }
+            case ALERTS_ARMED: {
+                boolean armed = in.readBoolean();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    AlertRow alert = alerts.get(in.readLong());
+                    if (alert != null) {
+                        alert.armed = armed;
+                    }
+                }
+                return null;
+            }
+            case SAVE_DIGEST: {
+                long userId = in.readLong();
+                digests.put(userId, new DigestRow(in.readLong(), in.readUTF(), in.readInt(), in.readLong()));
+                return null;
+            }
+            case DELETE_DIGEST:
+                return digests.remove(in.readLong()) != null;
+            case DIGEST_NEXT_RUN: {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    DigestRow digest = digests.get(in.readLong());
+                    long nextRunAt = in.readLong();
+                    if (digest != null) {
+                        digest.nextRunAt = nextRunAt;
+                    }
+                }
+                return null;
+            }
+            case PORTFOLIO_ADD:
+            case PORTFOLIO_ADD_UNITS: {
+                long userId = in.readLong();
+                short currencyId = in.readShort();
+                long delta = in.readLong() * (type == PORTFOLIO_ADD ? UNITS_PER_CENT : 1);
+                TreeMap<Short, Long> portfolio = portfolios.computeIfAbsent(userId, id -> new TreeMap<>());
+                if (portfolio.merge(currencyId, delta, Long::sum) <= 0) {
+                    portfolio.remove(currencyId);
+                    if (portfolio.isEmpty()) {
+                        portfolios.remove(userId);
+                    }
+                }
+                return null;
+            }
+            default:
+                throw new IOException("Unknown log record type " + type);
+        }
+    }
+
+    // CREATE_USER fields (also the start of SIGN_UP); returns the new user's id
+    private long createUser(DataInput in) throws IOException {
+        String bot = in.readUTF().intern();
+        String username = in.readUTF();
+        String passwordHash = in.readUTF();
+        short fromId = in.readShort();
+        short toId = in.readShort();
+        if (userCount == usernames.length) {
+            int capacity = userCount * 2;
+            usernames = Arrays.copyOf(usernames, capacity);
+            bots = Arrays.copyOf(bots, capacity);
+            passwordHashes = Arrays.copyOf(passwordHashes, capacity);
+            pairFromIds = Arrays.copyOf(pairFromIds, capacity);
+            pairToIds = Arrays.copyOf(pairToIds, capacity);
+        }
+        usernames[userCount] = username;
+        bots[userCount] = bot;
+        passwordHashes[userCount] = passwordHash;
+        pairFromIds[userCount] = fromId;
+        pairToIds[userCount] = toId;
+        userCount++;
+        userIdsByName.put(username, userCount);
+        return userCount;
+    }
+
+    // ---------------------------------------------------------------- snapshots
+
+    private void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(SNAPSHOT_FORMAT);
+        out.writeLong(sequence);
+
+        out.writeInt(userCount);
+        for (int i = 0; i < userCount; i++) {
+            out.writeUTF(bots[i]);
+            out.writeUTF(usernames[i]);
+            out.writeUTF(passwordHashes[i]);
+            out.writeShort(pairFromIds[i]);
+            out.writeShort(pairToIds[i]);
+        }
+
+        out.writeInt(sessions.size());
+        for (Map.Entry<String, Long> session : sessions.entrySet()) {
+            out.writeUTF(session.getKey());
+            out.writeLong(session.getValue());
+        }
+
+        out.writeInt(histories.size());
+        for (Map.Entry<Long, HistoryColumns> entry : histories.entrySet()) {
+            HistoryColumns columns = entry.getValue();
+            out.writeLong(entry.getKey());
+            out.writeInt(columns.size);
+            for (int i = 0; i < columns.size; i++) {
+                out.writeLong(columns.createdAt[i]);
+                out.writeShort(columns.fromIds[i]);
+                out.writeShort(columns.toIds[i]);
+                out.writeDouble(columns.amounts[i]);
+                out.writeDouble(columns.rates[i]);
+            }
+        }
+
+        out.writeInt(favourites.size());
+        for (Map.Entry<Long, short[]> entry : favourites.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeInt(entry.getValue().length);
+            for (short currencyId : entry.getValue()) {
+                out.writeShort(currencyId);
+            }
+        }
+
+        out.writeLong(nextAlertId);
+        out.writeInt(alerts.size());
+        for (AlertRow alert : alerts.values()) {
+            out.writeLong(alert.id);
+            out.writeLong(alert.userId);
+            out.writeLong(alert.chatId);
+            out.writeShort(alert.fromId);
+            out.writeShort(alert.toId);
+            out.writeChar(alert.direction);
+            out.writeDouble(alert.threshold);
+            out.writeBoolean(alert.armed);
+        }
+
+        out.writeInt(digests.size());
+        for (Map.Entry<Long, DigestRow> entry : digests.entrySet()) {
+            DigestRow digest = entry.getValue();
+            out.writeLong(entry.getKey());
+            out.writeLong(digest.chatId);
+            out.writeUTF(digest.period);
+            out.writeInt(digest.atMinute);
+            out.writeLong(digest.nextRunAt);
+        }
+
+        out.writeInt(archives.size());
+        for (ArchiveRow archive : archives) {
+            out.writeInt(archive.partitionMonth);
+            out.writeInt(archive.part);
+            out.writeUTF(archive.filePath);
+            out.writeLong(archive.rowCount);
+            out.writeLong(archive.archivedAt);
+        }
+
+        out.writeInt(portfolios.size());
+        for (Map.Entry<Long, TreeMap<Short, Long>> portfolio : portfolios.entrySet()) {
+            out.writeLong(portfolio.getKey());
+            out.writeInt(portfolio.getValue().size());
+            for (Map.Entry<Short, Long> holding : portfolio.getValue().entrySet()) {
+                out.writeShort(holding.getKey());
+                out.writeLong(holding.getValue());
+            }
+        }
+    }
+
+    private void readSnapshot(DataInput in) throws IOException {
+        int format = in.readInt();
+        if (format < 1 || format > SNAPSHOT_FORMAT) {
+            throw new IOException("Unsupported snapshot format " + format);
+        }
+        sequence = in.readLong();
+
+        userCount = in.readInt();
+        int capacity = Math.max(64, Integer.highestOneBit(Math.max(userCount, 1)) * 2);
+        usernames = new String[capacity];
+        bots = new String[capacity];
+        passwordHashes = new String[capacity];
+        pairFromIds = new short[capacity];
+        pairToIds = new short[capacity];
+        for (int i = 0; i < userCount; i++) {
+            bots[i] = in.readUTF().intern();
+            usernames[i] = in.readUTF();
+            passwordHashes[i] = in.readUTF();
+            pairFromIds[i] = in.readShort();
+            pairToIds[i] = in.readShort();
+            userIdsByName.put(usernames[i], i + 1);
+        }
+
+        for (int n = in.readInt(); n > 0; n--) {
+            sessions.put(in.readUTF(), in.readLong());
+        }
+
+        for (int n = in.readInt(); n > 0; n--) {
+            long userId = in.readLong();
+            int size = in.readInt();
+            HistoryColumns columns = new HistoryColumns(size);
+            for (int i = 0; i < size; i++) {
+                long createdAt = in.readLong();
+                columns.add(createdAt, DatabaseService.partitionOf(fromMillis(createdAt).toLocalDate()),
+                        in.readShort(), in.readShort(), in.readDouble(), in.readDouble());
+            }
+            histories.put(userId, columns);
+        }
+
+        for (int n = in.readInt(); n > 0; n--) {
+            long userId = in.readLong();
+            short[] currencyIds = new short[in.readInt()];
+            for (int i = 0; i < currencyIds.length; i++) {
+                currencyIds[i] = in.readShort();
+            }
+            favourites.put(userId, currencyIds);
+        }
+
+        nextAlertId = in.readLong();
+        for (int n = in.readInt(); n > 0; n--) {
+            AlertRow alert = new AlertRow(in.readLong(), in.readLong(), in.readLong(), in.readShort(), in.readShort(), in.readChar(), in.readDouble(), in.readBoolean());
+            alerts.put(alert.id, alert);
+        }
+
+        for (int n = in.readInt(); n > 0; n--) {
+            digests.put(in.readLong(), new DigestRow(in.readLong(), in.readUTF(), in.readInt(), in.readLong()));
+        }
+
+        for (int n = in.readInt(); n > 0; n--) {
+            addArchive(new ArchiveRow(in.readInt(), in.readInt(), in.readUTF(), in.readLong(), in.readLong()));
+        }
+
+        if (format >= 2) {
+            for (int n = in.readInt(); n > 0; n--) {
+                long userId = in.readLong();
+                TreeMap<Short, Long> portfolio = new TreeMap<>();
+                for (int holdings = in.readInt(); holdings > 0; holdings--) {
+                    portfolio.put(in.readShort(), in.readLong() * (format == 2 ? UNITS_PER_CENT : 1));
+                }
+                portfolios.put(userId, portfolio);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- helpers
+
+    private void addArchive(ArchiveRow archive) {
+        archives.add(archive);
+        archives.sort((a, b) -> a.partitionMonth != b.partitionMonth ? Integer.compare(a.partitionMonth, b.partitionMonth) : Integer.compare(a.part, b.part));
+        archivedPartitions.add(archive.partitionMonth);
+    }
+
+    // The user's rows of [startDate, endDate] (null - all) outside of archived months
+    private HistoryColumns copyHistory(Long userId, LocalDate startDate, LocalDate endDate) {
+        long start = startDate == null ? Long.MIN_VALUE : toMillis(startDate.atStartOfDay());
+        long end = endDate == null ? Long.MAX_VALUE : toMillis(endDate.plusDays(1).atStartOfDay());
+        lock.readLock().lock();
+        try {
+            HistoryColumns columns = histories.get(userId);
+            if (columns == null) {
+                return new HistoryColumns(0);
+            }
+            return columns.copy(i -> columns.createdAt[i] >= start && columns.createdAt[i] < end && !archivedPartitions.contains(columns.partitions[i]));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean userExists(long userId) {
+        return userId >= 1 && userId <= userCount;
+    }
+
+    private static int currencyIdOrMinusOne(String code) {
+        int ordinal = Currencies.ordinal(code);
+        return ordinal < 0 ? -1 : (int) Currencies.databaseId(ordinal);
+    }
+
+    private static String codeOf(long currencyId) {
+        return Currencies.code(Currencies.ordinalOfDatabaseId(currencyId));
+    }
+
+    // Same precision as conversion_history.amount/rate in the SQL schema
+    private static BigDecimal amountOf(double amount) {
+        return BigDecimal.valueOf(amount).setScale(2, RoundingMode.HALF_UP);
+    }
+
+    private static BigDecimal rateOf(double rate) {
+        return BigDecimal.valueOf(rate).setScale(8, RoundingMode.HALF_UP);
+    }
+
+    // Local date-times are stored as millis of the same wall-clock time in UTC
+    private static long toMillis(LocalDateTime time) {
+        return time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static LocalDateTime fromMillis(long millis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), Math.floorMod(millis, 1000) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    private interface RecordEncoder {
+        void encode(DataOutput out) throws IOException;
+    }
+
+    // Exposes the internal array, so a record is logged and applied without copying it
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(256);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    private interface RowFilter {
+        boolean test(int row);
+    }
+
+    // Conversions of one user as parallel primitive columns, in insertion (= time) order
+    private static class HistoryColumns {
+        private long[] createdAt;
+        private int[] partitions;
+        private short[] fromIds;
+        private short[] toIds;
+        private double[] amounts;
+        private double[] rates;
+        private int size;
+
+        HistoryColumns(int capacity) {
+            capacity = Math.max(capacity, 1);
+            createdAt = new long[capacity];
+            partitions = new int[capacity];
+            fromIds = new short[capacity];
+            toIds = new short[capacity];
+            amounts = new double[capacity];
+            rates = new double[capacity];
+        }
+
+        void add(long rowCreatedAt, int partition, short fromId, short toId, double amount, double rate) {
+            if (size == createdAt.length) {
+                int capacity = size * 2;
+                createdAt = Arrays.copyOf(createdAt, capacity);
+                partitions = Arrays.copyOf(partitions, capacity);
+                fromIds = Arrays.copyOf(fromIds, capacity);
+                toIds = Arrays.copyOf(toIds, capacity);
+                amounts = Arrays.copyOf(amounts, capacity);
+                rates = Arrays.copyOf(rates, capacity);
+            }
+            createdAt[size] = rowCreatedAt;
+            partitions[size] = partition;
+            fromIds[size] = fromId;
+            toIds[size] = toId;
+            amounts[size] = amount;
+            rates[size] = rate;
+            size++;
+        }
+
+        HistoryColumns copy(RowFilter filter) {
+            HistoryColumns copy = new HistoryColumns(0);
+            for (int i = 0; i < size; i++) {
+                if (filter.test(i)) {
+                    copy.add(createdAt[i], partitions[i], fromIds[i], toIds[i], amounts[i], rates[i]);
+                }
+            }
+            return copy;
+        }
+
+        // Compacts the columns in place, returns the number of removed rows
+        int removeIf(RowFilter filter) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (!filter.test(i)) {
+                    createdAt[kept] = createdAt[i];
+                    partitions[kept] = partitions[i];
+                    fromIds[kept] = fromIds[i];
+                    toIds[kept] = toIds[i];
+                    amounts[kept] = amounts[i];
+                    rates[kept] = rates[i];
+                    kept++;
+                }
+            }
+            int removed = size - kept;
+            size = kept;
+            return removed;
+        }
+    }
+
+    private static class AlertRow {
+        private final long id;
+        private final long userId;
+        private final long chatId;
+        private final short fromId;
+        private final short toId;
+        private final char direction;
+        private final double threshold;
+        private boolean armed;
+
+        AlertRow(long id, long userId, long chatId, short fromId, short toId, char direction, double threshold, boolean armed) {
+            this.id = id;
+            this.userId = userId;
+            this.chatId = chatId;
+            this.fromId = fromId;
+            this.toId = toId;
+            this.direction = direction;
+            this.threshold = threshold;
+            this.armed = armed;
+        }
+    }
+
+    private static class DigestRow {
+        private final long chatId;
+        private final String period;
+        private final int atMinute;
+        private long nextRunAt;
+
+        DigestRow(long chatId, String period, int atMinute, long nextRunAt) {
+            this.chatId = chatId;
+            this.period = period;
+            this.atMinute = atMinute;
+            this.nextRunAt = nextRunAt;
+        }
+    }
+
+    private record ArchiveRow(int partitionMonth, int part, String filePath, long rowCount, long archivedAt) {
+    }
+}
@@ -0,0 +1,17 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import java.time.LocalDate;
+import java.util.List;
+
+// Read side of conversion_history (/history, /export), separate from DatabaseService so it can be served
+// from a read replica. Months that are already archived are skipped, the archive is read through
+// findHistoryArchives instead.
+public interface HistoryReadRepository {
+    List<String> findConversionHistoryByUserIdAndPeriod(Long userId, String fromCurrency, String toCurrency, LocalDate startDate, LocalDate endDate);
+
+    // startDate/endDate are inclusive, both null - the whole history
+    void streamConversionHistory(Long userId, LocalDate startDate, LocalDate endDate, DatabaseService.ConversionRowHandler handler);
+
+    // Archive files of the partitions in [startMonth, endMonth], oldest first
+    List<String> findHistoryArchives(Long userId, int startMonth, int endMonth);
+}
@@ -0,0 +1,126 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Simulated replication for running the read/write split locally with two H2 databases.
+// Every POLL_PERIOD_MILLIS it captures what changed on the primary (new conversions, archived months and
+// the heartbeat) and applies each capture to the replica lagMillis later, in order. Disabled when lagMillis < 0.
+public class HistoryReplicator {
+    private static final long POLL_PERIOD_MILLIS = 200;
+    private static final int MAX_ROWS_PER_POLL = 10_000;
+
+    private final JdbcTemplate primary;
+    private final JdbcTemplate replica;
+    private final long lagMillis;
+    private final Queue<Change> pending = new ArrayDeque<>();
+    private final Set<Long> capturedArchives = new HashSet<>();
+    private final Set<Integer> archivedPartitions = new HashSet<>();
+    private final Logger logger = LoggerFactory.getLogger(HistoryReplicator.class);
+    private long lastCapturedId;
+    private ScheduledExecutorService scheduler;
+
+    public HistoryReplicator(JdbcTemplate primary, JdbcTemplate replica, long lagMillis) {
+        this.primary = primary;
+        this.replica = replica;
+        this.lagMillis = lagMillis;
+    }
+
+    public void start() {
+        if (replica == null || lagMillis < 0) {
+            return;
+        }
+        Long replicatedId = replica.queryForObject("SELECT COALESCE(MAX(id), 0) FROM conversion_history", Long.class);
+        lastCapturedId = replicatedId;
+        for (Map<String, Object> archive : replica.queryForList("SELECT partition_month, part FROM history_archive")) {
+            archivedPartitions.add(((Number) archive.get("partition_month")).intValue());
+            capturedArchives.add(archiveKey(archive));
+        }
+        logger.info("Simulated replication started from conversion #{} with a lag of {} ms", lastCapturedId, lagMillis);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "history-replicator"));
+        scheduler.scheduleWithFixedDelay(this::poll, 0, POLL_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void poll() {
+        try {
+            capture();
+            long now = System.currentTimeMillis();
+            while (!pending.isEmpty() && pending.peek().capturedAt <= now - lagMillis) {
+                apply(pending.poll());
+            }
+        } catch (DataAccessException e) {
+            logger.error("FAILED: Replicating conversion history", e);
+        }
+    }
+
+    private void capture() {
+        // The heartbeat is read first, so a capture never claims more than the rows it carries
+        List<Long> heartbeat = primary.queryForList("SELECT beat_at FROM replication_heartbeat WHERE id = 1", Long.class);
+        List<Object[]> rows = new ArrayList<>();
+        primary.query("SELECT id, user_id, from_currency_id, to_currency_id, amount, rate, created_at, partition_month " +
+                        "FROM conversion_history WHERE id > ? ORDER BY id LIMIT ?",
+                rs -> {
+                    rows.add(new Object[]{rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getBigDecimal(5),
+                            rs.getBigDecimal(6), rs.getTimestamp(7), rs.getInt(8)});
+                }, lastCapturedId, MAX_ROWS_PER_POLL);
+        if (!rows.isEmpty()) {
+            lastCapturedId = (Long) rows.get(rows.size() - 1)[0];
+        }
+        List<Object[]> archives = new ArrayList<>();
+        for (Map<String, Object> archive : primary.queryForList("SELECT partition_month, part, file_path, row_count, archived_at FROM history_archive")) {
+            if (!capturedArchives.add(archiveKey(archive))) {
+                continue;
+            }
+            archives.add(new Object[]{archive.get("partition_month"), archive.get("part"), archive.get("file_path"),
+                    archive.get("row_count"), archive.get("archived_at")});
+        }
+        // A full page may leave rows behind, the heartbeat isn't advanced then
+        Long beatAt = heartbeat.isEmpty() || rows.size() == MAX_ROWS_PER_POLL ? null : heartbeat.get(0);
+        pending.add(new Change(System.currentTimeMillis(), rows, archives, beatAt));
+    }
+
+    private void apply(Change change) {
+        if (!change.rows.isEmpty()) {
+            replica.batchUpdate("MERGE INTO conversion_history (id, user_id, from_currency_id, to_currency_id, amount, rate, created_at, partition_month) " +
+                    "KEY (id) VALUES (?, ?, ?, ?, ?, ?, ?, ?)", change.rows);
+        }
+        for (Object[] archive : change.archives) {
+            int partitionMonth = ((Number) archive[0]).intValue();
+            replica.update("MERGE INTO history_archive (partition_month, part, file_path, row_count, archived_at) KEY (partition_month, part) " +
+                    "VALUES (?, ?, ?, ?, ?)", archive);
+            if (archivedPartitions.add(partitionMonth)) {
+                replica.update("DELETE FROM conversion_history WHERE partition_month = ?", partitionMonth);
+            }
+        }
+        if (change.beatAt != null) {
+            replica.update("MERGE INTO replication_heartbeat (id, beat_at) KEY (id) VALUES (1, ?)", change.beatAt);
+        }
+    }
+
+    private static long archiveKey(Map<String, Object> archive) {
+        return ((Number) archive.get("partition_month")).longValue() * 1_000_000 + ((Number) archive.get("part")).longValue();
+    }
+
+    private record Change(long capturedAt, List<Object[]> rows, List<Object[]> archives, Long beatAt) {
+    }
+}
@@ -0,0 +1,65 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Moves conversion_history rows from a previous shard layout (history.shards.previous) to the current one before the
+// bot starts serving. Shards are identified by URL, so only the users whose shard changed are moved: their rows are
+// copied to the new shard and then deleted from the old one, a user at a time. The target's rows of a moved user are
+// replaced, so a rebalancing interrupted midway is finished by starting again with the same settings.
+public class HistoryShardRebalancer {
+    private static final int COPY_BATCH_SIZE = 1000;
+
+    private final List<HistoryShards.Shard> previous;
+    private final HistoryShards current;
+    private final Logger logger = LoggerFactory.getLogger(HistoryShardRebalancer.class);
+
+    public HistoryShardRebalancer(List<HistoryShards.Shard> previous, HistoryShards current) {
+        this.previous = previous;
+        this.current = current;
+    }
+
+    public void rebalance() {
+        long movedUsers = 0;
+        long movedRows = 0;
+        for (HistoryShards.Shard source : previous) {
+            List<Long> userIds = source.jdbcTemplate().queryForList("SELECT DISTINCT user_id FROM conversion_history ORDER BY user_id", Long.class);
+            for (long userId : userIds) {
+                HistoryShards.Shard target = current.forUser(userId);
+                if (target.url().equals(source.url())) {
+                    continue;
+                }
+                movedRows += move(userId, source.jdbcTemplate(), target.jdbcTemplate());
+                movedUsers++;
+            }
+        }
+        logger.info("SUCCESS: Rebalanced conversion history onto {} shards: {} users, {} rows moved", current.getShards().size(), movedUsers, movedRows);
+    }
+
+    private long move(long userId, JdbcTemplate source, JdbcTemplate target) {
+        target.update("DELETE FROM conversion_history WHERE user_id = ?", userId);
+        List<Object[]> batch = new ArrayList<>(COPY_BATCH_SIZE);
+        long[] rows = {0};
+        source.query("SELECT user_id, from_currency_id, to_currency_id, amount, rate, created_at, partition_month " +
+                "FROM conversion_history WHERE user_id = ? ORDER BY id", (RowCallbackHandler) rs -> {
+            batch.add(new Object[]{rs.getLong("user_id"), rs.getLong("from_currency_id"), rs.getLong("to_currency_id"),
+                    rs.getBigDecimal("amount"), rs.getBigDecimal("rate"), rs.getTimestamp("created_at"), rs.getInt("partition_month")});
+            if (batch.size() == COPY_BATCH_SIZE) {
+                target.batchUpdate(HistoryShards.INSERT_SQL, batch);
+                rows[0] += batch.size();
+                batch.clear();
+            }
+        }, userId);
+        if (!batch.isEmpty()) {
+            target.batchUpdate(HistoryShards.INSERT_SQL, batch);
+            rows[0] += batch.size();
+        }
+        source.update("DELETE FROM conversion_history WHERE user_id = ?", userId);
+        return rows[0];
+    }
+}
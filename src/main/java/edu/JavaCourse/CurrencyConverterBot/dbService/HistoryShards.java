@@ -0,0 +1,279 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// conversion_history spread over several databases by user: all rows of a user live on one shard (a jump consistent
+// hash of the user id, so adding a shard at the end moves only 1/count of the users), /history and /export of a user
+// read that shard and writes of different users don't queue on one database file. Everything else stays on the
+// primary. Every shard has a writer thread committing the rows queued meanwhile in one transaction; callers wait for
+// their commit, so a conversion is in the user's next /history as before. The writer and the query thread of a shard
+// each keep one connection open rather than opening one per commit or query.
+//
+// A single shard that is the primary itself means history is not sharded: writes go straight to the primary and
+// reads through the ReadReplicaRouter.
+public class HistoryShards {
+    static final String INSERT_SQL = "INSERT INTO conversion_history (user_id, from_currency_id, to_currency_id, amount, rate, created_at, partition_month) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final int MAX_WRITES_PER_COMMIT = 256;
+
+    public record Shard(String url, JdbcTemplate jdbcTemplate) {
+    }
+
+    private record PendingWrite(List<Object[]> rows, CompletableFuture<Void> done) {
+    }
+
+    private final List<Shard> shards;
+    private final boolean sharded;
+    private final List<BlockingQueue<PendingWrite>> queues = new ArrayList<>();
+    private final Logger logger = LoggerFactory.getLogger(HistoryShards.class);
+    private final List<ExecutorService> queries = new ArrayList<>();
+    private final List<DedicatedConnection> queryConnections = new ArrayList<>();
+    private ExecutorService writers;
+
+    public HistoryShards(String primaryUrl, List<Shard> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one history shard is required");
+        }
+        this.shards = List.copyOf(shards);
+        this.sharded = shards.size() > 1 || !shards.get(0).url().equals(primaryUrl);
+    }
+
+    public void start() {
+        if (!sharded) {
+            return;
+        }
+        AtomicInteger writerNumber = new AtomicInteger();
+        writers = Executors.newFixedThreadPool(shards.size(), r -> new Thread(r, "history-shard-writer-" + writerNumber.getAndIncrement()));
+        for (int i = 0; i < shards.size(); i++) {
+            BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+            queues.add(queue);
+            Shard shard = shards.get(i);
+            writers.execute(() -> writeLoop(new DedicatedConnection(shard), queue));
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            String name = "history-shard-query-" + i;
+            queries.add(Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }));
+            queryConnections.add(new DedicatedConnection(shards.get(i)));
+        }
+    }
+
+    public void stop() {
+        if (writers != null) {
+            writers.shutdownNow();
+            for (int i = 0; i < queries.size(); i++) {
+                // after the queries already submitted, on the thread that uses the connection
+                queries.get(i).execute(queryConnections.get(i)::close);
+                queries.get(i).shutdown();
+            }
+            for (BlockingQueue<PendingWrite> queue : queues) {
+                PendingWrite write;
+                while ((write = queue.poll()) != null) {
+                    write.done().completeExceptionally(new IllegalStateException("History shards are stopped"));
+                }
+            }
+        }
+    }
+
+    public boolean isSharded() {
+        return sharded;
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    public Shard forUser(long userId) {
+        return shards.get(shardOf(userId, shards.size()));
+    }
+
+    // Inserts rows of INSERT_SQL for the user and returns once they are committed
+    public void insert(long userId, List<Object[]> rows) {
+        if (!sharded) {
+            shards.get(0).jdbcTemplate().batchUpdate(INSERT_SQL, rows);
+            return;
+        }
+        PendingWrite write = new PendingWrite(rows, new CompletableFuture<>());
+        queues.get(shardOf(userId, shards.size())).add(write);
+        try {
+            write.done().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    // history_archive is copied to every shard (see JdbcDatabaseService.saveHistoryArchive); brings new shards up to date
+    public void copyArchivesFrom(JdbcTemplate primary) {
+        if (!sharded) {
+            return;
+        }
+        List<Object[]> archives = primary.query("SELECT partition_month, part, file_path, row_count FROM history_archive",
+                (rs, rowNum) -> new Object[]{rs.getInt("partition_month"), rs.getInt("part"), rs.getString("file_path"), rs.getLong("row_count")});
+        for (Shard shard : shards) {
+            shard.jdbcTemplate().batchUpdate("MERGE INTO history_archive (partition_month, part, file_path, row_count) KEY (partition_month, part) VALUES (?, ?, ?, ?)", archives);
+        }
+    }
+
+    // Runs the query on every shard in parallel, the results are in shard order
+    public <T> List<T> onAllShards(Function<JdbcTemplate, T> query) {
+        if (!sharded) {
+            return List.of(query.apply(shards.get(0).jdbcTemplate()));
+        }
+        List<CompletableFuture<T>> futures = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            DedicatedConnection connection = queryConnections.get(i);
+            futures.add(CompletableFuture.supplyAsync(() -> connection.run(query), queries.get(i)));
+        }
+        List<T> results = new ArrayList<>(shards.size());
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    // Jump consistent hash (Lamping, Veach): a user stays on its shard when shards are added at the end unless it
+    // moves to one of the new ones
+    public static int shardOf(long userId, int shardCount) {
+        long key = userId;
+        long shard = -1;
+        long next = 0;
+        while (next < shardCount) {
+            shard = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((shard + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) shard;
+    }
+
+    private void writeLoop(DedicatedConnection connection, BlockingQueue<PendingWrite> queue) {
+        List<PendingWrite> batch = new ArrayList<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(batch, MAX_WRITES_PER_COMMIT - 1);
+                try {
+                    connection.run(jdbcTemplate -> commit(jdbcTemplate, batch));
+                    batch.forEach(write -> write.done().complete(null));
+                } catch (RuntimeException e) {
+                    if (batch.size() == 1) {
+                        batch.get(0).done().completeExceptionally(e);
+                    } else {
+                        // One bad write shouldn't fail the others of its group, commit them one by one
+                        logger.info("FAILED(group commit, retrying one by one): {}", e.getMessage());
+                        for (PendingWrite write : batch) {
+                            try {
+                                connection.run(jdbcTemplate -> commit(jdbcTemplate, List.of(write)));
+                                write.done().complete(null);
+                            } catch (RuntimeException writeException) {
+                                write.done().completeExceptionally(writeException);
+                            }
+                        }
+                    }
+                }
+                batch.clear();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static Void commit(JdbcTemplate jdbcTemplate, List<PendingWrite> batch) {
+        return jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = connection.prepareStatement(INSERT_SQL)) {
+                for (PendingWrite write : batch) {
+                    for (Object[] row : write.rows()) {
+                        for (int i = 0; i < row.length; i++) {
+                            ps.setObject(i + 1, row[i]);
+                        }
+                        ps.addBatch();
+                    }
+                }
+                ps.executeBatch();
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                rollback(connection);
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            return null;
+        });
+    }
+
+    private static void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException ignored) {
+            // the original failure is reported
+        }
+    }
+
+    // A connection of a shard used by one thread only, opened on first use and reopened after a failure (in case
+    // the connection is what failed)
+    private static final class DedicatedConnection {
+        private final Shard shard;
+        private SingleConnectionDataSource dataSource;
+        private JdbcTemplate jdbcTemplate;
+
+        DedicatedConnection(Shard shard) {
+            this.shard = shard;
+        }
+
+        <T> T run(Function<JdbcTemplate, T> work) {
+            if (jdbcTemplate == null) {
+                dataSource = new SingleConnectionDataSource(DataSourceUtils.getConnection(shard.jdbcTemplate().getDataSource()), true);
+                jdbcTemplate = new JdbcTemplate(dataSource);
+            }
+            try {
+                return work.apply(jdbcTemplate);
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        void close() {
+            if (dataSource != null) {
+                dataSource.destroy();
+                dataSource = null;
+                jdbcTemplate = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class JdbcDatabaseService implements DatabaseService {
+    private static final int STREAM_FETCH_SIZE = 500;
+    private static final int SESSION_LOCKS = 64;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ReadReplicaRouter readReplicaRouter;
+    private final HistoryShards historyShards;
+    private final TransactionTemplate transactionTemplate;
+    // The logged in check and the log in of one telegram account, striped; one process writes the database
+    private final Object[] sessionLocks = new Object[SESSION_LOCKS];
+
+    public JdbcDatabaseService(JdbcTemplate jdbcTemplate, TransactionTemplate transactionTemplate, ReadReplicaRouter readReplicaRouter,
+                               HistoryShards historyShards) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.readReplicaRouter = readReplicaRouter;
+        this.historyShards = historyShards;
+        for (int i = 0; i < SESSION_LOCKS; i++) {
+            sessionLocks[i] = new Object();
+        }
+    }
+
+    @Override
+    public Long getUserIdIfLoggedIn(String tgUsername) {
+        String sql = "SELECT user_id, is_in FROM log_in_out WHERE tg_username = ? ORDER BY time_at DESC, id DESC LIMIT 1";
+        try {
+            return jdbcTemplate.queryForObject(sql, new Object[]{tgUsername}, (rs, rowNum) -> rs.getBoolean("is_in") ? rs.getLong("user_id") : null);
+        } catch (EmptyResultDataAccessException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Long getUserIdIfExists(String username) {
+        String sql = "SELECT id FROM users WHERE username = ?";
+        try {
+            return jdbcTemplate.queryForObject(sql, new Object[]{username}, Long.class);
+        } catch (EmptyResultDataAccessException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Long getCurrencyIdIfExists(String currencyStr) {
+        String sql = "SELECT id FROM currency WHERE name = ?";
+        try {
+            return jdbcTemplate.queryForObject(sql, new Object[]{currencyStr}, Long.class);
+        } catch (EmptyResultDataAccessException e) {
+            throw new NoSuchElementException("No such currency: " + currencyStr);
+        }
+    }
+
+    // One transaction: the insert returns the id, the unique username is the conflict check, the session is created with it.
+    // Under the account's session lock, so it can't be logged in meanwhile
+    @Override
+    public Long createUserAndLogIn(String bot, String username, String passwordHash, Long defaultPairFromId, Long defaultPairToId, String tgUsername) {
+        String sql = "INSERT INTO users (bot, username, password_hash, default_pair_from_id, default_pair_to_id) VALUES (?, ?, ?, ?, ?)";
+        synchronized (sessionLock(tgUsername)) {
+            if (getUserIdIfLoggedIn(tgUsername) != null) {
+                return null;
+            }
+            return transactionTemplate.execute(status -> {
+                KeyHolder keyHolder = new GeneratedKeyHolder();
+                jdbcTemplate.update(connection -> {
+                    PreparedStatement ps = connection.prepareStatement(sql, new String[]{"id"});
+                    ps.setString(1, bot);
+                    ps.setString(2, username);
+                    ps.setString(3, passwordHash);
+                    ps.setLong(4, defaultPairFromId);
+                    ps.setLong(5, defaultPairToId);
+                    return ps;
+                }, keyHolder);
+                long userId = keyHolder.getKey().longValue();
+                jdbcTemplate.update("INSERT INTO log_in_out (user_id, tg_username, is_in) VALUES (?, ?, ?)", userId, tgUsername, true);
+                return userId;
+            });
+        }
+    }
+
+    @Override
+    public UserCredentials findUserCredentials(String username) {
+        String sql = "SELECT id, password_hash FROM users WHERE username = ?";
+        try {
+            return jdbcTemplate.queryForObject(sql, (rs, rowNum) -> new UserCredentials(rs.getLong("id"), rs.getString("password_hash")), username);
+        } catch (EmptyResultDataAccessException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public LogInResult logInUser(Long userId, String passwordHash, String tgUsername) {
+        String sql = "INSERT INTO log_in_out (user_id, tg_username, is_in) SELECT id, ?, ? FROM users WHERE id = ? AND password_hash = ?";
+        synchronized (sessionLock(tgUsername)) {
+            if (getUserIdIfLoggedIn(tgUsername) != null) {
+                return LogInResult.ALREADY_LOGGED_IN;
+            }
+            return jdbcTemplate.update(sql, tgUsername, true, userId, passwordHash) == 1 ? LogInResult.LOGGED_IN : LogInResult.PASSWORD_CHANGED;
+        }
+    }
+
+    private Object sessionLock(String tgUsername) {
+        return sessionLocks[Math.floorMod(tgUsername.hashCode(), SESSION_LOCKS)];
+    }
+
+    @Override
+    public void logOutUser(Long userId, String tgUsername) {
+        String sql = "INSERT INTO log_in_out (user_id, tg_username, is_in) VALUES (?, ?, ?)";
+        jdbcTemplate.update(sql, userId, tgUsername, false);
+    }
+
+    @Override
+    public String getHomeCurrency(Long userId) {
+        String sql = "SELECT currency.name FROM users JOIN currency ON default_pair_from_id = currency.id WHERE users.id = ?";
+        try {
+            return jdbcTemplate.queryForObject(sql, new Object[]{userId}, String.class);
+        } catch (EmptyResultDataAccessException e) {
+            throw new RuntimeException("Error: user cannot be without default_pair_from_id, code problem");
+        }
+    }
+
+    @Override
+    public String getDefaultToCurrency(Long userId) {
+        String sql = "SELECT currency.name FROM users JOIN currency ON default_pair_to_id = currency.id WHERE users.id = ?";
+        try {
+            return jdbcTemplate.queryForObject(sql, new Object[]{userId}, String.class);
+        } catch (EmptyResultDataAccessException e) {
+            throw new RuntimeException("Error: user cannot be without default_pair_to_id, code problem");
+        }
+    }
+
+    @Override
+    public String getDefaultPair(Long userId) {
+        String sql = "SELECT c1.name AS currencyFrom, c2.name AS currencyTo " +
+                "FROM users " +
+                "JOIN currency c1 ON default_pair_from_id = c1.id " +
+                "JOIN currency c2 ON default_pair_to_id = c2.id " +
+                "WHERE users.id = ?";
+        try {
+            return jdbcTemplate.queryForObject(sql, new Object[]{userId}, (rs, rowNum) ->
+                    rs.getString("currencyFrom") + "-" + rs.getString("currencyTo"));
+        } catch (EmptyResultDataAccessException e) {
+            throw new RuntimeException("Error: user must have currency pair!");
+        }
+    }
+
+    @Override
+    public void changeHomeCurrency(Long userId, String currency) {
+        String sql = "UPDATE users " +
+                "SET default_pair_from_id = (SELECT id FROM currency WHERE name = ?) " +
+                "WHERE id = ?";
+        jdbcTemplate.update(sql, currency, userId);
+    }
+
+    @Override
+    public Boolean isCurrencyExists(String currency) {
+        String sql = "SELECT EXISTS(SELECT 1 FROM currency WHERE name = ?)";
+        return jdbcTemplate.queryForObject(sql, new Object[]{currency}, Boolean.class);
+    }
+
+    @Override
+    public void changeDefaultPair(Long userId, String from, String to) {
+        String sql = "UPDATE users " +
+                "SET default_pair_from_id = (SELECT id FROM currency WHERE name = ?), " +
+                "    default_pair_to_id = (SELECT id FROM currency WHERE name = ?) " +
+                "WHERE id = ?";
+        jdbcTemplate.update(sql, from, to, userId);
+    }
+
+    @Override
+    public Long getCurrencyIdByName(String name) {
+        String sql = "SELECT id FROM currency WHERE name = ?";
+        try {
+            return jdbcTemplate.queryForObject(sql, new Object[]{name}, Long.class);
+        } catch (EmptyResultDataAccessException e) {
+            throw new NoSuchElementException("There is no currency with this name");
+        }
+    }
+
+    @Override
+    public LocalDateTime saveLogToConversionHistory(Long userId, Long fromCurrencyId, Long toCurrencyId, Double amount, Double rate) {
+        LocalDateTime now = LocalDateTime.now();
+        historyShards.insert(userId, List.<Object[]>of(new Object[]{userId, fromCurrencyId, toCurrencyId, amount, rate,
+                Timestamp.valueOf(now), DatabaseService.partitionOf(now.toLocalDate())}));
+        readReplicaRouter.recordWrite(userId);
+        return now;
+    }
+
+    // One batched insert for the conversions of a multi-target /rate
+    @Override
+    public LocalDateTime saveLogsToConversionHistory(Long userId, Long fromCurrencyId, long[] toCurrencyIds, Double amount, double[] rates) {
+        LocalDateTime now = LocalDateTime.now();
+        Timestamp createdAt = Timestamp.valueOf(now);
+        int partitionMonth = DatabaseService.partitionOf(now.toLocalDate());
+        List<Object[]> rows = new ArrayList<>(toCurrencyIds.length);
+        for (int i = 0; i < toCurrencyIds.length; i++) {
+            rows.add(new Object[]{userId, fromCurrencyId, toCurrencyIds[i], amount, rates[i], createdAt, partitionMonth});
+        }
+        historyShards.insert(userId, rows);
+        readReplicaRouter.recordWrite(userId);
+        return now;
+    }
+
+    // Favourite currencies in the order they were given
+    @Override
+    public List<String> getFavouriteCurrencies(Long userId) {
+        String sql = "SELECT currency.name FROM favourite_currency JOIN currency ON currency_id = currency.id WHERE user_id = ? ORDER BY position";
+        return jdbcTemplate.queryForList(sql, String.class, userId);
+    }
+
+    @Override
+    public void changeFavouriteCurrencies(Long userId, List<Long> currencyIds) {
+        List<Object[]> rows = new ArrayList<>(currencyIds.size());
+        for (int i = 0; i < currencyIds.size(); i++) {
+            rows.add(new Object[]{userId, currencyIds.get(i), i});
+        }
+        // One unit, so a failed insert doesn't leave the user without favourites
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.update("DELETE FROM favourite_currency WHERE user_id = ?", userId);
+            jdbcTemplate.batchUpdate("INSERT INTO favourite_currency (user_id, currency_id, position) VALUES (?, ?, ?)", rows);
+        });
+    }
+
+    @Override
+    public List<Integer> findPartitionsBefore(int partitionMonth) {
+        String sql = "SELECT DISTINCT partition_month FROM conversion_history WHERE partition_month < ? ORDER BY partition_month";
+        TreeSet<Integer> partitions = new TreeSet<>();
+        historyShards.onAllShards(shard -> shard.queryForList(sql, Integer.class, partitionMonth)).forEach(partitions::addAll);
+        return new ArrayList<>(partitions);
+    }
+
+    // Streams a whole partition ordered by user, for archiving. Shards are read one after another: a user's rows are
+    // on one shard, so they stay contiguous, which is all the archive files need
+    @Override
+    public void streamPartition(int partitionMonth, PartitionRowHandler handler) {
+        String sql = "SELECT user_id, created_at, from_currency_id, to_currency_id, amount, rate " +
+                "FROM conversion_history " +
+                "WHERE partition_month = ? " +
+                "ORDER BY user_id, created_at";
+        for (HistoryShards.Shard shard : historyShards.getShards()) {
+            shard.jdbcTemplate().query(connection -> {
+                PreparedStatement ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                ps.setFetchSize(STREAM_FETCH_SIZE);
+                ps.setInt(1, partitionMonth);
+                return ps;
+            }, (RowCallbackHandler) rs -> handler.handle(rs.getLong("user_id"), rs.getTimestamp("created_at").toLocalDateTime(),
+                    rs.getLong("from_currency_id"), rs.getLong("to_currency_id"), rs.getBigDecimal("amount"), rs.getBigDecimal("rate")));
+        }
+    }
+
+    @Override
+    public int deletePartition(int partitionMonth) {
+        String sql = "DELETE FROM conversion_history WHERE partition_month = ?";
+        int deleted = 0;
+        for (int shardDeleted : historyShards.onAllShards(shard -> shard.update(sql, partitionMonth))) {
+            deleted += shardDeleted;
+        }
+        return deleted;
+    }
+
+    @Override
+    public void saveHistoryArchive(int partitionMonth, String filePath, long rowCount) {
+        String sql = "INSERT INTO history_archive (partition_month, part, file_path, row_count) " +
+                "SELECT ?, COALESCE(MAX(part), 0) + 1, ?, ? FROM history_archive WHERE partition_month = ?";
+        jdbcTemplate.update(sql, partitionMonth, filePath, rowCount, partitionMonth);
+        if (historyShards.isSharded()) {
+            // Every shard keeps a copy, so history reads filter out archived months where the rows are
+            Integer part = jdbcTemplate.queryForObject("SELECT MAX(part) FROM history_archive WHERE partition_month = ?", Integer.class, partitionMonth);
+            historyShards.onAllShards(shard -> shard.update("MERGE INTO history_archive (partition_month, part, file_path, row_count) KEY (partition_month, part) VALUES (?, ?, ?, ?)",
+                    partitionMonth, part, filePath, rowCount));
+        }
+    }
+
+    @Override
+    public boolean isPartitionArchived(int partitionMonth) {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM history_archive WHERE partition_month = ?", Integer.class, partitionMonth) > 0;
+    }
+
+    @Override
+    public Long createAlert(Long userId, Long chatId, Long fromCurrencyId, Long toCurrencyId, char direction, Double threshold, boolean armed) {
+        String sql = "INSERT INTO rate_alert (user_id, chat_id, from_currency_id, to_currency_id, direction, threshold, armed) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.update(connection -> {
+            PreparedStatement ps = connection.prepareStatement(sql, new String[]{"id"});
+            ps.setLong(1, userId);
+            ps.setLong(2, chatId);
+            ps.setLong(3, fromCurrencyId);
+            ps.setLong(4, toCurrencyId);
+            ps.setString(5, String.valueOf(direction));
+            ps.setDouble(6, threshold);
+            ps.setBoolean(7, armed);
+            return ps;
+        }, keyHolder);
+        return keyHolder.getKey().longValue();
+    }
+
+    @Override
+    public boolean deleteAlert(Long userId, Long alertId) {
+        String sql = "DELETE FROM rate_alert WHERE id = ? AND user_id = ?";
+        return jdbcTemplate.update(sql, alertId, userId) > 0;
+    }
+
+    @Override
+    public List<String> findAlertsByUserId(Long userId) {
+        String sql = "SELECT ra.id, c1.name AS currencyFrom, c2.name AS currencyTo, ra.direction, ra.threshold " +
+                "FROM rate_alert ra " +
+                "JOIN currency c1 ON ra.from_currency_id = c1.id " +
+                "JOIN currency c2 ON ra.to_currency_id = c2.id " +
+                "WHERE ra.user_id = ? " +
+                "ORDER BY ra.id";
+        return jdbcTemplate.query(sql, (rs, rowNum) -> String.format(Locale.US, "#%d: %s-%s %s %s", rs.getLong("id"),
+                rs.getString("currencyFrom"), rs.getString("currencyTo"), rs.getString("direction"), rs.getBigDecimal("threshold").stripTrailingZeros().toPlainString()), userId);
+    }
+
+    // Streams all alerts row by row, without building an intermediate list
+    @Override
+    public void loadAlerts(AlertRowHandler handler) {
+        String sql = "SELECT ra.id, u.bot, ra.chat_id, ra.from_currency_id, ra.to_currency_id, ra.direction, ra.threshold, ra.armed " +
+                "FROM rate_alert ra " +
+                "JOIN users u ON ra.user_id = u.id";
+        jdbcTemplate.query(sql, (RowCallbackHandler) rs -> handler.handle(rs.getLong("id"), rs.getString("bot"), rs.getLong("chat_id"),
+                rs.getLong("from_currency_id"), rs.getLong("to_currency_id"), rs.getString("direction").charAt(0),
+                rs.getDouble("threshold"), rs.getBoolean("armed")));
+    }
+
+    @Override
+    public void setAlertsArmed(List<Long> alertIds, boolean armed) {
+        String sql = "UPDATE rate_alert SET armed = ? WHERE id = ?";
+        jdbcTemplate.batchUpdate(sql, alertIds, 500, (ps, alertId) -> {
+            ps.setBoolean(1, armed);
+            ps.setLong(2, alertId);
+        });
+    }
+
+    @Override
+    public void saveDigestSubscription(Long userId, Long chatId, String period, int atMinute, LocalDateTime nextRunAt) {
+        String sql = "MERGE INTO digest_subscription (user_id, chat_id, period, at_minute, next_run_at) KEY (user_id) VALUES (?, ?, ?, ?, ?)";
+        jdbcTemplate.update(sql, userId, chatId, period, atMinute, Timestamp.valueOf(nextRunAt));
+    }
+
+    @Override
+    public boolean deleteDigestSubscription(Long userId) {
+        String sql = "DELETE FROM digest_subscription WHERE user_id = ?";
+        return jdbcTemplate.update(sql, userId) > 0;
+    }
+
+    @Override
+    public String findDigestSubscription(Long userId) {
+        String sql = "SELECT period, at_minute FROM digest_subscription WHERE user_id = ?";
+        try {
+            return jdbcTemplate.queryForObject(sql, (rs, rowNum) -> rs.getString("period").equals("DAILY")
+                    ? String.format("daily at %02d:%02d", rs.getInt("at_minute") / 60, rs.getInt("at_minute") % 60)
+                    : String.format("hourly at minute %02d", rs.getInt("at_minute")), userId);
+        } catch (EmptyResultDataAccessException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void loadDigestSubscriptions(DigestRowHandler handler) {
+        String sql = "SELECT user_id, chat_id, period, at_minute, next_run_at FROM digest_subscription";
+        jdbcTemplate.query(sql, (RowCallbackHandler) rs -> handler.handle(rs.getLong("user_id"), rs.getLong("chat_id"),
+                rs.getString("period"), rs.getInt("at_minute"), rs.getTimestamp("next_run_at").toLocalDateTime()));
+    }
+
+    // Default pairs of the given subscribers, one row per user: (user_id, chat_id, from id, to id)
+    @Override
+    public void findDigestTargets(List<Long> userIds, DigestTargetHandler handler) {
+        for (int start = 0; start < userIds.size(); start += 500) {
+            List<Long> chunk = userIds.subList(start, Math.min(start + 500, userIds.size()));
+            String sql = "SELECT ds.user_id, u.bot, ds.chat_id, u.default_pair_from_id, u.default_pair_to_id " +
+                    "FROM digest_subscription ds " +
+                    "JOIN users u ON ds.user_id = u.id " +
+                    "WHERE ds.user_id IN (" + String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+            jdbcTemplate.query(sql, (RowCallbackHandler) rs -> handler.handle(rs.getLong("user_id"), rs.getString("bot"), rs.getLong("chat_id"),
+                    rs.getLong("default_pair_from_id"), rs.getLong("default_pair_to_id")), chunk.toArray());
+        }
+    }
+
+    @Override
+    public void updateDigestNextRunAt(List<Long> userIds, List<LocalDateTime> nextRunAts) {
+        String sql = "UPDATE digest_subscription SET next_run_at = ? WHERE user_id = ?";
+        jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                ps.setTimestamp(1, Timestamp.valueOf(nextRunAts.get(i)));
+                ps.setLong(2, userIds.get(i));
+            }
+
+            @Override
+            public int getBatchSize() {
+                return userIds.size();
+            }
+        });
+    }
+
+    @Override
+    public void addPortfolioHolding(Long userId, Long currencyId, double delta) {
+        String sql = "MERGE INTO portfolio_holding p " +
+                "USING (VALUES (CAST(? AS INTEGER), CAST(? AS INTEGER), CAST(? AS DECIMAL(28, 8)))) v (user_id, currency_id, amount) " +
+                "ON p.user_id = v.user_id AND p.currency_id = v.currency_id " +
+                "WHEN MATCHED THEN UPDATE SET p.amount = p.amount + v.amount " +
+                "WHEN NOT MATCHED THEN INSERT (user_id, currency_id, amount) VALUES (v.user_id, v.currency_id, v.amount)";
+        // One transaction, so a holding that reached 0 is never seen (or loaded) before it is deleted
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.update(sql, userId, currencyId, delta);
+            jdbcTemplate.update("DELETE FROM portfolio_holding WHERE user_id = ? AND currency_id = ? AND amount <= 0", userId, currencyId);
+        });
+    }
+
+    @Override
+    public void loadPortfolioHoldings(PortfolioRowHandler handler) {
+        String sql = "SELECT user_id, currency_id, amount FROM portfolio_holding";
+        jdbcTemplate.query(sql, (RowCallbackHandler) rs -> handler.handle(rs.getLong("user_id"), rs.getLong("currency_id"), rs.getDouble("amount")));
+    }
+}
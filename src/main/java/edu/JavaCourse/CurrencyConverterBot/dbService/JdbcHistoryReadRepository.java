@@ -0,0 +1,101 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService.formatConversion;
+import static edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService.partitionOf;
+
+// Queries run on the read replica when ReadReplicaRouter allows it, so long range scans don't compete
+// with the writes on the primary. With sharded history (HistoryShards) a user's rows are read from the user's shard.
+public class JdbcHistoryReadRepository implements HistoryReadRepository {
+    private static final int EXPORT_FETCH_SIZE = 500;
+    private static final String NOT_ARCHIVED = "AND ch.partition_month NOT IN (SELECT partition_month FROM history_archive) ";
+
+    private final ReadReplicaRouter readReplicaRouter;
+    private final HistoryShards historyShards;
+
+    public JdbcHistoryReadRepository(ReadReplicaRouter readReplicaRouter, HistoryShards historyShards) {
+        this.readReplicaRouter = readReplicaRouter;
+        this.historyShards = historyShards;
+    }
+
+    @Override
+    public List<String> findConversionHistoryByUserIdAndPeriod(Long userId, String fromCurrency, String toCurrency, LocalDate startDate, LocalDate endDate) {
+        List<String> conversionHistories = new ArrayList<>();
+
+        // partition_month narrows the scan to the partitions of the period before created_at is checked
+        String sql = "SELECT c1.name AS currencyFrom, c2.name AS currencyTo, ch.amount, ch.rate, ch.created_at " +
+                "FROM conversion_history ch " +
+                "JOIN currency c1 ON ch.from_currency_id = c1.id " +
+                "JOIN currency c2 ON ch.to_currency_id = c2.id " +
+                "WHERE ch.user_id = ? " +
+                "AND ch.partition_month BETWEEN ? AND ? " +
+                NOT_ARCHIVED +
+                "AND ch.created_at >= ? AND ch.created_at < ? ";
+
+        List<Object> args = new ArrayList<>();
+        args.add(userId);
+        args.add(partitionOf(startDate));
+        args.add(partitionOf(endDate));
+        args.add(startDate);
+        args.add(endDate.plusDays(1)); // to include the entire day
+
+        if (fromCurrency != null && toCurrency != null) {
+            sql += "AND c1.name = ? AND c2.name = ? ";
+            args.add(fromCurrency);
+            args.add(toCurrency);
+        } else if (fromCurrency != null) {
+            sql += "AND (c1.name = ? OR c2.name = ?) ";
+            args.add(fromCurrency);
+            args.add(fromCurrency);
+        }
+
+        sql += "ORDER BY ch.created_at";
+
+        historyFor(userId).query(sql, (RowCallbackHandler) rs -> conversionHistories.add(formatConversion(rs.getTimestamp("created_at").toLocalDateTime(),
+                rs.getString("currencyFrom"), rs.getString("currencyTo"), rs.getDouble("amount"), rs.getDouble("rate"))), args.toArray());
+
+        return conversionHistories;
+    }
+
+    // Streams the history through a forward-only cursor that fetches EXPORT_FETCH_SIZE rows at a time
+    @Override
+    public void streamConversionHistory(Long userId, LocalDate startDate, LocalDate endDate, DatabaseService.ConversionRowHandler handler) {
+        String sql = "SELECT ch.created_at, ch.from_currency_id, ch.to_currency_id, ch.amount, ch.rate " +
+                "FROM conversion_history ch " +
+                "WHERE ch.user_id = ? " +
+                NOT_ARCHIVED +
+                (startDate != null ? "AND ch.partition_month BETWEEN ? AND ? AND ch.created_at >= ? AND ch.created_at < ? " : "") +
+                "ORDER BY ch.created_at";
+        historyFor(userId).query(connection -> {
+            PreparedStatement ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(EXPORT_FETCH_SIZE);
+            ps.setLong(1, userId);
+            if (startDate != null) {
+                ps.setInt(2, partitionOf(startDate));
+                ps.setInt(3, partitionOf(endDate));
+                ps.setObject(4, startDate);
+                ps.setObject(5, endDate.plusDays(1));
+            }
+            return ps;
+        }, (RowCallbackHandler) rs -> handler.handle(rs.getTimestamp("created_at").toLocalDateTime(), rs.getLong("from_currency_id"),
+                rs.getLong("to_currency_id"), rs.getBigDecimal("amount"), rs.getBigDecimal("rate")));
+    }
+
+    @Override
+    public List<String> findHistoryArchives(Long userId, int startMonth, int endMonth) {
+        String sql = "SELECT file_path FROM history_archive WHERE partition_month BETWEEN ? AND ? ORDER BY partition_month, part";
+        return readReplicaRouter.forUser(userId).queryForList(sql, String.class, startMonth, endMonth);
+    }
+
+    private JdbcTemplate historyFor(Long userId) {
+        return historyShards.isSharded() ? historyShards.forUser(userId).jdbcTemplate() : readReplicaRouter.forUser(userId);
+    }
+}
@@ -0,0 +1,93 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Chooses the database a history read goes to. Reads go to the replica as long as it is at most
+// maxStalenessMillis behind the primary and already contains the user's own latest write; otherwise
+// they fall back to the primary. The replica's position is measured with a heartbeat row the router
+// writes to the primary every second and reads back from the replica.
+public class ReadReplicaRouter {
+    private static final long HEARTBEAT_PERIOD_MILLIS = 1000;
+
+    private final JdbcTemplate primary;
+    private final JdbcTemplate replica;
+    private final long maxStalenessMillis;
+    // Time of the last history write per user, only kept until the replica has caught up with it
+    private final Map<Long, Long> lastWriteMillis = new ConcurrentHashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(ReadReplicaRouter.class);
+    private volatile long replicaUpToMillis = Long.MIN_VALUE;
+    private ScheduledExecutorService scheduler;
+
+    // replica is null when no read replica is configured, all reads go to the primary then
+    public ReadReplicaRouter(JdbcTemplate primary, JdbcTemplate replica, long maxStalenessMillis) {
+        this.primary = primary;
+        this.replica = replica;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    public void start() {
+        if (replica == null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "replica-heartbeat"));
+        scheduler.scheduleWithFixedDelay(this::heartbeat, 0, HEARTBEAT_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public JdbcTemplate getPrimary() {
+        return primary;
+    }
+
+    public JdbcTemplate getReplica() {
+        return replica;
+    }
+
+    public void recordWrite(Long userId) {
+        if (replica != null) {
+            lastWriteMillis.put(userId, System.currentTimeMillis());
+        }
+    }
+
+    public JdbcTemplate forUser(Long userId) {
+        if (replica == null) {
+            return primary;
+        }
+        long upTo = replicaUpToMillis;
+        if (System.currentTimeMillis() - upTo > maxStalenessMillis) {
+            return primary;
+        }
+        Long lastWrite = lastWriteMillis.get(userId);
+        return lastWrite == null || lastWrite < upTo ? replica : primary;
+    }
+
+    private void heartbeat() {
+        try {
+            primary.update("MERGE INTO replication_heartbeat (id, beat_at) KEY (id) VALUES (1, ?)", System.currentTimeMillis());
+            long upTo;
+            try {
+                upTo = replica.queryForObject("SELECT beat_at FROM replication_heartbeat WHERE id = 1", Long.class);
+            } catch (EmptyResultDataAccessException e) {
+                return;
+            }
+            replicaUpToMillis = upTo;
+            lastWriteMillis.values().removeIf(lastWrite -> lastWrite < upTo);
+        } catch (DataAccessException e) {
+            logger.error("FAILED: Replica heartbeat", e);
+        }
+    }
+}
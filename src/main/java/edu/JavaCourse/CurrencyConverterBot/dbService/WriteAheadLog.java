@@ -0,0 +1,113 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Append-only log of the embedded engine's writes. A record is [int length][long sequence][int crc32][payload].
+// Appends go straight to the file channel (no user-space buffer), so a record survives a crash of the process
+// once append() returns, and a power loss too with fsync. A torn or corrupt tail is cut off when the log is opened.
+class WriteAheadLog implements Closeable {
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private final Path file;
+    private final boolean fsync;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private FileChannel channel;
+
+    WriteAheadLog(Path file, boolean fsync) {
+        this.file = file;
+        this.fsync = fsync;
+    }
+
+    // Passes the records with a sequence above afterSequence to the handler and opens the log for appending.
+    // Returns the highest sequence found (afterSequence if there is none).
+    long open(long afterSequence, RecordHandler handler) throws IOException {
+        long lastSequence = afterSequence;
+        long validLength = 0;
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+                while (true) {
+                    byte[] payload;
+                    long sequence;
+                    try {
+                        int length = in.readInt();
+                        if (length < 0 || length > MAX_RECORD_SIZE) {
+                            break;
+                        }
+                        sequence = in.readLong();
+                        int checksum = in.readInt();
+                        payload = new byte[length];
+                        in.readFully(payload);
+                        crc.reset();
+                        crc.update(payload);
+                        if ((int) crc.getValue() != checksum) {
+                            break;
+                        }
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (sequence > afterSequence) {
+                        handler.handle(sequence, payload);
+                    }
+                    lastSequence = Math.max(lastSequence, sequence);
+                    validLength += HEADER_SIZE + payload.length;
+                }
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        return lastSequence;
+    }
+
+    void append(long sequence, byte[] payload, int length) throws IOException {
+        crc.reset();
+        crc.update(payload, 0, length);
+        header.clear();
+        header.putInt(length).putLong(sequence).putInt((int) crc.getValue()).flip();
+        ByteBuffer[] buffers = {header, ByteBuffer.wrap(payload, 0, length)};
+        long start = channel.position();
+        try {
+            while (buffers[1].hasRemaining()) {
+                channel.write(buffers);
+            }
+            if (fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            // A partial record would hide every record appended after it
+            channel.truncate(start);
+            channel.position(start);
+            throw e;
+        }
+    }
+
+    // Drops all records, once a snapshot contains them
+    void truncate() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    interface RecordHandler {
+        void handle(long sequence, byte[] payload) throws IOException;
+    }
+}
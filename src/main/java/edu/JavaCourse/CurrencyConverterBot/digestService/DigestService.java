@@ -0,0 +1,231 @@
+package edu.JavaCourse.CurrencyConverterBot.digestService;
+
+import edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateService;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshot;
+import edu.JavaCourse.CurrencyConverterBot.telegram.SendToUserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Daily/hourly digests of the user's default pair. Subscriptions are kept in a timing wheel keyed by minute,
+// so a tick only handles the users due in that minute, and each pair is rendered once per rate snapshot.
+// next_run_at is persisted once the digest has been sent (the sender only queues it), so digests missed while the
+// bot was down, or still queued when it stopped, are sent right after a restart.
+public class DigestService {
+    public static final String DAILY = "DAILY";
+    public static final String HOURLY = "HOURLY";
+
+    private final DatabaseService databaseService;
+    private final RateService rateService;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final TimingWheel timingWheel;
+    private final Map<Long, Schedule> schedules = new ConcurrentHashMap<>();
+    // Sent digests whose next run is not persisted yet
+    private final Queue<Digest> delivered = new ConcurrentLinkedQueue<>();
+    private final AtomicLong subscriptions = new AtomicLong();
+    private final Logger logger = LoggerFactory.getLogger(DigestService.class);
+
+    // Digest texts of the pairs rendered for renderedVersion of the rates
+    private final Map<Integer, String> renderedPairs = new HashMap<>();
+    private long renderedVersion = -1;
+
+    public DigestService(DatabaseService databaseService, RateService rateService) {
+        this.databaseService = databaseService;
+        this.rateService = rateService;
+        this.timingWheel = new TimingWheel(toTick(LocalDateTime.now()));
+    }
+
+    public void loadSubscriptions() {
+        databaseService.loadDigestSubscriptions((userId, chatId, period, atMinute, nextRunAt) -> {
+            long nextTick = toTick(nextRunAt);
+            schedules.put(userId, new Schedule(period, atMinute, nextTick, subscriptions.incrementAndGet()));
+            timingWheel.schedule(userId, nextTick);
+        });
+        logger.info("Loaded {} digest subscriptions", schedules.size());
+    }
+
+    public long currentTick() {
+        return toTick(LocalDateTime.now());
+    }
+
+    public String subscribe(String tgUsername, Long chatId, String period, int atMinute) throws SendToUserException, SQLException {
+        logger.info("Subscribing user with tgUsername: {} to {} digest at minute {}", tgUsername, period, atMinute);
+
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            logger.info("FAILED(user is not logged in): Subscribing user with tgUsername: {} to digest", tgUsername);
+            throw new SendToUserException("You are not logged in!");
+        }
+
+        LocalDateTime nextRunAt = nextRun(period, atMinute, LocalDateTime.now());
+        databaseService.saveDigestSubscription(userId, chatId, period, atMinute, nextRunAt);
+        long nextTick = toTick(nextRunAt);
+        schedules.put(userId, new Schedule(period, atMinute, nextTick, subscriptions.incrementAndGet()));
+        timingWheel.schedule(userId, nextTick);
+
+        logger.info("SUCCESS: User with tgUsername: {} subscribed to {} digest", tgUsername, period);
+        return nextRunAt.format(DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm"));
+    }
+
+    public void unsubscribe(String tgUsername) throws SendToUserException, SQLException {
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            throw new SendToUserException("You are not logged in!");
+        }
+        if (!databaseService.deleteDigestSubscription(userId)) {
+            throw new SendToUserException("You are not subscribed to a digest");
+        }
+        // The wheel entry stays until it expires and is skipped then
+        schedules.remove(userId);
+    }
+
+    public String getSubscription(String tgUsername) throws SendToUserException, SQLException {
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            throw new SendToUserException("You are not logged in!");
+        }
+        return databaseService.findDigestSubscription(userId);
+    }
+
+    // Advances the wheel to 'tick' and returns the digests of all users that became due
+    public List<Digest> collectDue(long tick) {
+        long[] dueIds = timingWheel.advance(tick);
+        List<Long> userIds = new ArrayList<>(dueIds.length);
+        Set<Long> seen = new HashSet<>();
+        for (long userId : dueIds) {
+            Schedule schedule = schedules.get(userId);
+            // Entries left behind by an unsubscribe, a re-subscribe or a retry are skipped
+            if (schedule != null && schedule.nextTick <= tick && seen.add(userId)) {
+                userIds.add(userId);
+            }
+        }
+        if (userIds.isEmpty()) {
+            return List.of();
+        }
+
+        // The next run is only persisted once the digest has been sent, see delivered()
+        LocalDateTime now = fromTick(tick);
+        Map<Long, Schedule> rescheduled = new HashMap<>();
+        for (Long userId : userIds) {
+            Schedule schedule = schedules.get(userId);
+            if (schedule == null) {
+                continue;
+            }
+            long nextTick = toTick(nextRun(schedule.period, schedule.atMinute, now));
+            Schedule next = new Schedule(schedule.period, schedule.atMinute, nextTick, schedule.subscription);
+            schedules.put(userId, next);
+            timingWheel.schedule(userId, nextTick);
+            rescheduled.put(userId, next);
+        }
+
+        RateSnapshot snapshot = rateService.getSnapshot();
+        List<Digest> digests = new ArrayList<>(userIds.size());
+        databaseService.findDigestTargets(userIds, (userId, bot, chatId, fromCurrencyId, toCurrencyId) -> {
+            Schedule next = rescheduled.get(userId);
+            if (next != null) {
+                digests.add(new Digest(userId, bot, chatId, render(snapshot, Currencies.ordinalOfDatabaseId(fromCurrencyId),
+                        Currencies.ordinalOfDatabaseId(toCurrencyId)), fromTick(next.nextTick), next.subscription));
+            }
+        });
+
+        logger.info("Digest tick {}: {} digests, {} distinct pairs rendered", tick, digests.size(), renderedPairs.size());
+        return digests;
+    }
+
+    // Called by the sender once the digest is sent; persisted with the next persistDelivered()
+    public void delivered(Digest digest) {
+        delivered.add(digest);
+    }
+
+    // The digest couldn't be queued for sending: tries again on the next tick
+    public void retry(Digest digest) {
+        Schedule schedule = schedules.get(digest.userId());
+        if (schedule != null) {
+            long retryTick = currentTick() + 1;
+            schedules.put(digest.userId(), new Schedule(schedule.period, schedule.atMinute, retryTick, schedule.subscription));
+            timingWheel.schedule(digest.userId(), retryTick);
+        }
+    }
+
+    // Persists the next runs of the digests sent since the last call. A crash before that sends them again after the
+    // restart, which is preferred to losing them
+    public void persistDelivered() {
+        List<Long> userIds = new ArrayList<>();
+        List<LocalDateTime> nextRunAts = new ArrayList<>();
+        Digest digest;
+        while ((digest = delivered.poll()) != null) {
+            // Unsubscribed meanwhile; a re-subscription has already persisted its own next run
+            Schedule schedule = schedules.get(digest.userId());
+            if (schedule != null && schedule.subscription == digest.subscription()) {
+                userIds.add(digest.userId());
+                nextRunAts.add(digest.nextRunAt());
+            }
+        }
+        if (!userIds.isEmpty()) {
+            databaseService.updateDigestNextRunAt(userIds, nextRunAts);
+        }
+    }
+
+    private synchronized String render(RateSnapshot snapshot, int fromOrdinal, int toOrdinal) {
+        if (snapshot.getVersion() != renderedVersion) {
+            renderedPairs.clear();
+            renderedVersion = snapshot.getVersion();
+        }
+        return renderedPairs.computeIfAbsent(fromOrdinal * Currencies.count() + toOrdinal, pairKey -> {
+            String from = Currencies.code(fromOrdinal);
+            String to = Currencies.code(toOrdinal);
+            String updated = LocalDateTime.ofInstant(Instant.ofEpochSecond(snapshot.getUpdated()), zone)
+                    .format(DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm"));
+            if (!snapshot.hasRate(fromOrdinal) || !snapshot.hasRate(toOrdinal)) {
+                return String.format("Your digest: exchange rate for %s-%s is not available right now", from, to);
+            }
+            return String.format(Locale.US, "Your digest: 1.00 %s = %.4f %s\n1.00 %s = %.4f %s\n(rates of %s)",
+                    from, snapshot.getRate(fromOrdinal, toOrdinal), to,
+                    to, snapshot.getRate(toOrdinal, fromOrdinal), from, updated);
+        });
+    }
+
+    private static LocalDateTime nextRun(String period, int atMinute, LocalDateTime after) {
+        LocalDateTime candidate;
+        if (period.equals(DAILY)) {
+            candidate = after.toLocalDate().atTime(atMinute / 60, atMinute % 60);
+            return candidate.isAfter(after) ? candidate : candidate.plusDays(1);
+        }
+        candidate = after.truncatedTo(ChronoUnit.HOURS).plusMinutes(atMinute);
+        return candidate.isAfter(after) ? candidate : candidate.plusHours(1);
+    }
+
+    private long toTick(LocalDateTime time) {
+        return time.atZone(zone).toEpochSecond() / 60;
+    }
+
+    private LocalDateTime fromTick(long tick) {
+        return LocalDateTime.ofInstant(Instant.ofEpochSecond(tick * 60), zone);
+    }
+
+    public record Digest(long userId, String bot, long chatId, String text, LocalDateTime nextRunAt, long subscription) {
+    }
+
+    // 'subscription' tells a re-subscription from the subscription a digest was sent for
+    private record Schedule(String period, int atMinute, long nextTick, long subscription) {
+    }
+}
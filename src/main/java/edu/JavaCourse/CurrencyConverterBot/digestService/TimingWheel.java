@@ -0,0 +1,105 @@
+package edu.JavaCourse.CurrencyConverterBot.digestService;
+
+import java.util.Arrays;
+
+// Hierarchical timing wheel with a tick of one minute. Level 0 has a slot per minute of the hour,
+// level 1 a slot per hour of the day, level 2 a slot per day of a 32-day month. Entries further away
+// than that wait in an overflow bucket. Entries (ids) are kept in primitive arrays, and advancing by a
+// tick only touches the slots that expire on it, so the cost doesn't depend on the number of entries.
+public class TimingWheel {
+    private static final int[] WHEEL_SIZES = {60, 24, 32};
+    private static final long[] TICKS_PER_SLOT = {1, 60, 60 * 24};
+
+    private final Bucket[][] levels = new Bucket[WHEEL_SIZES.length][];
+    private final Bucket overflow = new Bucket();
+    private final Bucket ready = new Bucket();
+    private long currentTick;
+
+    public TimingWheel(long startTick) {
+        this.currentTick = startTick;
+        for (int level = 0; level < WHEEL_SIZES.length; level++) {
+            levels[level] = new Bucket[WHEEL_SIZES[level]];
+            for (int slot = 0; slot < WHEEL_SIZES[level]; slot++) {
+                levels[level][slot] = new Bucket();
+            }
+        }
+    }
+
+    public synchronized long getCurrentTick() {
+        return currentTick;
+    }
+
+    // Entries due at or before the current tick are returned by the next advance()
+    public synchronized void schedule(long id, long dueTick) {
+        long delta = dueTick - currentTick;
+        if (delta <= 0) {
+            ready.add(id, dueTick);
+            return;
+        }
+        for (int level = 0; level < WHEEL_SIZES.length; level++) {
+            // An entry belongs to the lowest level whose current rotation still contains its due tick
+            if (dueTick / TICKS_PER_SLOT[level] - currentTick / TICKS_PER_SLOT[level] < WHEEL_SIZES[level]) {
+                levels[level][(int) ((dueTick / TICKS_PER_SLOT[level]) % WHEEL_SIZES[level])].add(id, dueTick);
+                return;
+            }
+        }
+        overflow.add(id, dueTick);
+    }
+
+    // Moves the wheel forward to 'tick' and returns the ids of all entries that became due
+    public synchronized long[] advance(long tick) {
+        while (currentTick < tick) {
+            currentTick++;
+            // Cascade higher levels first, so their entries land in the lower slots expiring now
+            if (currentTick % TICKS_PER_SLOT[WHEEL_SIZES.length - 1] == 0) {
+                cascade(overflow);
+            }
+            for (int level = WHEEL_SIZES.length - 1; level >= 1; level--) {
+                if (currentTick % TICKS_PER_SLOT[level] == 0) {
+                    cascade(levels[level][(int) ((currentTick / TICKS_PER_SLOT[level]) % WHEEL_SIZES[level])]);
+                }
+            }
+            Bucket expired = levels[0][(int) (currentTick % WHEEL_SIZES[0])];
+            for (int i = 0; i < expired.size; i++) {
+                ready.add(expired.ids[i], expired.dueTicks[i]);
+            }
+            expired.clear();
+        }
+        long[] due = Arrays.copyOf(ready.ids, ready.size);
+        ready.clear();
+        return due;
+    }
+
+    private void cascade(Bucket bucket) {
+        long[] ids = Arrays.copyOf(bucket.ids, bucket.size);
+        long[] dueTicks = Arrays.copyOf(bucket.dueTicks, bucket.size);
+        bucket.clear();
+        for (int i = 0; i < ids.length; i++) {
+            schedule(ids[i], dueTicks[i]);
+        }
+    }
+
+    private static class Bucket {
+        private long[] ids = new long[8];
+        private long[] dueTicks = new long[8];
+        private int size;
+
+        void add(long id, long dueTick) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                dueTicks = Arrays.copyOf(dueTicks, size * 2);
+            }
+            ids[size] = id;
+            dueTicks[size] = dueTick;
+            size++;
+        }
+
+        void clear() {
+            size = 0;
+            if (ids.length > 1024) {
+                ids = new long[8];
+                dueTicks = new long[8];
+            }
+        }
+    }
+}
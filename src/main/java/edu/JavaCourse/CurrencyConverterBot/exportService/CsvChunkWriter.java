@@ -0,0 +1,55 @@
+package edu.JavaCourse.CurrencyConverterBot.exportService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Encodes CSV rows into a fixed-size byte chunk that is flushed to the underlying stream whenever it fills up,
+// so memory use doesn't depend on the number of rows. Values are expected to be ASCII (codes, numbers, dates).
+public class CsvChunkWriter implements AutoCloseable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private int position;
+    private boolean rowStarted;
+
+    public CsvChunkWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public CsvChunkWriter field(CharSequence value) throws IOException {
+        if (rowStarted) {
+            put((byte) ',');
+        }
+        rowStarted = true;
+        for (int i = 0; i < value.length(); i++) {
+            put((byte) value.charAt(i));
+        }
+        return this;
+    }
+
+    public void endRow() throws IOException {
+        put((byte) '\n');
+        rowStarted = false;
+    }
+
+    private void put(byte b) throws IOException {
+        if (position == CHUNK_SIZE) {
+            flushChunk();
+        }
+        chunk[position++] = b;
+    }
+
+    private void flushChunk() throws IOException {
+        out.write(chunk, 0, position);
+        position = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The stream (and a GZIP deflater under it) is released even if the last chunk can't be written
+        try (out) {
+            flushChunk();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package edu.JavaCourse.CurrencyConverterBot.exportService;
+
+import edu.JavaCourse.CurrencyConverterBot.archiveService.HistoryArchiveService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.HistoryReadRepository;
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import edu.JavaCourse.CurrencyConverterBot.telegram.SendToUserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.zip.GZIPOutputStream;
+
+// Writes a user's conversion history as CSV into a temporary file. Rows are streamed from a forward-only
+// cursor straight into the CSV chunk, so heap use stays the same for any number of rows.
+public class ExportService {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final DatabaseService databaseService;
+    private final HistoryReadRepository historyReadRepository;
+    private final HistoryArchiveService historyArchiveService;
+    private final Logger logger = LoggerFactory.getLogger(ExportService.class);
+
+    public ExportService(DatabaseService databaseService, HistoryReadRepository historyReadRepository, HistoryArchiveService historyArchiveService) {
+        this.databaseService = databaseService;
+        this.historyReadRepository = historyReadRepository;
+        this.historyArchiveService = historyArchiveService;
+    }
+
+    public Long getExportingUserId(String tgUsername) throws SendToUserException, SQLException {
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            logger.info("FAILED(user is not logged in): Exporting conversion history for user with tgUsername: {}", tgUsername);
+            throw new SendToUserException("You are not logged in!");
+        }
+        return userId;
+    }
+
+    // startDate/endDate are inclusive, both null - the whole history
+    public Path exportConversionHistory(Long userId, LocalDate startDate, LocalDate endDate, boolean gzip) throws IOException {
+        logger.info("Exporting conversion history for user {}: {} - {}, gzip: {}", userId, startDate, endDate, gzip);
+
+        Path file = Files.createTempFile("conversion-history-", gzip ? ".csv.gz" : ".csv");
+        long[] rows = {0};
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(file));
+        try (CsvChunkWriter csv = new CsvChunkWriter(gzip ? new GZIPOutputStream(out, 64 * 1024) : out)) {
+            csv.field("created_at").field("from").field("to").field("amount").field("rate").endRow();
+            DatabaseService.ConversionRowHandler writer = (createdAt, fromCurrencyId, toCurrencyId, amount, rate) -> {
+                try {
+                    csv.field(createdAt.format(TIMESTAMP_FORMAT))
+                            .field(Currencies.code(Currencies.ordinalOfDatabaseId(fromCurrencyId)))
+                            .field(Currencies.code(Currencies.ordinalOfDatabaseId(toCurrencyId)))
+                            .field(amount.toPlainString())
+                            .field(rate.toPlainString())
+                            .endRow();
+                    rows[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            };
+            // Archived months first, they are all older than the ones still in the table
+            historyArchiveService.streamArchivedHistory(userId, startDate != null ? startDate : LocalDate.of(1970, 1, 1),
+                    endDate != null ? endDate : LocalDate.now(), writer);
+            historyReadRepository.streamConversionHistory(userId, startDate, endDate, writer);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        logger.info("SUCCESS: Exported {} conversions for user {} ({} bytes)", rows[0], userId, Files.size(file));
+        return file;
+    }
+}
@@ -0,0 +1,225 @@
+package edu.JavaCourse.CurrencyConverterBot.portfolioService;
+
+import edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshot;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// In-memory portfolios, valued incrementally. A portfolio is a few (currency, amount) aggregates; its value is kept
+// in the base currency of the rate snapshots (USD): sum(amount / rate). The value in a home currency is that sum times
+// the home currency's rate, so one running total per user serves every home currency and reading it is O(1).
+//
+// Every currency has an index of its holders. On a refresh only the currencies whose rate changed are visited, each
+// of its holders' totals gets amount * (1 / newRate - 1 / oldRate) - the work follows the moved currencies and their
+// holders, not the number of users. Holdings without a rate count as 0 and are reported as unpriced.
+public class PortfolioEngine {
+    private final Map<Long, Integer> slots = new HashMap<>();
+    // per slot: the value of the holdings in the base currency, number of holdings without a rate, the holdings
+    private double[] totals = new double[64];
+    private int[] unpriced = new int[64];
+    private Holdings[] holdings = new Holdings[64];
+    private final Holders[] holders = new Holders[Currencies.count()];
+    // 1 / rate of every currency as of the last applied snapshot, NaN - no rate
+    private final double[] inverseRates = new double[Currencies.count()];
+
+    public PortfolioEngine() {
+        Arrays.fill(inverseRates, Double.NaN);
+    }
+
+    public record Valuation(int[] ordinals, double[] amounts, double[] values, double total, int unpriced) {
+    }
+
+    // Adds delta (negative - removes) to the user's holding of the currency and returns the new amount
+    public synchronized double add(long userId, int ordinal, double delta) {
+        int slot = slots.computeIfAbsent(userId, id -> newSlot());
+        Holdings userHoldings = holdings[slot];
+        int index = userHoldings.indexOf(ordinal);
+        double amount = round((index < 0 ? 0 : userHoldings.amounts[index]) + delta);
+        if (index >= 0) {
+            holdersOf(ordinal).remove(userHoldings.holderIndexes[index], holdings);
+            userHoldings.remove(index);
+        }
+        if (amount > 0) {
+            Holders currencyHolders = holdersOf(ordinal);
+            userHoldings.add(ordinal, amount, currencyHolders.size);
+            currencyHolders.add(slot, amount);
+        }
+        // Recomputed from the holdings instead of adjusted, so rounding doesn't accumulate in a total
+        revalue(slot);
+        return amount;
+    }
+
+    public synchronized double amount(long userId, int ordinal) {
+        Integer slot = slots.get(userId);
+        if (slot == null) {
+            return 0;
+        }
+        int index = holdings[slot].indexOf(ordinal);
+        return index < 0 ? 0 : holdings[slot].amounts[index];
+    }
+
+    // The user's holdings and their values in the home currency (the total is read, not summed); null if the user
+    // has none. Values are NaN while the home currency or the holding has no rate
+    public synchronized Valuation valuation(long userId, int homeOrdinal) {
+        Integer slot = slots.get(userId);
+        if (slot == null || holdings[slot].size == 0) {
+            return null;
+        }
+        Holdings userHoldings = holdings[slot];
+        double homeRate = 1 / inverseRates[homeOrdinal];
+        int[] ordinals = Arrays.copyOf(userHoldings.ordinals, userHoldings.size);
+        double[] amounts = Arrays.copyOf(userHoldings.amounts, userHoldings.size);
+        double[] values = new double[userHoldings.size];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = amounts[i] * inverseRates[ordinals[i]] * homeRate;
+        }
+        return new Valuation(ordinals, amounts, values, totals[slot] * homeRate, unpriced[slot]);
+    }
+
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    // Applies the change vector from the last applied rates to 'current'; returns the number of holdings revalued
+    public synchronized int revalue(RateSnapshot current) {
+        int revalued = 0;
+        for (int ordinal = 0; ordinal < inverseRates.length; ordinal++) {
+            double oldInverse = inverseRates[ordinal];
+            double newInverse = current.hasRate(ordinal) ? 1 / current.getRate(ordinal) : Double.NaN;
+            if (Double.compare(oldInverse, newInverse) == 0) {
+                continue;
+            }
+            inverseRates[ordinal] = newInverse;
+            Holders currencyHolders = holders[ordinal];
+            if (currencyHolders == null) {
+                continue;
+            }
+            for (int i = 0; i < currencyHolders.size; i++) {
+                int slot = currencyHolders.slots[i];
+                double amount = currencyHolders.amounts[i];
+                if (Double.isNaN(oldInverse)) {
+                    unpriced[slot]--;
+                    totals[slot] += amount * newInverse;
+                } else if (Double.isNaN(newInverse)) {
+                    unpriced[slot]++;
+                    totals[slot] -= amount * oldInverse;
+                } else {
+                    totals[slot] += amount * (newInverse - oldInverse);
+                }
+            }
+            revalued += currencyHolders.size;
+        }
+        return revalued;
+    }
+
+    private void revalue(int slot) {
+        Holdings userHoldings = holdings[slot];
+        double total = 0;
+        int unpricedCount = 0;
+        for (int i = 0; i < userHoldings.size; i++) {
+            double inverse = inverseRates[userHoldings.ordinals[i]];
+            if (Double.isNaN(inverse)) {
+                unpricedCount++;
+            } else {
+                total += userHoldings.amounts[i] * inverse;
+            }
+        }
+        totals[slot] = total;
+        unpriced[slot] = unpricedCount;
+    }
+
+    private int newSlot() {
+        int slot = slots.size();
+        if (slot == totals.length) {
+            totals = Arrays.copyOf(totals, slot * 2);
+            unpriced = Arrays.copyOf(unpriced, slot * 2);
+            holdings = Arrays.copyOf(holdings, slot * 2);
+        }
+        holdings[slot] = new Holdings();
+        return slot;
+    }
+
+    private Holders holdersOf(int ordinal) {
+        if (holders[ordinal] == null) {
+            holders[ordinal] = new Holders(ordinal);
+        }
+        return holders[ordinal];
+    }
+
+    // To the precision of portfolio_holding (DatabaseService.PORTFOLIO_UNITS)
+    public static double round(double amount) {
+        return (double) Math.round(amount * DatabaseService.PORTFOLIO_UNITS) / DatabaseService.PORTFOLIO_UNITS;
+    }
+
+    // A user's holdings; holderIndexes[i] is the position of the user in the Holders of ordinals[i]
+    private static class Holdings {
+        private int[] ordinals = new int[2];
+        private double[] amounts = new double[2];
+        private int[] holderIndexes = new int[2];
+        private int size;
+
+        int indexOf(int ordinal) {
+            for (int i = 0; i < size; i++) {
+                if (ordinals[i] == ordinal) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void add(int ordinal, double amount, int holderIndex) {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, size * 2);
+                amounts = Arrays.copyOf(amounts, size * 2);
+                holderIndexes = Arrays.copyOf(holderIndexes, size * 2);
+            }
+            ordinals[size] = ordinal;
+            amounts[size] = amount;
+            holderIndexes[size] = holderIndex;
+            size++;
+        }
+
+        void remove(int index) {
+            size--;
+            ordinals[index] = ordinals[size];
+            amounts[index] = amounts[size];
+            holderIndexes[index] = holderIndexes[size];
+        }
+    }
+
+    // The holders of one currency: slot and amount, unordered
+    private static class Holders {
+        private final int ordinal;
+        private int[] slots = new int[4];
+        private double[] amounts = new double[4];
+        private int size;
+
+        Holders(int ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        void add(int slot, double amount) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+                amounts = Arrays.copyOf(amounts, size * 2);
+            }
+            slots[size] = slot;
+            amounts[size] = amount;
+            size++;
+        }
+
+        // The last holder moves into the freed position, its user's holderIndex follows
+        void remove(int index, Holdings[] holdingsBySlot) {
+            size--;
+            if (index != size) {
+                slots[index] = slots[size];
+                amounts[index] = amounts[size];
+                Holdings moved = holdingsBySlot[slots[index]];
+                moved.holderIndexes[moved.indexOf(ordinal)] = index;
+            }
+        }
+    }
+}
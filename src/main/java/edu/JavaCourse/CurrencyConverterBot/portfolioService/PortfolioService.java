@@ -0,0 +1,113 @@
+package edu.JavaCourse.CurrencyConverterBot.portfolioService;
+
+import edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshot;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshotListener;
+import edu.JavaCourse.CurrencyConverterBot.telegram.SendToUserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.SQLException;
+import java.util.Locale;
+
+// /portfolio: holdings are stored in portfolio_holding and kept in PortfolioEngine, which is revalued on every
+// rates refresh, so showing a portfolio doesn't convert anything
+public class PortfolioService implements RateSnapshotListener {
+    private static final int USER_LOCKS = 64;
+
+    private final DatabaseService databaseService;
+    private final PortfolioEngine portfolioEngine;
+    // Changes of one user are serialized (check, database write, engine), users are striped over these
+    private final Object[] userLocks = new Object[USER_LOCKS];
+    private final Logger logger = LoggerFactory.getLogger(PortfolioService.class);
+
+    public PortfolioService(DatabaseService databaseService, PortfolioEngine portfolioEngine) {
+        this.databaseService = databaseService;
+        this.portfolioEngine = portfolioEngine;
+        for (int i = 0; i < USER_LOCKS; i++) {
+            userLocks[i] = new Object();
+        }
+    }
+
+    public void loadPortfolios() {
+        databaseService.loadPortfolioHoldings((userId, currencyId, amount) ->
+                portfolioEngine.add(userId, Currencies.ordinalOfDatabaseId(currencyId), amount));
+        logger.info("Loaded portfolios of {} users", portfolioEngine.size());
+    }
+
+    @Override
+    public void onRatesRefreshed(RateSnapshot previous, RateSnapshot current) {
+        int revalued = portfolioEngine.revalue(current);
+        logger.debug("Portfolios revalued for rates version {}: {} holdings", current.getVersion(), revalued);
+    }
+
+    // Returns the new amount of the holding; a negative amount removes from it
+    public double addHolding(String tgUsername, String amountS, String currency) throws SendToUserException, SQLException {
+        logger.info("Adding {} {} to the portfolio of user with tgUsername: {}", amountS, currency, tgUsername);
+
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            logger.info("FAILED(user is not logged in): Adding to the portfolio of user with tgUsername: {}", tgUsername);
+            throw new SendToUserException("You are not logged in!");
+        }
+        currency = currency.toUpperCase();
+        int ordinal = Currencies.ordinal(currency);
+        if (ordinal < 0) {
+            throw new SendToUserException("Currency '" + currency + "' does not exist!");
+        }
+        double delta = PortfolioEngine.round(Double.parseDouble(amountS));
+        if (delta == 0) {
+            throw new SendToUserException("Amount should be at least 0.00000001");
+        }
+        double amount;
+        synchronized (userLocks[Math.floorMod(userId, USER_LOCKS)]) {
+            double held = portfolioEngine.amount(userId, ordinal);
+            if (held + delta < 0) {
+                logger.info("FAILED(removing more than held): Adding {} {} to the portfolio of user with tgUsername: {}", amountS, currency, tgUsername);
+                throw new SendToUserException("You only hold " + formatAmount(held) + " " + currency);
+            }
+            databaseService.addPortfolioHolding(userId, Currencies.databaseId(ordinal), delta);
+            amount = portfolioEngine.add(userId, ordinal, delta);
+        }
+        logger.info("SUCCESS: Portfolio of user with tgUsername: {} holds {} {}", tgUsername, amount, currency);
+        return amount;
+    }
+
+    public String getPortfolio(String tgUsername) throws SendToUserException, SQLException {
+        Long userId = databaseService.getUserIdIfLoggedIn(tgUsername);
+        if (userId == null) {
+            throw new SendToUserException("You are not logged in!");
+        }
+        String homeCurrency = databaseService.getHomeCurrency(userId);
+        PortfolioEngine.Valuation valuation = portfolioEngine.valuation(userId, Currencies.ordinal(homeCurrency));
+        if (valuation == null) {
+            return "Your portfolio is empty.";
+        }
+
+        StringBuilder text = new StringBuilder("Your portfolio in ").append(homeCurrency).append(":");
+        for (int i = 0; i < valuation.ordinals().length; i++) {
+            text.append("\n").append(formatAmount(valuation.amounts()[i])).append(" ").append(Currencies.code(valuation.ordinals()[i]));
+            if (!Double.isNaN(valuation.values()[i])) {
+                text.append(String.format(Locale.US, " = %.2f %s", valuation.values()[i], homeCurrency));
+            }
+        }
+        if (Double.isNaN(valuation.total())) {
+            text.append("\nNo rate for ").append(homeCurrency).append(" yet, the total is unknown");
+        } else {
+            text.append(String.format(Locale.US, "\nTotal: %.2f %s", valuation.total(), homeCurrency));
+            if (valuation.unpriced() > 0) {
+                text.append(" (without ").append(valuation.unpriced()).append(" holdings that have no rate)");
+            }
+        }
+        return text.toString();
+    }
+
+    // Holdings with cents are shown like money (12.50), smaller amounts with as many decimals as they have (0.0015)
+    public static String formatAmount(double amount) {
+        BigDecimal exact = BigDecimal.valueOf(amount).setScale(8, RoundingMode.HALF_UP).stripTrailingZeros();
+        return exact.scale() <= 2 ? exact.setScale(2, RoundingMode.UNNECESSARY).toPlainString() : exact.toPlainString();
+    }
+}
@@ -0,0 +1,51 @@
+package edu.JavaCourse.CurrencyConverterBot.rateService;
+
+// Per-provider circuit breaker: after failureThreshold consecutive failures the provider is skipped for
+// openMillis, then a single trial request is let through (half-open) to decide whether to close again.
+public class CircuitBreaker {
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    // Whether allowRequest() would let a request through, without taking the half-open trial
+    public synchronized boolean isAvailable() {
+        return state == State.CLOSED || (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis);
+    }
+
+    // Call right before the request is made: in the half-open state the caller takes the single trial and must
+    // report its outcome with onSuccess() or onFailure()
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            return true;
+        }
+        return state == State.CLOSED;
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized String getState() {
+        return state.name();
+    }
+}
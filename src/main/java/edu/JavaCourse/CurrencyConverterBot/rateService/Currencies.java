@@ -0,0 +1,72 @@
+package edu.JavaCourse.CurrencyConverterBot.rateService;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Registry of supported currencies. The ordinal of a currency is its index in CODES; the currency table
+// is filled in this order, so the database id of a currency is always ordinal + 1.
+public final class Currencies {
+    private static final String[] CODES = {"USD", "AED", "AFN", "ALL", "AMD", "ANG", "AOA", "ARS", "AUD", "AWG", "AZN", "BAM",
+            "BBD", "BCH", "BDT", "BGN", "BHD", "BIF", "BMD", "BND", "BOB", "BRL", "BSD", "BTC", "BTG", "BWP",
+            "BZD", "CAD", "CDF", "CHF", "CLP", "CNH", "CNY", "COP", "CRC", "CUC", "CUP", "CVE", "CZK", "DJF",
+            "DKK", "DOP", "DZD", "EGP", "EOS", "ETB", "ETH", "EUR", "FJD", "GBP", "GEL", "GHS", "GIP", "GMD",
+            "GNF", "GTQ", "GYD", "HKD", "HNL", "HRK", "HTG", "HUF", "IDR", "ILS", "INR", "IQD", "IRR", "ISK",
+            "JMD", "JOD", "JPY", "KES", "KGS", "KHR", "KMF", "KRW", "KWD", "KYD", "KZT", "LAK", "LBP", "LKR",
+            "LRD", "LSL", "LTC", "LYD", "MAD", "MDL", "MKD", "MMK", "MOP", "MUR", "MVR", "MWK", "MXN", "MYR",
+            "MZN", "NAD", "NGN", "NIO", "NOK", "NPR", "NZD", "OMR", "PAB", "PEN", "PGK", "PHP", "PKR", "PLN",
+            "PYG", "QAR", "RON", "RSD", "RUB", "RWF", "SAR", "SBD", "SCR", "SDG", "SEK", "SGD", "SLL", "SOS",
+            "SRD", "SVC", "SZL", "THB", "TJS", "TMT", "TND", "TOP", "TRY", "TTD", "TWD", "TZS", "UAH", "UGX",
+            "UYU", "UZS", "VND", "XAF", "XAG", "XAU", "XCD", "XLM", "XOF", "XRP", "YER", "ZAR", "ZMW"};
+
+    private static final Map<String, Integer> ORDINALS = new HashMap<>();
+    // ordinal + 1 of every code, indexed by its three letters (0 - unknown), for lookups without a String
+    private static final short[] ORDINALS_BY_LETTERS = new short[26 * 26 * 26];
+
+    static {
+        for (int i = 0; i < CODES.length; i++) {
+            ORDINALS.put(CODES[i], i);
+            ORDINALS_BY_LETTERS[letterIndex(CODES[i].charAt(0), CODES[i].charAt(1), CODES[i].charAt(2))] = (short) (i + 1);
+        }
+    }
+
+    private Currencies() {
+    }
+
+    public static int count() {
+        return CODES.length;
+    }
+
+    public static String code(int ordinal) {
+        return CODES[ordinal];
+    }
+
+    // Returns -1 for unknown codes
+    public static int ordinal(String code) {
+        Integer ordinal = ORDINALS.get(code);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    // Ordinal of a code given by its three (ASCII) characters, -1 for unknown codes
+    public static int ordinal(int c1, int c2, int c3) {
+        if (c1 < 'A' || c1 > 'Z' || c2 < 'A' || c2 > 'Z' || c3 < 'A' || c3 > 'Z') {
+            return -1;
+        }
+        return ORDINALS_BY_LETTERS[letterIndex(c1, c2, c3)] - 1;
+    }
+
+    private static int letterIndex(int c1, int c2, int c3) {
+        return ((c1 - 'A') * 26 + (c2 - 'A')) * 26 + (c3 - 'A');
+    }
+
+    public static long databaseId(int ordinal) {
+        return ordinal + 1L;
+    }
+
+    public static int ordinalOfDatabaseId(long id) {
+        return (int) (id - 1);
+    }
+
+    public static String[] codes() {
+        return CODES.clone();
+    }
+}
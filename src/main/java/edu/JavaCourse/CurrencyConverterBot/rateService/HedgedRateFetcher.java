@@ -0,0 +1,118 @@
+package edu.JavaCourse.CurrencyConverterBot.rateService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fetches rates from the configured providers in priority order with hedging: if a provider hasn't answered
+// within hedgeDelay (or has failed), the next one is started as well, and the first successful answer wins.
+// Providers whose circuit breaker is open are skipped. A breaker is only asked for a request when its provider is
+// actually started, so a half-open trial is never taken for a provider that the hedge didn't reach.
+// The whole fetch is bounded by a deadline.
+public class HedgedRateFetcher {
+    private final List<RateProvider> providers;
+    private final List<CircuitBreaker> breakers = new ArrayList<>();
+    private final long hedgeDelayMillis;
+    private final long deadlineMillis;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rates-hedging");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Logger logger = LoggerFactory.getLogger(HedgedRateFetcher.class);
+
+    public HedgedRateFetcher(List<RateProvider> providers, long hedgeDelayMillis, long deadlineMillis, int failureThreshold, long openMillis) {
+        this.providers = providers;
+        this.hedgeDelayMillis = hedgeDelayMillis;
+        this.deadlineMillis = deadlineMillis;
+        for (int i = 0; i < providers.size(); i++) {
+            breakers.add(new CircuitBreaker(failureThreshold, openMillis));
+        }
+    }
+
+    // Returns null if the answering provider has no newer rates than it returned last time
+    public RateSnapshot fetch() {
+        List<Integer> available = new ArrayList<>();
+        for (int i = 0; i < providers.size(); i++) {
+            if (breakers.get(i).isAvailable()) {
+                available.add(i);
+            }
+        }
+        if (available.isEmpty()) {
+            throw new RateFetchException("All rate providers are unavailable (circuit open)");
+        }
+
+        CompletableFuture<RateSnapshot> result = new CompletableFuture<>();
+        AtomicInteger launched = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Runnable launchNext = new Runnable() {
+            @Override
+            public void run() {
+                int next = launched.getAndIncrement();
+                if (next >= available.size() || result.isDone()) {
+                    return;
+                }
+                int index = available.get(next);
+                RateProvider provider = providers.get(index);
+                CircuitBreaker breaker = breakers.get(index);
+                if (next + 1 < available.size()) {
+                    scheduler.schedule(this, hedgeDelayMillis, TimeUnit.MILLISECONDS);
+                }
+                if (!breaker.allowRequest()) {
+                    // Another fetch took the half-open trial meanwhile
+                    providerFailed(new RateFetchException("Circuit of " + provider.getName() + " is open"));
+                    return;
+                }
+                long startedAt = System.nanoTime();
+                provider.fetch().whenComplete((snapshot, error) -> {
+                    long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                    if (error == null) {
+                        breaker.onSuccess();
+                        if (result.complete(snapshot)) {
+                            logger.info("Rates fetched from {} in {} ms", provider.getName(), tookMillis);
+                        }
+                    } else {
+                        breaker.onFailure();
+                        logger.warn("Rate provider {} failed after {} ms (circuit {}): {}", provider.getName(), tookMillis, breaker.getState(), error.getMessage());
+                        providerFailed(error);
+                    }
+                });
+            }
+
+            private void providerFailed(Throwable error) {
+                if (failed.incrementAndGet() == available.size()) {
+                    result.completeExceptionally(new RateFetchException("All rate providers failed", error));
+                } else {
+                    // Don't wait for the hedge delay when the current provider has already failed
+                    run();
+                }
+            }
+        };
+        launchNext.run();
+
+        try {
+            return result.get(deadlineMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(false);
+            throw new RateFetchException("No rate provider answered within " + deadlineMillis + " ms");
+        } catch (ExecutionException e) {
+            throw new RateFetchException("Failed to fetch rates", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RateFetchException("Interrupted while fetching rates", e);
+        }
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+}
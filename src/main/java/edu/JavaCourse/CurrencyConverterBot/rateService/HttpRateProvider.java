@@ -0,0 +1,62 @@
+package edu.JavaCourse.CurrencyConverterBot.rateService;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+// Fetches rates in the currencyapi.net format: {"valid":true,"updated":<epoch seconds>,"base":"USD","rates":{...}}
+// Requests are conditional (ETag / Last-Modified), and a payload whose "updated" hasn't changed isn't re-parsed.
+// Both cases complete with null, meaning "no newer rates".
+public class HttpRateProvider implements RateProvider {
+    private final String name;
+    private final URI uri;
+    private final HttpClient httpClient;
+    private final Duration timeout;
+
+    private volatile String etag;
+    private volatile String lastModified;
+    private volatile long lastUpdated = Long.MIN_VALUE;
+
+    public HttpRateProvider(String name, String url, HttpClient httpClient, Duration timeout) {
+        this.name = name;
+        this.uri = URI.create(url);
+        this.httpClient = httpClient;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public CompletableFuture<RateSnapshot> fetch() {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(timeout).GET();
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.header("If-Modified-Since", lastModified);
+        }
+        return httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    if (response.statusCode() == 304) {
+                        return null;
+                    }
+                    if (response.statusCode() != 200) {
+                        throw new RateFetchException(name + " responded with HTTP " + response.statusCode());
+                    }
+                    byte[] body = response.body();
+                    RateSnapshot snapshot = RatesPayloadParser.parse(body, 0, body.length, lastUpdated);
+                    etag = response.headers().firstValue("ETag").orElse(null);
+                    lastModified = response.headers().firstValue("Last-Modified").orElse(null);
+                    if (snapshot != null) {
+                        lastUpdated = snapshot.getUpdated();
+                    }
+                    return snapshot;
+                });
+    }
+}
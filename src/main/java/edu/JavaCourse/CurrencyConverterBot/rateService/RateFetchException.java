@@ -0,0 +1,13 @@
+package edu.JavaCourse.CurrencyConverterBot.rateService;
+
+public class RateFetchException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public RateFetchException(String message) {
+        super(message);
+    }
+
+    public RateFetchException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
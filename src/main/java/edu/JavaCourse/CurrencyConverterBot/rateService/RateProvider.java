@@ -0,0 +1,10 @@
+package edu.JavaCourse.CurrencyConverterBot.rateService;
+
+import java.util.concurrent.CompletableFuture;
+
+// A source of exchange rates. The returned snapshot is unversioned, RateService assigns versions.
+public interface RateProvider {
+    String getName();
+
+    CompletableFuture<RateSnapshot> fetch();
+}
@@ -0,0 +1,126 @@
+package edu.JavaCourse.CurrencyConverterBot.rateService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the current rate snapshot in memory and refreshes it on a schedule, so that user requests
+// never wait for (or spend quota of) the rates API. When every provider fails, the last good snapshot
+// stays in use; before the first successful fetch the bundled rates payload is used.
+public class RateService {
+    private final HedgedRateFetcher fetcher;
+    private final ResourceLoader resourceLoader;
+    private final long refreshPeriodSeconds;
+    private final long maxStalenessSeconds;
+    private final List<RateSnapshotListener> listeners = new CopyOnWriteArrayList<>();
+    private final Logger logger = LoggerFactory.getLogger(RateService.class);
+
+    private volatile RateSnapshot snapshot;
+    private ScheduledExecutorService scheduler;
+
+    public RateService(HedgedRateFetcher fetcher, ResourceLoader resourceLoader, long refreshPeriodSeconds, long maxStalenessSeconds) {
+        this.fetcher = fetcher;
+        this.resourceLoader = resourceLoader;
+        this.refreshPeriodSeconds = refreshPeriodSeconds;
+        this.maxStalenessSeconds = maxStalenessSeconds;
+    }
+
+    public void start() {
+        refresh();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "rates-refresh"));
+        scheduler.scheduleWithFixedDelay(this::refreshQuietly, refreshPeriodSeconds, refreshPeriodSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        fetcher.stop();
+    }
+
+    // A listener added after the first refresh is notified with the current snapshot right away
+    public synchronized void addListener(RateSnapshotListener listener) {
+        listeners.add(listener);
+        if (snapshot != null) {
+            listener.onRatesRefreshed(null, snapshot);
+        }
+    }
+
+    public RateSnapshot getSnapshot() {
+        RateSnapshot current = snapshot;
+        if (current == null) {
+            throw new IllegalStateException("Exchange rates are not loaded yet");
+        }
+        return current;
+    }
+
+    // True if the rates in use are older than the allowed staleness (e.g. all providers are down)
+    public boolean isStale() {
+        RateSnapshot current = snapshot;
+        return current == null || System.currentTimeMillis() / 1000 - current.getUpdated() > maxStalenessSeconds;
+    }
+
+    public synchronized void refresh() {
+        RateSnapshot previous = snapshot;
+        // null - fetching failed or the providers have no newer rates
+        RateSnapshot fetched = fetch(previous);
+        if (fetched == null) {
+            return;
+        }
+        // A provider lagging behind the one used last time must not roll the rates back
+        if (previous != null && fetched.getUpdated() <= previous.getUpdated()) {
+            logger.debug("Rates are not newer than the current ones (updated: {})", fetched.getUpdated());
+            return;
+        }
+
+        RateSnapshot current = fetched.withVersion(previous == null ? 1 : previous.getVersion() + 1);
+        snapshot = current;
+        logger.info("Rates refreshed: version {}, updated {}", current.getVersion(), current.getUpdated());
+        for (RateSnapshotListener listener : listeners) {
+            try {
+                listener.onRatesRefreshed(previous, current);
+            } catch (RuntimeException e) {
+                logger.error("Rates listener {} failed", listener.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            logger.error("Failed to refresh rates", e);
+        }
+    }
+
+    private RateSnapshot fetch(RateSnapshot previous) {
+        try {
+            return fetcher.fetch();
+        } catch (RateFetchException e) {
+            if (previous != null) {
+                logger.warn("Failed to fetch rates, keeping rates of version {} (updated {}): {}", previous.getVersion(), previous.getUpdated(), e.getMessage());
+                return null;
+            }
+            logger.warn("Failed to fetch rates, using the bundled rates: {}", e.getMessage());
+            return loadBundledRates();
+        }
+    }
+
+    private RateSnapshot loadBundledRates() {
+        Resource resource = resourceLoader.getResource("classpath:rates-mock.json");
+        try (InputStream in = resource.getInputStream()) {
+            return RatesPayloadParser.parse(in.readAllBytes());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read bundled rates", e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package edu.JavaCourse.CurrencyConverterBot.rateService;
+
+import java.util.Arrays;
+
+// Immutable set of exchange rates against the base currency (USD), indexed by currency ordinal.
+// Missing rates are NaN. The version grows by one with every snapshot accepted by RateService.
+public final class RateSnapshot {
+    private final long version;
+    private final long updated;
+    private final double[] rates;
+
+    public RateSnapshot(long version, long updated, double[] rates) {
+        this.version = version;
+        this.updated = updated;
+        this.rates = rates;
+    }
+
+    public static double[] emptyRates() {
+        double[] rates = new double[Currencies.count()];
+        Arrays.fill(rates, Double.NaN);
+        return rates;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // Provider timestamp of the rates (epoch seconds)
+    public long getUpdated() {
+        return updated;
+    }
+
+    public boolean hasRate(int ordinal) {
+        return !Double.isNaN(rates[ordinal]);
+    }
+
+    public double getRate(int ordinal) {
+        return rates[ordinal];
+    }
+
+    // Amount of 'to' for one unit of 'from'
+    public double getRate(int fromOrdinal, int toOrdinal) {
+        return rates[toOrdinal] / rates[fromOrdinal];
+    }
+
+    // Rates from 'from' to each of 'to' in one pass over the rates, NaN where a rate is missing
+    public void getRates(int fromOrdinal, int[] toOrdinals, double[] out) {
+        double inverse = 1 / rates[fromOrdinal];
+        for (int i = 0; i < toOrdinals.length; i++) {
+            out[i] = rates[toOrdinals[i]] * inverse;
+        }
+    }
+
+    RateSnapshot withVersion(long newVersion) {
+        return new RateSnapshot(newVersion, updated, rates);
+    }
+}
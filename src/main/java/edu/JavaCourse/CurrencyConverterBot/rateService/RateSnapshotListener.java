@@ -0,0 +1,6 @@
+package edu.JavaCourse.CurrencyConverterBot.rateService;
+
+public interface RateSnapshotListener {
+    // previous is null for the very first snapshot
+    void onRatesRefreshed(RateSnapshot previous, RateSnapshot current);
+}
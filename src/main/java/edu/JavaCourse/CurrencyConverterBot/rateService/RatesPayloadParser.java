@@ -0,0 +1,284 @@
+package edu.JavaCourse.CurrencyConverterBot.rateService;
+
+import java.nio.charset.StandardCharsets;
+
+// Streaming parser for the rates payload {"valid":true,"updated":<epoch seconds>,"base":"USD","rates":{"AED":3.673,...}}.
+// Reads the raw bytes directly into a double[] indexed by currency ordinal: currency codes are resolved from
+// their three bytes and numbers are decoded in place, so no JSON tree or intermediate strings are created.
+// Unknown keys and currencies are skipped.
+public final class RatesPayloadParser {
+    private static final byte[] VALID = {'v', 'a', 'l', 'i', 'd'};
+    private static final byte[] UPDATED = {'u', 'p', 'd', 'a', 't', 'e', 'd'};
+    private static final byte[] RATES = {'r', 'a', 't', 'e', 's'};
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final int MAX_MANTISSA_DIGITS = 18;
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final byte[] buf;
+    private final int end;
+    private int pos;
+
+    private RatesPayloadParser(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    public static RateSnapshot parse(byte[] payload) {
+        return parse(payload, 0, payload.length, Long.MIN_VALUE);
+    }
+
+    // Returns null without parsing the rates if the payload's "updated" equals knownUpdated
+    // ("updated" comes before "rates" in the provider's payload, so the rates are never touched then)
+    public static RateSnapshot parse(byte[] payload, int offset, int length, long knownUpdated) {
+        return new RatesPayloadParser(payload, offset, length).parseSnapshot(knownUpdated);
+    }
+
+    private RateSnapshot parseSnapshot(long knownUpdated) {
+        double[] rates = null;
+        long updated = Long.MIN_VALUE;
+        boolean hasUpdated = false;
+
+        expect('{');
+        if (peek() == '}') {
+            throw error("Empty rates payload");
+        }
+        do {
+            int keyStart = pos + 1;
+            int keyLength = skipString();
+            expect(':');
+            if (keyEquals(keyStart, keyLength, VALID)) {
+                if (peek() == 'f') {
+                    throw new RateFetchException("Rates payload is marked as invalid");
+                }
+                skipValue();
+            } else if (keyEquals(keyStart, keyLength, UPDATED)) {
+                updated = (long) parseNumber();
+                hasUpdated = true;
+                if (updated == knownUpdated) {
+                    return null;
+                }
+            } else if (keyEquals(keyStart, keyLength, RATES)) {
+                rates = parseRates();
+            } else {
+                skipValue();
+            }
+        } while (nextMember('}'));
+
+        if (rates == null || !hasUpdated) {
+            throw error("Rates payload has no 'rates' or 'updated'");
+        }
+        if (updated == knownUpdated) {
+            return null;
+        }
+        return new RateSnapshot(0, updated, rates);
+    }
+
+    private double[] parseRates() {
+        double[] rates = RateSnapshot.emptyRates();
+        expect('{');
+        if (peek() == '}') {
+            pos++;
+            return rates;
+        }
+        do {
+            int keyStart = pos + 1;
+            int keyLength = skipString();
+            expect(':');
+            int ordinal = keyLength == 3 ? Currencies.ordinal(buf[keyStart], buf[keyStart + 1], buf[keyStart + 2]) : -1;
+            if (ordinal >= 0) {
+                rates[ordinal] = parseNumber();
+            } else {
+                skipValue();
+            }
+        } while (nextMember('}'));
+        return rates;
+    }
+
+    // Decodes a JSON number in place. The mantissa * 10^exponent fast path is exact while the mantissa fits in a double
+    // (up to 2^53) and 10^|exponent| does too (up to 10^22), both are rounded once and IEEE division/multiplication
+    // rounds correctly. Anything longer (never seen in rates) goes through Double.parseDouble.
+    private double parseNumber() {
+        skipWhitespace();
+        int start = pos;
+        boolean truncated = false;
+        boolean negative = false;
+        if (pos < end && buf[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+            any = true;
+            if (digits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + (buf[pos] - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+                truncated = true;
+            }
+            pos++;
+        }
+        if (pos < end && buf[pos] == '.') {
+            pos++;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                any = true;
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (buf[pos] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                } else {
+                    truncated = true;
+                }
+                pos++;
+            }
+        }
+        if (!any) {
+            throw error("Number expected");
+        }
+        if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (buf[pos] == '+' || buf[pos] == '-')) {
+                negativeExponent = buf[pos] == '-';
+                pos++;
+            }
+            int exponentStart = pos;
+            int value = 0;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                // Capped so the int never overflows, such exponents go through Double.parseDouble anyway
+                value = Math.min(value * 10 + (buf[pos] - '0'), 999_999);
+                pos++;
+            }
+            if (pos == exponentStart) {
+                throw error("Exponent digits expected");
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        if (truncated || mantissa > MAX_EXACT_MANTISSA || exponent > POWERS_OF_TEN.length - 1 || -exponent > POWERS_OF_TEN.length - 1) {
+            return Double.parseDouble(new String(buf, start, pos - start, StandardCharsets.US_ASCII));
+        }
+        double result = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        return negative ? -result : result;
+    }
+
+    // Skips a string starting at the current position and returns the length of its raw content
+    private int skipString() {
+        expect('"');
+        int start = pos;
+        while (pos < end && buf[pos] != '"') {
+            if (buf[pos] == '\\') {
+                pos++;
+            }
+            pos++;
+        }
+        if (pos >= end) {
+            throw error("Unterminated string");
+        }
+        return pos++ - start;
+    }
+
+    private void skipValue() {
+        skipWhitespace();
+        if (pos >= end) {
+            throw error("Value expected");
+        }
+        byte c = buf[pos];
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = buf[pos];
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+                pos++;
+            } while (depth > 0 && pos < end);
+            if (depth > 0) {
+                throw error("Unexpected end of payload");
+            }
+        } else {
+            // number, true, false, null
+            while (pos < end && buf[pos] != ',' && buf[pos] != '}' && buf[pos] != ']' && !isWhitespace(buf[pos])) {
+                pos++;
+            }
+        }
+    }
+
+    // Consumes ',' (returns true) or the closing character (returns false)
+    private boolean nextMember(char close) {
+        skipWhitespace();
+        if (pos >= end) {
+            throw error("Unexpected end of payload");
+        }
+        byte c = buf[pos++];
+        if (c == ',') {
+            return true;
+        }
+        if (c == close) {
+            return false;
+        }
+        throw error("',' or '" + close + "' expected");
+    }
+
+    private boolean keyEquals(int start, int length, byte[] key) {
+        if (length != key.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void expect(char c) {
+        skipWhitespace();
+        if (pos >= end || buf[pos] != c) {
+            throw error("'" + c + "' expected");
+        }
+        pos++;
+    }
+
+    private byte peek() {
+        skipWhitespace();
+        return pos < end ? buf[pos] : 0;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end && isWhitespace(buf[pos])) {
+            pos++;
+        }
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private RateFetchException error(String message) {
+        return new RateFetchException("Malformed rates payload at byte " + pos + ": " + message);
+    }
+}
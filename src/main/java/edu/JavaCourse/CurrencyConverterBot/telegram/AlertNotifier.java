@@ -0,0 +1,35 @@
+package edu.JavaCourse.CurrencyConverterBot.telegram;
+
+import edu.JavaCourse.CurrencyConverterBot.alertService.AlertEngine;
+import edu.JavaCourse.CurrencyConverterBot.alertService.AlertService;
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshot;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshotListener;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+
+import java.util.Locale;
+
+// Evaluates rate alerts on every rates refresh and notifies the chats of the fired ones
+public class AlertNotifier implements RateSnapshotListener {
+    private final AlertService alertService;
+    private final RateLimitedSender sender;
+
+    public AlertNotifier(AlertService alertService, RateLimitedSender sender) {
+        this.alertService = alertService;
+        this.sender = sender;
+    }
+
+    // previous is null for the first snapshot (also when the alerts are loaded after it): nothing fires then, alerts
+    // the rate moved past the re-arm band of meanwhile are re-armed
+    @Override
+    public void onRatesRefreshed(RateSnapshot previous, RateSnapshot current) {
+        for (AlertEngine.FiredAlert alert : alertService.evaluate(previous, current)) {
+            SendMessage message = new SendMessage();
+            message.setChatId(String.valueOf(alert.chatId()));
+            message.setText(String.format(Locale.US, "Alert #%d: %s-%s is now %.4f (%s %s)", alert.id(),
+                    Currencies.code(alert.fromOrdinal()), Currencies.code(alert.toOrdinal()), alert.rate(),
+                    alert.direction(), alert.threshold()));
+            sender.send(alert.bot(), message);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package edu.JavaCourse.CurrencyConverterBot.telegram;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The bots served by this process. The primary bot (bot.token) is named "main" and keeps the users of a single-bot
+// deployment as they are; every other bot (bot.extra) has its own user namespace, so the same Telegram user or
+// /signup username on two bots are two separate accounts. Rates, currencies, the database and the caches are shared
+// by all of them; outbound messages are paced per bot (RateLimitedSender), as Telegram limits every token on its own.
+public class BotRegistry {
+    public static final String PRIMARY = "main";
+    private static final int MAX_NAME_LENGTH = 32;
+
+    private final Map<String, MyBot> botsByName = new LinkedHashMap<>();
+    private final Map<String, MyBot> botsByToken = new HashMap<>();
+
+    public void register(MyBot bot) {
+        String name = bot.getName();
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH || name.indexOf(':') >= 0) {
+            throw new IllegalArgumentException("Bot name should be 1-" + MAX_NAME_LENGTH + " characters without ':', got '" + name + "'");
+        }
+        if (botsByName.containsKey(name) || botsByToken.containsKey(bot.getBotToken())) {
+            throw new IllegalArgumentException("Bot '" + name + "' or its token is configured twice");
+        }
+        botsByName.put(name, bot);
+        botsByToken.put(bot.getBotToken(), bot);
+    }
+
+    // null if there is no such bot (anymore)
+    public MyBot get(String name) {
+        return botsByName.get(name);
+    }
+
+    public MyBot getByToken(String token) {
+        return botsByToken.get(token);
+    }
+
+    public MyBot getPrimary() {
+        return botsByName.get(PRIMARY);
+    }
+
+    public Collection<MyBot> getBots() {
+        return Collections.unmodifiableCollection(botsByName.values());
+    }
+}
@@ -0,0 +1,60 @@
+package edu.JavaCourse.CurrencyConverterBot.telegram;
+
+import edu.JavaCourse.CurrencyConverterBot.digestService.DigestService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Ticks the digest timing wheel once a minute and fans the due digests out through the rate-limited sender.
+// A digest's next run is persisted only after it has been sent; the sent ones are persisted at the next tick and on stop.
+public class DigestDispatcher {
+    private final DigestService digestService;
+    private final RateLimitedSender sender;
+    private final Logger logger = LoggerFactory.getLogger(DigestDispatcher.class);
+    private ScheduledExecutorService scheduler;
+
+    public DigestDispatcher(DigestService digestService, RateLimitedSender sender) {
+        this.digestService = digestService;
+        this.sender = sender;
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "digest-dispatcher"));
+        long untilNextMinute = 60_000 - System.currentTimeMillis() % 60_000;
+        // The first tick right away sends digests missed while the bot was down
+        scheduler.execute(this::tick);
+        scheduler.scheduleAtFixedRate(this::tick, untilNextMinute, 60_000, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            try {
+                scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        digestService.persistDelivered();
+    }
+
+    private void tick() {
+        try {
+            digestService.persistDelivered();
+            for (DigestService.Digest digest : digestService.collectDue(digestService.currentTick())) {
+                SendMessage message = new SendMessage();
+                message.setChatId(String.valueOf(digest.chatId()));
+                message.setText(digest.text());
+                if (!sender.send(digest.bot(), message, () -> digestService.delivered(digest))) {
+                    digestService.retry(digest);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.error("Digest tick failed", e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package edu.JavaCourse.CurrencyConverterBot.telegram;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Cache admission filter: a key is admitted the second time it is seen within a window of 'window' lookups, so
+// one-off keys (an amount typed once, every keystroke of an inline query) don't take the place of popular ones.
+// A small bloom filter with two probes, cleared every window; false admissions stay at a few percent.
+class Doorkeeper {
+    private final int window;
+    private final AtomicLongArray bits;
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    Doorkeeper(int window) {
+        this.window = window;
+        // ~8 bits per key of the window
+        this.bits = new AtomicLongArray(Math.max(1, window / 8));
+    }
+
+    // True if the key was seen before in the current window, otherwise remembers it
+    boolean admit(Object key) {
+        if (lookups.incrementAndGet() >= window) {
+            lookups.set(0);
+            for (int i = 0; i < bits.length(); i++) {
+                bits.set(i, 0);
+            }
+        }
+        int hash = key.hashCode() * 0x9E3779B9;
+        int size = bits.length() * 64;
+        boolean seen = setBit(Math.floorMod(hash, size));
+        seen &= setBit(Math.floorMod(Integer.rotateLeft(hash, 16) ^ 0x85EBCA6B, size));
+        return seen;
+    }
+
+    // Sets the bit and returns whether it was already set
+    private boolean setBit(int bit) {
+        int word = bit >>> 6;
+        long mask = 1L << (bit & 63);
+        long previous = bits.getAndAccumulate(word, mask, (value, m) -> value | m);
+        return (previous & mask) != 0;
+    }
+}
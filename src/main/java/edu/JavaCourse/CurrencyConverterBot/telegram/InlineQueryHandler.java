@@ -0,0 +1,147 @@
+package edu.JavaCourse.CurrencyConverterBot.telegram;
+
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateService;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshot;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshotListener;
+import org.telegram.telegrambots.meta.api.methods.AnswerInlineQuery;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.InlineQuery;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.inputmessagecontent.InputTextMessageContent;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResult;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultArticle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Answers "@bot 100 usd eur" inline queries. Inline queries arrive on every keystroke and are anonymous,
+// so they are computed from the in-memory rate snapshot only and never touch the database.
+// Popular pairs/amounts are precomputed on every refresh; other answers are cached until the next refresh once the
+// Doorkeeper has seen them twice, so the amounts of every keystroke ("1", "12", "125") don't fill the cache.
+public class InlineQueryHandler implements RateSnapshotListener {
+    private static final String[] POPULAR_CURRENCIES = {"USD", "EUR", "GBP", "RUB", "CNY", "JPY", "CHF"};
+    private static final double[] POPULAR_AMOUNTS = {1, 10, 100, 1000};
+    private static final int MAX_CACHED_ANSWERS = 4096;
+    private static final int DOORKEEPER_WINDOW = 16384;
+    // Larger amounts (and "1e400") have no exact cents in a long/double, such queries get no answer
+    private static final double MAX_AMOUNT = 1e12;
+
+    // Amounts are rendered in cents, so amounts that only differ below a cent share an answer
+    private record AnswerKey(long cents, int fromOrdinal, int toOrdinal) {
+    }
+
+    private final RateService rateService;
+    private final int cacheTimeSeconds;
+
+    // Replaced as a whole on every rates refresh, which invalidates all cached answers at once
+    private volatile Map<AnswerKey, List<InlineQueryResult>> answers = new ConcurrentHashMap<>();
+    private final Doorkeeper doorkeeper = new Doorkeeper(DOORKEEPER_WINDOW);
+
+    public InlineQueryHandler(RateService rateService, int cacheTimeSeconds) {
+        this.rateService = rateService;
+        this.cacheTimeSeconds = cacheTimeSeconds;
+    }
+
+    @Override
+    public void onRatesRefreshed(RateSnapshot previous, RateSnapshot current) {
+        Map<AnswerKey, List<InlineQueryResult>> precomputed = new ConcurrentHashMap<>();
+        for (String from : POPULAR_CURRENCIES) {
+            int fromOrdinal = Currencies.ordinal(from);
+            for (double amount : POPULAR_AMOUNTS) {
+                precomputed.put(cacheKey(amount, fromOrdinal, -1), computeResults(current, amount, fromOrdinal, -1));
+                for (String to : POPULAR_CURRENCIES) {
+                    int toOrdinal = Currencies.ordinal(to);
+                    if (toOrdinal != fromOrdinal) {
+                        precomputed.put(cacheKey(amount, fromOrdinal, toOrdinal), computeResults(current, amount, fromOrdinal, toOrdinal));
+                    }
+                }
+            }
+        }
+        answers = precomputed;
+    }
+
+    public AnswerInlineQuery handle(InlineQuery inlineQuery) {
+        AnswerInlineQuery answer = new AnswerInlineQuery();
+        answer.setInlineQueryId(inlineQuery.getId());
+        answer.setCacheTime(cacheTimeSeconds);
+        answer.setIsPersonal(false);
+        answer.setResults(getResults(inlineQuery.getQuery()));
+        return answer;
+    }
+
+    private List<InlineQueryResult> getResults(String query) {
+        // <amount> (optional) <fromCurrency> <toCurrency> (optional)
+        String[] parts = query.trim().split("\\s+");
+        int index = 0;
+        double amount = 1;
+        if (index < parts.length && !parts[index].isEmpty() && Character.isDigit(parts[index].charAt(0))) {
+            try {
+                amount = Double.parseDouble(parts[index].replace(',', '.'));
+            } catch (NumberFormatException e) {
+                return Collections.emptyList();
+            }
+            if (!(amount <= MAX_AMOUNT)) {
+                return Collections.emptyList();
+            }
+            index++;
+        }
+        if (index >= parts.length || parts.length - index > 2) {
+            return Collections.emptyList();
+        }
+        int fromOrdinal = Currencies.ordinal(parts[index].toUpperCase(Locale.ROOT));
+        int toOrdinal = index + 1 < parts.length ? Currencies.ordinal(parts[index + 1].toUpperCase(Locale.ROOT)) : -1;
+        if (fromOrdinal < 0 || (index + 1 < parts.length && toOrdinal < 0)) {
+            return Collections.emptyList();
+        }
+
+        Map<AnswerKey, List<InlineQueryResult>> cached = answers;
+        AnswerKey key = cacheKey(amount, fromOrdinal, toOrdinal);
+        List<InlineQueryResult> results = cached.get(key);
+        if (results == null) {
+            results = computeResults(rateService.getSnapshot(), key.cents() / 100.0, fromOrdinal, toOrdinal);
+            if (cached.size() < MAX_CACHED_ANSWERS && doorkeeper.admit(key)) {
+                cached.put(key, results);
+            }
+        }
+        return results;
+    }
+
+    private static List<InlineQueryResult> computeResults(RateSnapshot snapshot, double amount, int fromOrdinal, int toOrdinal) {
+        if (!snapshot.hasRate(fromOrdinal)) {
+            return Collections.emptyList();
+        }
+        List<InlineQueryResult> results = new ArrayList<>();
+        if (toOrdinal >= 0) {
+            if (snapshot.hasRate(toOrdinal)) {
+                results.add(article(snapshot, amount, fromOrdinal, toOrdinal));
+            }
+        } else {
+            for (String to : POPULAR_CURRENCIES) {
+                int popularOrdinal = Currencies.ordinal(to);
+                if (popularOrdinal != fromOrdinal && snapshot.hasRate(popularOrdinal)) {
+                    results.add(article(snapshot, amount, fromOrdinal, popularOrdinal));
+                }
+            }
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    private static InlineQueryResultArticle article(RateSnapshot snapshot, double amount, int fromOrdinal, int toOrdinal) {
+        String from = Currencies.code(fromOrdinal);
+        String to = Currencies.code(toOrdinal);
+        String text = String.format(Locale.US, "%.2f %s = %.2f %s", amount, from, amount * snapshot.getRate(fromOrdinal, toOrdinal), to);
+        return InlineQueryResultArticle.builder()
+                .id(from + to)
+                .title(text)
+                .description(String.format(Locale.US, "1 %s = %.4f %s", from, snapshot.getRate(fromOrdinal, toOrdinal), to))
+                .inputMessageContent(InputTextMessageContent.builder().messageText(text).build())
+                .build();
+    }
+
+    private static AnswerKey cacheKey(double amount, int fromOrdinal, int toOrdinal) {
+        return new AnswerKey(Math.round(amount * 100), fromOrdinal, toOrdinal);
+    }
+}
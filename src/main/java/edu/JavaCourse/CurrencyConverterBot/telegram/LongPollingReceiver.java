@@ -0,0 +1,214 @@
+package edu.JavaCourse.CurrencyConverterBot.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.updates.DeleteWebhook;
+import org.telegram.telegrambots.meta.api.methods.updates.GetUpdates;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Alternative to the webhook for environments without public ingress: pulls updates with getUpdates
+// in batches of up to 100 and handles every batch in parallel through the same MyBot logic.
+// Every bot has its own poll loop and offset; the worker pool is shared by all of them.
+//
+// A getUpdates with an offset confirms every update below it to Telegram, so the next poll is only sent once the
+// whole batch has been handled: a crash or stop midway gets the batch again instead of losing it. Batches of
+// different bots still overlap, and within a batch the chats are handled in parallel.
+public class LongPollingReceiver {
+    private static final int BATCH_LIMIT = 100;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final List<Poller> pollers = new ArrayList<>();
+    private final int pollTimeoutSeconds;
+    private final ExecutorService workers;
+    private final Logger logger = LoggerFactory.getLogger(LongPollingReceiver.class);
+
+    private volatile boolean running;
+
+    public LongPollingReceiver(Collection<MyBot> bots, int pollTimeoutSeconds, int workerThreads) {
+        for (MyBot bot : bots) {
+            pollers.add(new Poller(bot));
+        }
+        this.pollTimeoutSeconds = pollTimeoutSeconds;
+        this.workers = Executors.newFixedThreadPool(workerThreads, r -> new Thread(r, "long-polling-worker"));
+    }
+
+    public synchronized void start() throws TelegramApiException {
+        if (running) {
+            return;
+        }
+        // getUpdates is rejected by Telegram while a webhook is set
+        for (Poller poller : pollers) {
+            poller.bot.execute(new DeleteWebhook());
+        }
+        running = true;
+        for (Poller poller : pollers) {
+            poller.start();
+        }
+        logger.info("Long polling started for {} bot(s) (timeout {}s, batch limit {})", pollers.size(), pollTimeoutSeconds, BATCH_LIMIT);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        for (Poller poller : pollers) {
+            poller.stop();
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Long polling stopped");
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        for (Poller poller : pollers) {
+            Thread thread = poller.loopThread;
+            if (thread != null) {
+                thread.join();
+            }
+        }
+    }
+
+    private class Poller {
+        private final MyBot bot;
+        private final ExecutorService pollExecutor;
+        private Thread loopThread;
+        // Id of the first update that hasn't been handled yet
+        private int offset;
+
+        Poller(MyBot bot) {
+            this.bot = bot;
+            this.pollExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "long-polling-fetch-" + bot.getName()));
+        }
+
+        void start() {
+            loopThread = new Thread(this::pollLoop, "long-polling-" + bot.getName());
+            loopThread.start();
+        }
+
+        void stop() {
+            if (loopThread != null) {
+                loopThread.interrupt();
+            }
+            pollExecutor.shutdownNow();
+        }
+
+        private void pollLoop() {
+            CompletableFuture<List<Update>> nextPoll = poll(offset);
+            while (running) {
+                List<Update> batch;
+                try {
+                    batch = nextPoll.join();
+                } catch (CompletionException e) {
+                    if (!running) {
+                        break;
+                    }
+                    logger.error("getUpdates of bot {} failed, retrying from offset {}: {}", bot.getName(), offset, e.getCause().getMessage());
+                    if (!sleepBeforeRetry()) {
+                        break;
+                    }
+                    nextPoll = poll(offset);
+                    continue;
+                }
+
+                if (batch.isEmpty()) {
+                    nextPoll = poll(offset);
+                    continue;
+                }
+
+                handleBatch(bot, batch).join();
+                offset = batch.get(batch.size() - 1).getUpdateId() + 1;
+                if (!running) {
+                    confirm();
+                    break;
+                }
+                nextPoll = poll(offset);
+            }
+        }
+
+        private CompletableFuture<List<Update>> poll(int fromOffset) {
+            try {
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return bot.execute(getUpdates(fromOffset, BATCH_LIMIT, pollTimeoutSeconds));
+                    } catch (TelegramApiException e) {
+                        throw new CompletionException(e);
+                    }
+                }, pollExecutor);
+            } catch (RejectedExecutionException e) {
+                // stopped meanwhile, the loop ends on it
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        // Stopped while a batch was handled: confirms it, so the next start doesn't get it again
+        private void confirm() {
+            try {
+                bot.execute(getUpdates(offset, 1, 0));
+            } catch (TelegramApiException e) {
+                logger.error("Confirming the updates of bot {} below offset {} failed, they will be handled again: {}", bot.getName(), offset, e.getMessage());
+            }
+        }
+    }
+
+    private static GetUpdates getUpdates(int offset, int limit, int timeoutSeconds) {
+        GetUpdates getUpdates = new GetUpdates();
+        getUpdates.setOffset(offset);
+        getUpdates.setLimit(limit);
+        getUpdates.setTimeout(timeoutSeconds);
+        return getUpdates;
+    }
+
+    // Updates of one chat are handled in order (e.g. /login followed by /rate), different chats in parallel
+    private CompletableFuture<Void> handleBatch(MyBot bot, List<Update> batch) {
+        Map<Long, List<Update>> byChat = new LinkedHashMap<>();
+        for (Update update : batch) {
+            byChat.computeIfAbsent(chatKey(update), k -> new ArrayList<>()).add(update);
+        }
+
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(byChat.size());
+        for (List<Update> chatUpdates : byChat.values()) {
+            tasks.add(CompletableFuture.runAsync(() -> chatUpdates.forEach(update -> handleUpdate(bot, update)), workers));
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private void handleUpdate(MyBot bot, Update update) {
+        try {
+            bot.processUpdate(update);
+        } catch (Exception e) {
+            logger.error("Failed to handle update {}: {}", update.getUpdateId(), e.getMessage());
+        }
+    }
+
+    private static long chatKey(Update update) {
+        if (update.hasMessage()) {
+            return update.getMessage().getChatId();
+        }
+        return -update.getUpdateId();
+    }
+
+    private boolean sleepBeforeRetry() {
+        try {
+            Thread.sleep(RETRY_DELAY_MS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
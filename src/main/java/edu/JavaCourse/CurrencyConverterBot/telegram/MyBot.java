@@ -1,28 +1,83 @@
 package edu.JavaCourse.CurrencyConverterBot.telegram;
 
+import edu.JavaCourse.CurrencyConverterBot.alertService.AlertService;
+import edu.JavaCourse.CurrencyConverterBot.digestService.DigestService;
+import edu.JavaCourse.CurrencyConverterBot.portfolioService.PortfolioService;
+import edu.JavaCourse.CurrencyConverterBot.exportService.ExportService;
+import edu.JavaCourse.CurrencyConverterBot.tracing.Trace;
+import edu.JavaCourse.CurrencyConverterBot.tracing.Tracer;
+import edu.JavaCourse.CurrencyConverterBot.util.FreeTextConversionParser;
+import edu.JavaCourse.CurrencyConverterBot.util.FreeTextConversionParser.FreeTextConversion;
 import edu.JavaCourse.CurrencyConverterBot.util.InputValidator;
 import edu.JavaCourse.CurrencyConverterBot.businessLogicService.BusinessLogicService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramWebhookBot;
+import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
 import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 public class MyBot extends TelegramWebhookBot {
+    private final String name;
+    // Prepended to the Telegram and /signup user names of this bot's users, empty for the primary bot
+    private final String namespacePrefix;
     private String botToken;
     private String botUsername;
     private final BusinessLogicService businessLogicService;
+    private final InlineQueryHandler inlineQueryHandler;
+    private final AlertService alertService;
+    private final DigestService digestService;
+    private final PortfolioService portfolioService;
+    private final ReplyCache replyCache;
+    private final ExportService exportService;
+    // Exports run on their own bounded pool so they can't starve interactive commands
+    private final ExecutorService exportExecutor;
+    // Sends the replies of /signup and /login, see replyWhenDone
+    private final Executor commandExecutor;
+    private final Tracer tracer;
     private Map<String, String> commandUsageMap;
     private Map<String, String> commandInfo;
     private Logger logger;
 
-    public MyBot(String botToken, String botUsername, BusinessLogicService businessLogicService) {
+    public MyBot(DefaultBotOptions botOptions, String name, String botToken, String botUsername, BusinessLogicService businessLogicService,
+                 InlineQueryHandler inlineQueryHandler, AlertService alertService, DigestService digestService,
+                 PortfolioService portfolioService, ReplyCache replyCache, ExportService exportService, ExecutorService exportExecutor,
+                 Executor commandExecutor, Tracer tracer) {
+        super(botOptions, botToken);
+        this.name = name;
+        this.namespacePrefix = name.equals(BotRegistry.PRIMARY) ? "" : name + ":";
         this.botToken = botToken;
         this.botUsername = botUsername;
         this.businessLogicService = businessLogicService;
+        this.inlineQueryHandler = inlineQueryHandler;
+        this.alertService = alertService;
+        this.digestService = digestService;
+        this.portfolioService = portfolioService;
+        this.replyCache = replyCache;
+        this.exportService = exportService;
+        this.exportExecutor = exportExecutor;
+        this.commandExecutor = commandExecutor;
+        this.tracer = tracer;
         this.logger = LoggerFactory.getLogger(MyBot.class);
 
         commandUsageMap = new HashMap<>();
@@ -37,8 +92,16 @@ public class MyBot extends TelegramWebhookBot {
         commandUsageMap.put("/pair", "/pair");
         commandUsageMap.put("/chhome", "/chhome <currency>");
         commandUsageMap.put("/chpair", "/chpair <fromCurrency> <toCurrency>");
-        commandUsageMap.put("/rate", "/rate <fromCurrency> (optional) <toCurrency> (optional) <amount> (optional)");
+        commandUsageMap.put("/rate", "/rate <fromCurrency> (optional) <toCurrency or currency1,currency2,... or fav> (optional) <amount> (optional)");
+        commandUsageMap.put("/fav", "/fav");
+        commandUsageMap.put("/chfav", "/chfav <currency1,currency2,...>");
         commandUsageMap.put("/history", "/history <dateFrom> (optional 1) <dateTo> (optional 1) <currency1> (optional 2) <currency2> (optional 3)");
+        commandUsageMap.put("/alert", "/alert <fromCurrency> <toCurrency> <'>' or '<'> <rate>");
+        commandUsageMap.put("/alerts", "/alerts");
+        commandUsageMap.put("/unalert", "/unalert <alertId>");
+        commandUsageMap.put("/export", "/export <dateFrom> (optional) <dateTo> (optional) <gz> (optional)");
+        commandUsageMap.put("/digest", "/digest daily <HH:mm> | /digest hourly <minute> | /digest off | /digest");
+        commandUsageMap.put("/portfolio", "/portfolio | /portfolio add <amount> <currency> | /portfolio remove <amount> <currency>");
 
         commandInfo.put("/start", "Say hi to the bot.");
         commandInfo.put("/help", "Get help and information about available commands");
@@ -49,8 +112,20 @@ public class MyBot extends TelegramWebhookBot {
         commandInfo.put("/chhome", "Update the home currency to a different one");
         commandInfo.put("/pair", "Show the default currency pair for exchange rate queries");
         commandInfo.put("/chpair", "Modify the default currency pair for exchange rate queries");
-        commandInfo.put("/rate", "Fetch the current exchange rate for a specified currency pair (optional) and amount (optional)");
+        commandInfo.put("/rate", "Fetch the current exchange rate for a specified currency pair (optional) and amount (optional), or convert into several currencies at once");
+        commandInfo.put("/fav", "Show your favourite currencies");
+        commandInfo.put("/chfav", "Change your favourite currencies (converted into with '/rate fav')");
         commandInfo.put("/history", "Retrieve exchange rate requests history for a specified period (optional) and a currency/pair (optional)");
+        commandInfo.put("/alert", "Get notified when the exchange rate of a pair crosses the given value");
+        commandInfo.put("/alerts", "Show your rate alerts");
+        commandInfo.put("/unalert", "Delete a rate alert");
+        commandInfo.put("/export", "Download your conversion history (for a period (optional)) as a CSV file, gz - compressed");
+        commandInfo.put("/digest", "Subscribe to a daily or hourly digest of your default pair");
+        commandInfo.put("/portfolio", "Show your currency holdings valued in your home currency, add to or remove from them");
+    }
+
+    public String getName() {
+        return name;
     }
 
     @Override
@@ -68,17 +143,70 @@ public class MyBot extends TelegramWebhookBot {
         return "/";
     }
 
+    // Handles an update and sends the reply (if any), traced as one request
+    public SendMessage processUpdate(Update update) throws TelegramApiException {
+        tracer.startTrace(update.getUpdateId(), traceUser(update), traceCommand(update));
+        try {
+            SendMessage reply = onWebhookUpdateReceived(update);
+            if (reply != null) {
+                Tracer.Span span = tracer.span("send");
+                try {
+                    execute(reply);
+                } finally {
+                    span.close();
+                }
+            }
+            return reply;
+        } catch (TelegramApiException | RuntimeException e) {
+            tracer.currentTrace().fail(e.getClass().getSimpleName() + ": " + e.getMessage());
+            throw e;
+        } finally {
+            tracer.finishTrace();
+        }
+    }
+
+    private static String traceUser(Update update) {
+        if (update.hasMessage() && update.getMessage().getFrom() != null) {
+            return update.getMessage().getFrom().getUserName();
+        }
+        if (update.hasInlineQuery()) {
+            return update.getInlineQuery().getFrom().getUserName();
+        }
+        return null;
+    }
+
+    // Only known commands are used as trace names, so the per-command aggregates stay bounded
+    private String traceCommand(Update update) {
+        if (update.hasInlineQuery()) {
+            return "inline";
+        }
+        if (update.hasMessage() && update.getMessage().hasText()) {
+            String text = update.getMessage().getText();
+            if (!text.startsWith("/")) {
+                return "text";
+            }
+            int end = text.indexOf(' ');
+            String command = (end < 0 ? text : text.substring(0, end)).toLowerCase();
+            return commandUsageMap.containsKey(command) || commandInfo.containsKey(command) ? command : "unknown";
+        }
+        return "other";
+    }
+
     @Override
     public SendMessage onWebhookUpdateReceived(Update update) {
+        if (update.hasInlineQuery()) {
+            handleInlineQuery(update);
+            return null;
+        }
         if (update.hasMessage() && update.getMessage().hasText()) {
-            String tgUsername = update.getMessage().getFrom().getUserName();
+            String tgUsername = qualify(update.getMessage().getFrom().getUserName());
             String tgFirstName = update.getMessage().getFrom().getFirstName();
             String userInput = update.getMessage().getText();
             String[] inputParts = userInput.split(" ");
             String command = inputParts[0];
             String answerMessageText = "ERROR";
             try {
-                logger.info("User {} sended '{}'", tgUsername, userInput);
+                logger.debug("User {} sended '{}'", tgUsername, userInput);
                 switch (command.toLowerCase()) {
                     case "/start":
                         answerMessageText = String.format("Hi %s, I'm a currency converter bot!\nUse /help, to see what I can do!", tgFirstName);
@@ -87,10 +215,10 @@ public class MyBot extends TelegramWebhookBot {
                         answerMessageText = handleHelp(inputParts);
                         break;
                     case "/signup":
-                        answerMessageText = handleSignUp(tgUsername, inputParts);
+                        answerMessageText = handleSignUp(tgUsername, update.getMessage().getChatId(), inputParts);
                         break;
                     case "/login":
-                        answerMessageText = handleLogin(tgUsername, inputParts);
+                        answerMessageText = handleLogin(tgUsername, update.getMessage().getChatId(), inputParts);
                         break;
                     case "/logout":
                         answerMessageText = handleLogout(tgUsername);
@@ -108,23 +236,55 @@ public class MyBot extends TelegramWebhookBot {
                         answerMessageText = handleChangeDefaultPair(tgUsername, inputParts);
                         break;
                     case "/rate":
-                        answerMessageText = handleExchangeRate(tgUsername, inputParts);
+                        answerMessageText = handleExchangeRate(tgUsername, inputParts) + businessLogicService.getStaleRatesNote();
+                        break;
+                    case "/fav":
+                        answerMessageText = handleFavourites(tgUsername, inputParts);
+                        break;
+                    case "/chfav":
+                        answerMessageText = handleChangeFavourites(tgUsername, inputParts);
                         break;
                     case "/history":
                         answerMessageText = handleHistory(tgUsername, inputParts);
                         break;
+                    case "/alert":
+                        answerMessageText = handleAlert(tgUsername, update.getMessage().getChatId(), inputParts);
+                        break;
+                    case "/alerts":
+                        answerMessageText = handleAlerts(tgUsername, inputParts);
+                        break;
+                    case "/unalert":
+                        answerMessageText = handleUnalert(tgUsername, inputParts);
+                        break;
+                    case "/export":
+                        answerMessageText = handleExport(tgUsername, update.getMessage().getChatId(), inputParts);
+                        break;
+                    case "/digest":
+                        answerMessageText = handleDigest(tgUsername, update.getMessage().getChatId(), inputParts);
+                        break;
+                    case "/portfolio":
+                        answerMessageText = handlePortfolio(tgUsername, inputParts);
+                        break;
                     default:
-                        answerMessageText = "Unknown command!";
+                        answerMessageText = command.startsWith("/") ? "Unknown command!" : handleFreeTextConversion(tgUsername, userInput);
                 }
             } catch (SendToUserException e) {
                 answerMessageText = e.getMessage();
             } catch (SQLException e) {
                 logger.error(e.getMessage());
+                Trace trace = tracer.currentTrace();
+                if (trace != null) {
+                    trace.fail("SQLException: " + e.getMessage());
+                }
             } catch (IllegalArgumentException e) {
                 answerMessageText = "Date should be in this format: dd.MM.yyyy";
             }
 
-            logger.info("Answer to user {} for his message {}: {}", tgUsername, userInput, answerMessageText);
+            if (answerMessageText == null) {
+                // Answered when the password is hashed, see replyWhenDone
+                return null;
+            }
+            logger.debug("Answer to user {} for his message {}: {}", tgUsername, userInput, answerMessageText);
 
             SendMessage message = new SendMessage();
             message.setChatId(update.getMessage().getChatId().toString());
@@ -134,6 +294,14 @@ public class MyBot extends TelegramWebhookBot {
         return null;
     }
 
+    private void handleInlineQuery(Update update) {
+        try {
+            execute(inlineQueryHandler.handle(update.getInlineQuery()));
+        } catch (TelegramApiException e) {
+            logger.error("Failed to answer inline query: {}", e.getMessage());
+        }
+    }
+
     public String handleHelp(String[] inputParts) {
         if (inputParts.length == 1) {
             StringBuilder res = new StringBuilder();
@@ -150,30 +318,66 @@ public class MyBot extends TelegramWebhookBot {
         }
     }
 
-    private String handleSignUp(String tgUsername, String[] inputParts) throws SendToUserException, SQLException {
+    // null - answered by replyWhenDone
+    private String handleSignUp(String tgUsername, Long chatId, String[] inputParts) throws SendToUserException, SQLException {
         if (inputParts.length == 5) {
-            String username = inputParts[1];
+            String username = qualifyUsername(inputParts[1]);
             String password = inputParts[2];
             String defaultPairFrom = inputParts[3];
             String defaultPairTo = inputParts[4];
-            businessLogicService.signUp(tgUsername, username, password, defaultPairFrom, defaultPairTo);
-            return "Sign up successful!";
+            replyWhenDone(chatId, businessLogicService.signUp(name, tgUsername, username, password, defaultPairFrom, defaultPairTo), "Sign up successful!");
+            return null;
         } else {
             return "Usage: " + commandUsageMap.get(inputParts[0]);
         }
     }
 
-    private String handleLogin(String tgUsername, String[] inputParts) throws SQLException, SendToUserException {
+    // null - answered by replyWhenDone
+    private String handleLogin(String tgUsername, Long chatId, String[] inputParts) throws SQLException, SendToUserException {
         if (inputParts.length == 3) {
-            String username = inputParts[1];
+            String username = qualifyUsername(inputParts[1]);
             String password = inputParts[2];
-            businessLogicService.logIn(tgUsername, username, password);
-            return "Log in successful!";
+            replyWhenDone(chatId, businessLogicService.logIn(tgUsername, username, password), "Log in successful!");
+            return null;
         } else {
             return "Usage: " + commandUsageMap.get(inputParts[0]);
         }
     }
 
+    // Sends 'success' or the SendToUserException message once 'done' completes, on commandExecutor (not on the
+    // hashing pool or the timeout timer that may complete it)
+    private void replyWhenDone(Long chatId, CompletableFuture<Void> done, String success) {
+        done.whenCompleteAsync((ignored, failure) -> {
+            String text = success;
+            if (failure != null) {
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                if (cause instanceof SendToUserException) {
+                    text = cause.getMessage();
+                } else {
+                    logger.error("Failed to answer chat {}: {}", chatId, cause.getMessage());
+                    text = "ERROR";
+                }
+            }
+            try {
+                execute(new SendMessage(chatId.toString(), text));
+            } catch (TelegramApiException e) {
+                logger.error("Failed to send a reply to chat {}: {}", chatId, e.getMessage());
+            }
+        }, commandExecutor);
+    }
+
+    // ':' separates the namespace, so a user of one bot can't name an account of another
+    private String qualifyUsername(String username) throws SendToUserException {
+        if (username.indexOf(':') >= 0) {
+            throw new SendToUserException("Username can't contain ':'");
+        }
+        return qualify(username);
+    }
+
+    private String qualify(String username) {
+        return username == null || namespacePrefix.isEmpty() ? username : namespacePrefix + username;
+    }
+
     private String handleLogout(String tgUsername) throws SendToUserException, SQLException {
         businessLogicService.logOut(tgUsername);
         return "Log out successful!";
@@ -217,27 +421,94 @@ public class MyBot extends TelegramWebhookBot {
     }
 
     private String handleExchangeRate(String tgUsername, String[] inputParts) throws SendToUserException, SQLException {
+        for (int i = 1; i < inputParts.length; i++) {
+            if (isTargetList(inputParts[i])) {
+                return handleMultiExchangeRate(tgUsername, inputParts, i);
+            }
+        }
         if (inputParts.length == 4) {
-            String convResult = businessLogicService.getExchangeRate(tgUsername, inputParts[1], inputParts[2], inputParts[3]);
-            return inputParts[3] + " " + inputParts[1] + " = " + convResult + " " + inputParts[2];
-
+            return replyCache.reply(inputParts[3], businessLogicService.getExchangeRate(tgUsername, inputParts[1], inputParts[2], inputParts[3]));
         } else if (inputParts.length == 3 && InputValidator.isNumeric(inputParts[2])) {
-            String convResult = businessLogicService.getExchangeRate(tgUsername, null, inputParts[1], inputParts[2]);
-            return inputParts[2] + " " + businessLogicService.getHomeCurrency(tgUsername) + " = " + convResult + " " + inputParts[1];
-
+            return replyCache.reply(inputParts[2], businessLogicService.getExchangeRate(tgUsername, null, inputParts[1], inputParts[2]));
         } else if (inputParts.length == 3 && InputValidator.isCurrency(inputParts[2])) {
-            String convResult = businessLogicService.getExchangeRate(tgUsername, inputParts[1], inputParts[2], null);
-            return "1.00 " + inputParts[1] + " = " + convResult + " " + inputParts[2];
-
+            return replyCache.reply(null, businessLogicService.getExchangeRate(tgUsername, inputParts[1], inputParts[2], null));
         } else if (inputParts.length == 2 && InputValidator.isNumeric(inputParts[1])) {
-            String convResult = businessLogicService.getExchangeRate(tgUsername, null, null, inputParts[1]);
-            return inputParts[1] + " " + businessLogicService.getHomeCurrency(tgUsername) + " = " + convResult + " " + businessLogicService.getDefaultToCurrency(tgUsername);
+            return replyCache.reply(inputParts[1], businessLogicService.getExchangeRate(tgUsername, null, null, inputParts[1]));
         } else if (inputParts.length == 2 && InputValidator.isCurrency(inputParts[1])) {
-            String convResult = businessLogicService.getExchangeRate(tgUsername, null, inputParts[1], null);
-            return "1.00 " + businessLogicService.getHomeCurrency(tgUsername) + " = " + convResult + " " + inputParts[1];
+            return replyCache.reply(null, businessLogicService.getExchangeRate(tgUsername, null, inputParts[1], null));
         } else if (inputParts.length == 1) {
-            String convResult = businessLogicService.getExchangeRate(tgUsername, null, null, null);
-            return "1.00 " + businessLogicService.getHomeCurrency(tgUsername) + " = " + convResult + " " + businessLogicService.getDefaultToCurrency(tgUsername);
+            return replyCache.reply(null, businessLogicService.getExchangeRate(tgUsername, null, null, null));
+        } else {
+            return "Usage: " + commandUsageMap.get(inputParts[0]);
+        }
+    }
+
+    // Plain messages like "100 dollars to euro" or "50€ в рублях", converted like /rate
+    private String handleFreeTextConversion(String tgUsername, String userInput) throws SendToUserException, SQLException {
+        FreeTextConversion conversion = FreeTextConversionParser.parse(userInput);
+        if (conversion == null) {
+            return "Unknown command!";
+        }
+        String to = conversion.to();
+        if (to == null) {
+            to = businessLogicService.getHomeCurrency(tgUsername);
+            if (to.equals(conversion.from())) {
+                to = businessLogicService.getDefaultToCurrency(tgUsername);
+            }
+        }
+        return replyCache.reply(conversion.amount(), businessLogicService.getExchangeRate(tgUsername, conversion.from(), to, conversion.amount()))
+                + businessLogicService.getStaleRatesNote();
+    }
+
+    private static boolean isTargetList(String part) {
+        return part.indexOf(',') >= 0 || part.equalsIgnoreCase(BusinessLogicService.FAVOURITES_KEYWORD);
+    }
+
+    // /rate <from> <targets> <amount>, /rate <amount> <from> <targets>, /rate <from> <targets>,
+    // /rate <targets> <amount>, /rate <targets> - targets are at inputParts[targetsIndex]
+    private String handleMultiExchangeRate(String tgUsername, String[] inputParts, int targetsIndex) throws SendToUserException, SQLException {
+        String targets = inputParts[targetsIndex];
+        BusinessLogicService.MultiConversion conversion;
+        if (inputParts.length == 4 && targetsIndex == 2 && InputValidator.isCurrency(inputParts[1]) && InputValidator.isNumeric(inputParts[3])) {
+            conversion = businessLogicService.getExchangeRates(tgUsername, inputParts[1], targets, inputParts[3]);
+        } else if (inputParts.length == 4 && targetsIndex == 3 && InputValidator.isNumeric(inputParts[1]) && InputValidator.isCurrency(inputParts[2])) {
+            conversion = businessLogicService.getExchangeRates(tgUsername, inputParts[2], targets, inputParts[1]);
+        } else if (inputParts.length == 3 && targetsIndex == 2 && InputValidator.isCurrency(inputParts[1])) {
+            conversion = businessLogicService.getExchangeRates(tgUsername, inputParts[1], targets, null);
+        } else if (inputParts.length == 3 && targetsIndex == 1 && InputValidator.isNumeric(inputParts[2])) {
+            conversion = businessLogicService.getExchangeRates(tgUsername, null, targets, inputParts[2]);
+        } else if (inputParts.length == 2) {
+            conversion = businessLogicService.getExchangeRates(tgUsername, null, targets, null);
+        } else {
+            return "Usage: " + commandUsageMap.get(inputParts[0]);
+        }
+
+        StringBuilder sb = new StringBuilder(32 + conversion.targets().size() * 24);
+        sb.append(String.format(Locale.US, "%.2f", conversion.amount())).append(' ').append(conversion.from()).append(" =");
+        for (int i = 0; i < conversion.results().length; i++) {
+            sb.append('\n');
+            if (Double.isNaN(conversion.results()[i])) {
+                sb.append(conversion.targets().get(i)).append(": not available right now");
+            } else {
+                sb.append(String.format(Locale.US, "%.2f", conversion.results()[i])).append(' ').append(conversion.targets().get(i));
+            }
+        }
+        return sb.toString();
+    }
+
+    private String handleFavourites(String tgUsername, String[] inputParts) throws SendToUserException, SQLException {
+        if (inputParts.length == 1) {
+            List<String> favourites = businessLogicService.getFavouriteCurrencies(tgUsername);
+            return favourites.isEmpty() ? "You have no favourite currencies" : "Your favourite currencies: " + String.join(", ", favourites);
+        } else {
+            return "Usage: " + commandUsageMap.get(inputParts[0]);
+        }
+    }
+
+    private String handleChangeFavourites(String tgUsername, String[] inputParts) throws SendToUserException, SQLException {
+        if (inputParts.length == 2) {
+            businessLogicService.chFavouriteCurrencies(tgUsername, inputParts[1]);
+            return "Your favourite currencies have been successfully changed";
         } else {
             return "Usage: " + commandUsageMap.get(inputParts[0]);
         }
@@ -263,6 +534,128 @@ public class MyBot extends TelegramWebhookBot {
         }
     }
 
+    private String handleAlert(String tgUsername, Long chatId, String[] inputParts) throws SendToUserException, SQLException {
+        if (inputParts.length == 5 && InputValidator.isCurrency(inputParts[1]) && InputValidator.isCurrency(inputParts[2])
+                && InputValidator.isNumeric(inputParts[4])) {
+            boolean alreadyMet = alertService.createAlert(name, tgUsername, chatId, inputParts[1], inputParts[2], inputParts[3], inputParts[4]);
+            return alreadyMet
+                    ? "Alert created. The condition already holds, you will be notified on the next crossing."
+                    : "Alert created. You will be notified when " + inputParts[1].toUpperCase() + "-" + inputParts[2].toUpperCase() + " " + inputParts[3] + " " + inputParts[4];
+        } else {
+            return "Usage: " + commandUsageMap.get(inputParts[0]);
+        }
+    }
+
+    private String handleAlerts(String tgUsername, String[] inputParts) throws SendToUserException, SQLException {
+        if (inputParts.length == 1) {
+            List<String> alerts = alertService.getAlerts(tgUsername);
+            return alerts.isEmpty() ? "You have no rate alerts." : "Your rate alerts:\n" + String.join("\n", alerts);
+        } else {
+            return "Usage: " + commandUsageMap.get(inputParts[0]);
+        }
+    }
+
+    private String handleUnalert(String tgUsername, String[] inputParts) throws SendToUserException, SQLException {
+        if (inputParts.length == 2 && inputParts[1].matches("\\d+")) {
+            long alertId;
+            try {
+                alertId = Long.parseLong(inputParts[1]);
+            } catch (NumberFormatException e) {
+                // more digits than a long has
+                return "Usage: " + commandUsageMap.get(inputParts[0]);
+            }
+            alertService.deleteAlert(tgUsername, alertId);
+            return "Alert #" + inputParts[1] + " deleted";
+        } else {
+            return "Usage: " + commandUsageMap.get(inputParts[0]);
+        }
+    }
+
+    private String handleExport(String tgUsername, Long chatId, String[] inputParts) throws SendToUserException, SQLException {
+        boolean gzip = inputParts.length > 1 && inputParts[inputParts.length - 1].equalsIgnoreCase("gz");
+        int argsCount = gzip ? inputParts.length - 1 : inputParts.length;
+        LocalDate startDate = null;
+        LocalDate endDate = null;
+        if (argsCount == 3 && InputValidator.isDate(inputParts[1]) && InputValidator.isDate(inputParts[2])) {
+            try {
+                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd.MM.yyyy");
+                startDate = LocalDate.parse(inputParts[1], formatter);
+                endDate = LocalDate.parse(inputParts[2], formatter);
+            } catch (DateTimeParseException e) {
+                return "Date should be in this format: dd.MM.yyyy";
+            }
+            if (startDate.isAfter(endDate)) {
+                return "The period is invalid the start date cannot be after the end date!";
+            }
+        } else if (argsCount != 1) {
+            return "Usage: " + commandUsageMap.get(inputParts[0]);
+        }
+
+        Long userId = exportService.getExportingUserId(tgUsername);
+        LocalDate from = startDate;
+        LocalDate to = endDate;
+        try {
+            exportExecutor.execute(() -> sendExport(chatId, userId, from, to, gzip));
+        } catch (RejectedExecutionException e) {
+            logger.info("Export for user {} rejected: too many exports in progress", tgUsername);
+            return "Too many exports are in progress, please try again later";
+        }
+        return "Preparing your export...";
+    }
+
+    private void sendExport(Long chatId, Long userId, LocalDate startDate, LocalDate endDate, boolean gzip) {
+        Path file = null;
+        try {
+            file = exportService.exportConversionHistory(userId, startDate, endDate, gzip);
+            execute(new SendDocument(chatId.toString(), new InputFile(file.toFile(), gzip ? "conversion_history.csv.gz" : "conversion_history.csv")));
+        } catch (IOException | TelegramApiException | RuntimeException e) {
+            logger.error("Failed to export conversion history for user {}: {}", userId, e.getMessage());
+            try {
+                execute(new SendMessage(chatId.toString(), "Failed to export your conversion history, please try again later"));
+            } catch (TelegramApiException ignored) {
+                // Nothing more we can do for this chat
+            }
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    logger.warn("Failed to delete export file {}", file);
+                }
+            }
+        }
+    }
+
+    private String handleDigest(String tgUsername, Long chatId, String[] inputParts) throws SendToUserException, SQLException {
+        if (inputParts.length == 1) {
+            String subscription = digestService.getSubscription(tgUsername);
+            return subscription == null ? "You are not subscribed to a digest." : "You receive a digest " + subscription;
+        } else if (inputParts.length == 2 && inputParts[1].equalsIgnoreCase("off")) {
+            digestService.unsubscribe(tgUsername);
+            return "Digest subscription cancelled";
+        } else if (inputParts.length == 3 && inputParts[1].equalsIgnoreCase("daily") && inputParts[2].matches("([01]\\d|2[0-3]):[0-5]\\d")) {
+            int atMinute = Integer.parseInt(inputParts[2].substring(0, 2)) * 60 + Integer.parseInt(inputParts[2].substring(3));
+            return "Subscribed to a daily digest, the next one at " + digestService.subscribe(tgUsername, chatId, DigestService.DAILY, atMinute);
+        } else if (inputParts.length == 3 && inputParts[1].equalsIgnoreCase("hourly") && inputParts[2].matches("[0-5]?\\d")) {
+            return "Subscribed to an hourly digest, the next one at " + digestService.subscribe(tgUsername, chatId, DigestService.HOURLY, Integer.parseInt(inputParts[2]));
+        } else {
+            return "Usage: " + commandUsageMap.get(inputParts[0]);
+        }
+    }
+
+    private String handlePortfolio(String tgUsername, String[] inputParts) throws SendToUserException, SQLException {
+        if (inputParts.length == 1) {
+            return portfolioService.getPortfolio(tgUsername);
+        } else if (inputParts.length == 4 && (inputParts[1].equalsIgnoreCase("add") || inputParts[1].equalsIgnoreCase("remove"))
+                && InputValidator.isNumeric(inputParts[2]) && InputValidator.isCurrency(inputParts[3])) {
+            boolean add = inputParts[1].equalsIgnoreCase("add");
+            double amount = portfolioService.addHolding(tgUsername, add ? inputParts[2] : "-" + inputParts[2], inputParts[3]);
+            return "You now hold " + PortfolioService.formatAmount(amount) + " " + inputParts[3].toUpperCase();
+        } else {
+            return "Usage: " + commandUsageMap.get(inputParts[0]);
+        }
+    }
+
     public Map<String, String> getCommandUsageMap() {
         return commandUsageMap;
     }
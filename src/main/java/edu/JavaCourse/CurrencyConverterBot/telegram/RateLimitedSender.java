@@ -0,0 +1,105 @@
+package edu.JavaCourse.CurrencyConverterBot.telegram;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Outbound queues for bot-initiated messages (alerts, digests). Telegram allows about 30 messages per second
+// per bot token, so every bot has its own queue and sender thread paced to a fixed rate instead of sending in bursts:
+// the bots of a process don't share one budget, and a backlog of one bot doesn't hold up the others.
+public class RateLimitedSender {
+    private static final int QUEUE_CAPACITY = 100_000;
+
+    private final long intervalNanos;
+    private final Map<String, Lane> lanes = new LinkedHashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(RateLimitedSender.class);
+
+    private volatile boolean running;
+
+    public RateLimitedSender(BotRegistry botRegistry, int messagesPerSecond) {
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+        for (MyBot bot : botRegistry.getBots()) {
+            lanes.put(bot.getName(), new Lane(bot));
+        }
+    }
+
+    public void start() {
+        running = true;
+        for (Lane lane : lanes.values()) {
+            lane.thread = new Thread(lane::sendLoop, "rate-limited-sender-" + lane.bot.getName());
+            lane.thread.setDaemon(true);
+            lane.thread.start();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        for (Lane lane : lanes.values()) {
+            if (lane.thread != null) {
+                lane.thread.interrupt();
+            }
+        }
+    }
+
+    // Returns false if the bot's queue is full
+    public boolean send(String bot, SendMessage message) {
+        return send(bot, message, null);
+    }
+
+    // 'onSent' runs on the sender thread once Telegram has accepted the message, not if sending fails
+    public boolean send(String bot, SendMessage message, Runnable onSent) {
+        Lane lane = lanes.get(bot);
+        if (lane == null) {
+            logger.warn("Bot '{}' is not configured, message to chat {} dropped", bot, message.getChatId());
+            return true;
+        }
+        boolean queued = lane.queue.offer(new Outbound(message, onSent));
+        if (!queued) {
+            logger.warn("Outbound queue of bot {} is full, message to chat {} dropped", bot, message.getChatId());
+        }
+        return queued;
+    }
+
+    private class Lane {
+        private final MyBot bot;
+        private final BlockingQueue<Outbound> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        private Thread thread;
+
+        Lane(MyBot bot) {
+            this.bot = bot;
+        }
+
+        private void sendLoop() {
+            long nextSendAt = System.nanoTime();
+            while (running) {
+                try {
+                    Outbound outbound = queue.take();
+                    long wait = nextSendAt - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    nextSendAt = Math.max(System.nanoTime(), nextSendAt) + intervalNanos;
+                    bot.execute(outbound.message);
+                    if (outbound.onSent != null) {
+                        outbound.onSent.run();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (TelegramApiException e) {
+                    logger.error("Failed to send message through bot {}: {}", bot.getName(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    private record Outbound(SendMessage message, Runnable onSent) {
+    }
+}
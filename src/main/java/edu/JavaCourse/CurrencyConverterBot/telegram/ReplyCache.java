@@ -0,0 +1,90 @@
+package edu.JavaCourse.CurrencyConverterBot.telegram;
+
+import edu.JavaCourse.CurrencyConverterBot.businessLogicService.BusinessLogicService;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+// Rendered /rate replies, keyed by pair and amount as typed and scoped to the version of the rate snapshot they were
+// rendered from. A conversion from a newer snapshot starts a new generation and the old replies are dropped with it,
+// so nothing has to be invalidated on a refresh and a stale reply can't be served.
+//
+// One-off amounts would only push the popular ones out, so a reply is cached the second time its key is seen within
+// a window of doorkeeperWindow lookups (the Doorkeeper survives generations); a full generation takes no more replies
+// until the next refresh.
+public class ReplyCache {
+    // bytes per entry besides the strings: map node, key record, table slot
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private record Key(int fromOrdinal, int toOrdinal, String amount) {
+    }
+
+    private record Generation(long version, ConcurrentHashMap<Key, String> replies, AtomicInteger chars) {
+    }
+
+    private final int maxEntries;
+    private final AtomicReference<Generation> generation = new AtomicReference<>(new Generation(-1, new ConcurrentHashMap<>(), new AtomicInteger()));
+    private final Doorkeeper doorkeeper;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ReplyCache(int maxEntries, int doorkeeperWindow) {
+        this.maxEntries = maxEntries;
+        this.doorkeeper = new Doorkeeper(doorkeeperWindow);
+    }
+
+    // 'amountText' - the amount as the user typed it, null - no amount (1.00)
+    public String reply(String amountText, BusinessLogicService.Conversion conversion) {
+        Key key = new Key(conversion.fromOrdinal(), conversion.toOrdinal(), amountText == null ? "1.00" : amountText);
+        Generation current = generationFor(conversion.ratesVersion());
+        if (current != null) {
+            String cached = current.replies().get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+        }
+        misses.increment();
+        String reply = key.amount() + " " + conversion.from() + " = "
+                + String.format(Locale.US, "%.2f", conversion.amount() * conversion.rate()) + " " + conversion.to();
+        if (current != null && current.replies().size() < maxEntries && doorkeeper.admit(key)
+                && current.replies().putIfAbsent(key, reply) == null) {
+            current.chars().addAndGet(key.amount().length() + reply.length());
+        }
+        return reply;
+    }
+
+    // Logged by the Tracer every report period; null while nothing was looked up
+    public String report() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        if (lookups == 0) {
+            return null;
+        }
+        Generation current = generation.get();
+        int entries = current.replies().size();
+        long bytes = (long) entries * ENTRY_OVERHEAD + 2L * current.chars().get();
+        return String.format(Locale.US, "reply cache: %d lookups, hit rate %.1f%%, %d entries, ~%d KB, rates version %d",
+                lookups, hitCount * 100.0 / lookups, entries, bytes / 1024, current.version());
+    }
+
+    // The generation of the version, started if the version is newer; null if the conversion used older rates
+    private Generation generationFor(long version) {
+        while (true) {
+            Generation current = generation.get();
+            if (current.version() == version) {
+                return current;
+            }
+            if (current.version() > version) {
+                return null;
+            }
+            Generation next = new Generation(version, new ConcurrentHashMap<>(), new AtomicInteger());
+            if (generation.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package edu.JavaCourse.CurrencyConverterBot.tracing;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+// One handled update: who sent which command, how long it took, and a flat list of timed child spans
+// (database calls, the reply send). Spans are kept in primitive arrays, a trace is only turned into
+// text when it is selected for full logging.
+public class Trace {
+    private final long updateId;
+    private final String user;
+    private final String command;
+    private final long startNanos = System.nanoTime();
+    private String[] spanNames = new String[8];
+    private long[] spanStarts = new long[8];
+    private long[] spanDurations = new long[8];
+    private int spanCount;
+    private String failure;
+
+    Trace(long updateId, String user, String command) {
+        this.updateId = updateId;
+        this.user = user;
+        this.command = command;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    // The first failure is kept
+    public void fail(String reason) {
+        if (failure == null) {
+            failure = reason;
+        }
+    }
+
+    void addSpan(String name, long start, long duration) {
+        if (spanCount == spanNames.length) {
+            spanNames = Arrays.copyOf(spanNames, spanCount * 2);
+            spanStarts = Arrays.copyOf(spanStarts, spanCount * 2);
+            spanDurations = Arrays.copyOf(spanDurations, spanCount * 2);
+        }
+        spanNames[spanCount] = name;
+        spanStarts[spanCount] = start;
+        spanDurations[spanCount] = duration;
+        spanCount++;
+    }
+
+    String render(long durationNanos) {
+        StringBuilder sb = new StringBuilder(64 + spanCount * 40);
+        sb.append(String.format(Locale.US, "update %d user %s %s: %.1f ms", updateId, user, command, durationNanos / 1e6));
+        if (failure != null) {
+            sb.append(" FAILED(").append(failure).append(')');
+        }
+        for (int i = 0; i < spanCount; i++) {
+            sb.append(String.format(Locale.US, "\n  +%.1f ms %s %.1f ms", (spanStarts[i] - startNanos) / 1e6, spanNames[i], spanDurations[i] / 1e6));
+        }
+        return sb.toString();
+    }
+}
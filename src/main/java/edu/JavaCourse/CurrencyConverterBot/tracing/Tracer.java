@@ -0,0 +1,173 @@
+package edu.JavaCourse.CurrencyConverterBot.tracing;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.ProxyFactory;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+// Per-update tracing. A trace lives in a thread local from start() to finish(), child spans are added with
+// span() or by the proxies made with traced(). Finished traces are sampled per command: slow and failed ones,
+// plus a random share of the rest (the command's rate from sampleRates), are logged in full; all of them feed the
+// per-command aggregates that are logged every reportPeriodSeconds, together with the lines of the added reporters.
+public class Tracer {
+    private final long slowNanos;
+    private final ToDoubleFunction<String> sampleRates;
+    private final long reportPeriodSeconds;
+    private final ThreadLocal<Trace> current = new ThreadLocal<>();
+    private final Map<String, CommandStats> stats = new ConcurrentHashMap<>();
+    private final List<Supplier<String>> reporters = new CopyOnWriteArrayList<>();
+    private final Logger logger = LoggerFactory.getLogger("trace");
+    private ScheduledExecutorService scheduler;
+
+    // sampleRates is asked once per command name (as passed to startTrace)
+    public Tracer(long slowMillis, ToDoubleFunction<String> sampleRates, long reportPeriodSeconds) {
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        this.sampleRates = sampleRates;
+        this.reportPeriodSeconds = reportPeriodSeconds;
+    }
+
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "trace-report"));
+        scheduler.scheduleAtFixedRate(this::report, reportPeriodSeconds, reportPeriodSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        report();
+    }
+
+    public Trace startTrace(long updateId, String user, String command) {
+        Trace trace = new Trace(updateId, user, command);
+        current.set(trace);
+        return trace;
+    }
+
+    public Trace currentTrace() {
+        return current.get();
+    }
+
+    public void finishTrace() {
+        Trace trace = current.get();
+        if (trace == null) {
+            return;
+        }
+        current.remove();
+        long duration = trace.elapsedNanos();
+        CommandStats commandStats = stats.computeIfAbsent(trace.getCommand(), command -> new CommandStats(sampleRates.applyAsDouble(command)));
+        commandStats.add(duration, trace.isFailed());
+        if (trace.isFailed() || duration >= slowNanos || ThreadLocalRandom.current().nextDouble() < commandStats.sampleRate) {
+            logger.info(trace.render(duration));
+        }
+    }
+
+    // 'reporter' is asked for a line every report period, e.g. cache statistics; null - nothing to report
+    public void addReporter(Supplier<String> reporter) {
+        reporters.add(reporter);
+    }
+
+    // Adds a span to the current trace when it is closed; a no-op outside of a trace
+    public Span span(String name) {
+        Trace trace = current.get();
+        return trace == null ? Span.NOOP : new Span(trace, name);
+    }
+
+    // Proxy of 'target' that records every public method call as a span named prefix + method name
+    @SuppressWarnings("unchecked")
+    public <T> T traced(T target, String prefix) {
+        ProxyFactory factory = new ProxyFactory(target);
+        factory.setProxyTargetClass(true);
+        factory.addAdvice((MethodInterceptor) invocation -> {
+            Trace trace = current.get();
+            if (trace == null) {
+                return invocation.proceed();
+            }
+            long start = System.nanoTime();
+            try {
+                return invocation.proceed();
+            } catch (Throwable e) {
+                trace.fail(prefix + invocation.getMethod().getName() + ": " + e.getClass().getSimpleName());
+                throw e;
+            } finally {
+                trace.addSpan(prefix + invocation.getMethod().getName(), start, System.nanoTime() - start);
+            }
+        });
+        return (T) factory.getProxy();
+    }
+
+    private void report() {
+        for (Map.Entry<String, CommandStats> entry : stats.entrySet()) {
+            CommandStats commandStats = entry.getValue();
+            long count = commandStats.count.sumThenReset();
+            long failed = commandStats.failed.sumThenReset();
+            long totalNanos = commandStats.totalNanos.sumThenReset();
+            long maxNanos = commandStats.maxNanos.getThenReset();
+            if (count > 0) {
+                logger.info(String.format(Locale.US, "%s: %d requests, %d failed, avg %.1f ms, max %.1f ms",
+                        entry.getKey(), count, failed, totalNanos / 1e6 / count, maxNanos / 1e6));
+            }
+        }
+        for (Supplier<String> reporter : reporters) {
+            String line = reporter.get();
+            if (line != null) {
+                logger.info(line);
+            }
+        }
+    }
+
+    public static class Span implements AutoCloseable {
+        private static final Span NOOP = new Span(null, null);
+
+        private final Trace trace;
+        private final String name;
+        private final long start = System.nanoTime();
+
+        private Span(Trace trace, String name) {
+            this.trace = trace;
+            this.name = name;
+        }
+
+        @Override
+        public void close() {
+            if (trace != null) {
+                trace.addSpan(name, start, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static class CommandStats {
+        private final double sampleRate;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        CommandStats(double sampleRate) {
+            this.sampleRate = sampleRate;
+        }
+
+        void add(long durationNanos, boolean isFailed) {
+            count.increment();
+            if (isFailed) {
+                failed.increment();
+            }
+            totalNanos.add(durationNanos);
+            maxNanos.accumulate(durationNanos);
+        }
+    }
+}
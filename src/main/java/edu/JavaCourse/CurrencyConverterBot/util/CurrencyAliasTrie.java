@@ -0,0 +1,180 @@
+package edu.JavaCourse.CurrencyConverterBot.util;
+
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+// Immutable trie of currency codes, symbols and aliases ("dollars", "€", "рублях", ...), matched case-insensitively
+// against a text at a given position; a bare code typed in lower case is flagged in the match (see isLowerCaseCode),
+// since "try", "all" or "top" are words far more often than currencies. Built once; the nodes are flattened into arrays, each node's edges are a sorted
+// range of edgeChars, so a lookup is a walk over the text with a binary search per character and allocates nothing.
+// An alias is either exact (the next character must not be a letter) or a stem, which also swallows the letters
+// following it, so "рубл" matches "рубль", "рублей" and "рублях".
+public final class CurrencyAliasTrie {
+    public static final long NO_MATCH = -1;
+    private static final long LOWER_CASE_CODE = 1L << 16;
+    private static final long ORDINAL_MASK = LOWER_CASE_CODE - 1;
+
+    private final int[] edgeStart;
+    private final char[] edgeChars;
+    private final int[] edgeTargets;
+    // ordinal + 1 of the currency a node accepts (0 - none)
+    private final short[] currencies;
+    private final boolean[] stems;
+    private final boolean[] codes;
+
+    private CurrencyAliasTrie(Builder builder) {
+        int nodeCount = builder.nodes.size();
+        edgeStart = new int[nodeCount + 1];
+        int edgeCount = 0;
+        for (BuilderNode node : builder.nodes) {
+            edgeCount += node.edges.size();
+        }
+        edgeChars = new char[edgeCount];
+        edgeTargets = new int[edgeCount];
+        currencies = new short[nodeCount];
+        stems = new boolean[nodeCount];
+        codes = new boolean[nodeCount];
+
+        int edge = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            BuilderNode node = builder.nodes.get(i);
+            edgeStart[i] = edge;
+            for (var entry : node.edges.entrySet()) {
+                edgeChars[edge] = entry.getKey();
+                edgeTargets[edge] = entry.getValue();
+                edge++;
+            }
+            currencies[i] = node.currency;
+            stems[i] = node.stem;
+            codes[i] = node.code;
+        }
+        edgeStart[nodeCount] = edge;
+    }
+
+    // The longest alias starting at text[start], packed as (end << 32) | lower-case code flag | ordinal, or NO_MATCH
+    public long match(CharSequence text, int start) {
+        int node = 0;
+        long best = NO_MATCH;
+        boolean upperCase = true;
+        int length = text.length();
+        for (int i = start; i < length; i++) {
+            char c = text.charAt(i);
+            node = child(node, Character.toLowerCase(c));
+            if (node < 0) {
+                break;
+            }
+            upperCase &= Character.isUpperCase(c);
+            if (currencies[node] != 0) {
+                int end = i + 1;
+                if (stems[node]) {
+                    while (end < length && Character.isLetter(text.charAt(end))) {
+                        end++;
+                    }
+                    best = ((long) end << 32) | (currencies[node] - 1);
+                } else if (end == length || !Character.isLetter(text.charAt(end)) || !Character.isLetter(text.charAt(i))) {
+                    best = ((long) end << 32) | (codes[node] && !upperCase ? LOWER_CASE_CODE : 0) | (currencies[node] - 1);
+                }
+            }
+        }
+        return best;
+    }
+
+    public static int matchEnd(long match) {
+        return (int) (match >>> 32);
+    }
+
+    public static int matchOrdinal(long match) {
+        return (int) (match & ORDINAL_MASK);
+    }
+
+    // The match is a bare currency code not typed in upper case ("usd", "Try")
+    public static boolean isLowerCaseCode(long match) {
+        return (match & LOWER_CASE_CODE) != 0;
+    }
+
+    private int child(int node, char c) {
+        int index = Arrays.binarySearch(edgeChars, edgeStart[node], edgeStart[node + 1], c);
+        return index >= 0 ? edgeTargets[index] : -1;
+    }
+
+    // All currency codes plus common symbols and English/Russian names
+    public static CurrencyAliasTrie withDefaultAliases() {
+        Builder builder = new Builder();
+        for (String code : Currencies.codes()) {
+            builder.code(code, code);
+        }
+        builder.exact("$", "USD").stem("dollar", "USD").stem("buck", "USD").stem("dólar", "USD").stem("dolar", "USD")
+                .stem("доллар", "USD").stem("бакс", "USD")
+                .exact("€", "EUR").stem("euro", "EUR").exact("евро", "EUR")
+                .exact("£", "GBP").stem("pound", "GBP").exact("quid", "GBP").stem("фунт", "GBP")
+                .exact("¥", "JPY").exact("yen", "JPY").stem("иен", "JPY").stem("йен", "JPY")
+                .exact("yuan", "CNY").exact("renminbi", "CNY").exact("rmb", "CNY").stem("юан", "CNY")
+                .exact("₽", "RUB").stem("ruble", "RUB").stem("rouble", "RUB").stem("рубл", "RUB").exact("руб", "RUB")
+                .exact("₴", "UAH").stem("hryvn", "UAH").stem("гривн", "UAH")
+                .exact("₸", "KZT").exact("tenge", "KZT").exact("тенге", "KZT")
+                .exact("₹", "INR").stem("rupee", "INR").stem("рупи", "INR")
+                .exact("₺", "TRY").exact("lira", "TRY").exact("liras", "TRY").exact("лира", "TRY").exact("лиры", "TRY").exact("лир", "TRY")
+                .exact("₪", "ILS").stem("shekel", "ILS").stem("шекел", "ILS")
+                .exact("₩", "KRW")
+                .exact("฿", "THB").exact("baht", "THB")
+                .exact("₿", "BTC").stem("bitcoin", "BTC").stem("биткоин", "BTC")
+                .stem("franc", "CHF").stem("франк", "CHF")
+                .stem("zlot", "PLN").stem("злот", "PLN")
+                .exact("лари", "GEL").stem("манат", "AZN");
+        return builder.build();
+    }
+
+    public static class Builder {
+        private final List<BuilderNode> nodes = new ArrayList<>(List.of(new BuilderNode()));
+
+        // A bare currency code, matched in any case but flagged unless typed in upper case
+        public Builder code(String code, String currency) {
+            return add(code, currency, false, true);
+        }
+
+        public Builder exact(String alias, String currency) {
+            return add(alias, currency, false, false);
+        }
+
+        public Builder stem(String alias, String currency) {
+            return add(alias, currency, true, false);
+        }
+
+        private Builder add(String alias, String currency, boolean stem, boolean code) {
+            int ordinal = Currencies.ordinal(currency);
+            if (ordinal < 0) {
+                throw new IllegalArgumentException("Unknown currency " + currency + " for alias " + alias);
+            }
+            int node = 0;
+            for (int i = 0; i < alias.length(); i++) {
+                char c = Character.toLowerCase(alias.charAt(i));
+                Integer next = nodes.get(node).edges.get(c);
+                if (next == null) {
+                    next = nodes.size();
+                    nodes.add(new BuilderNode());
+                    nodes.get(node).edges.put(c, next);
+                }
+                node = next;
+            }
+            nodes.get(node).currency = (short) (ordinal + 1);
+            nodes.get(node).stem = stem;
+            nodes.get(node).code = code;
+            return this;
+        }
+
+        public CurrencyAliasTrie build() {
+            return new CurrencyAliasTrie(this);
+        }
+    }
+
+    private static class BuilderNode {
+        private final TreeMap<Character, Integer> edges = new TreeMap<>();
+        private short currency;
+        private boolean stem;
+        private boolean code;
+    }
+}
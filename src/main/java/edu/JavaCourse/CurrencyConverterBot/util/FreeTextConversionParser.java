@@ -0,0 +1,171 @@
+package edu.JavaCourse.CurrencyConverterBot.util;
+
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+
+// Finds a conversion request in a plain message: "100 dollars to euro", "50€ в рублях", "usd eur 20".
+// One pass over the text: numbers are read in place, words and symbols are looked up in the alias trie, everything
+// else ("to", "in", "в", punctuation) is skipped. The first number is the amount, the first two currencies are the
+// pair. A message without an amount or a currency is not a conversion - this runs on every non-command message
+// and chat text mentions "all" or "try" far more often than it asks for a rate. For the same reason a bare code only
+// counts in upper case ("TRY") or, in a message of nothing but the amount, currencies and connecting words, next to the
+// amount: right before or after a number, or chained to such a currency ("100 usd to eur", "usd eur 20"), while
+// "let's try 5 times" is not a conversion. The word aliases match in any case.
+public final class FreeTextConversionParser {
+    private static final CurrencyAliasTrie ALIASES = CurrencyAliasTrie.withDefaultAliases();
+    // Words between the amount's currencies: "100 usd to eur", "100 usd в rub"
+    private static final String[] CONNECTORS = {"to", "in", "into", "в", "во", "на"};
+
+    private FreeTextConversionParser() {
+    }
+
+    // to is null when the message names one currency
+    public record FreeTextConversion(String amount, String from, String to) {
+    }
+
+    // null if the text is not a conversion request
+    public static FreeTextConversion parse(String text) {
+        return parse(text, true);
+    }
+
+    private static FreeTextConversion parse(String text, boolean lowerCaseCodes) {
+        int amountStart = -1;
+        int amountEnd = -1;
+        // index of the decimal separator of the amount, -1 - none
+        int amountFraction = -1;
+        boolean amountCanonical = true;
+        int from = -1;
+        int to = -1;
+        // the tokens since the last number are currencies and connecting words only
+        boolean afterNumber = false;
+        boolean lowerCaseCodeUsed = false;
+        // words that are neither currencies nor connecting words
+        boolean otherWords = false;
+
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (isDigit(c)) {
+                int start = i;
+                int fraction = -1;
+                boolean canonical = true;
+                i = skipDigits(text, i);
+                while (fraction < 0 && i + 1 < length && (text.charAt(i) == '.' || text.charAt(i) == ',') && isDigit(text.charAt(i + 1))) {
+                    int groupEnd = skipDigits(text, i + 1);
+                    // "1,000" groups thousands, "50,5" and "1.25" have a fraction
+                    if (text.charAt(i) == ',' && groupEnd - i - 1 == 3) {
+                        canonical = false;
+                    } else {
+                        fraction = i;
+                        canonical &= text.charAt(i) == '.';
+                    }
+                    i = groupEnd;
+                }
+                if (amountStart < 0) {
+                    amountStart = start;
+                    amountEnd = i;
+                    amountFraction = fraction;
+                    amountCanonical = canonical;
+                }
+                afterNumber = true;
+                continue;
+            }
+            if (!Character.isWhitespace(c)) {
+                long match = ALIASES.match(text, i);
+                if (match != CurrencyAliasTrie.NO_MATCH && CurrencyAliasTrie.isLowerCaseCode(match)) {
+                    if (lowerCaseCodes && (afterNumber || isNumberNext(text, CurrencyAliasTrie.matchEnd(match)))) {
+                        lowerCaseCodeUsed = true;
+                    } else {
+                        match = CurrencyAliasTrie.NO_MATCH;
+                    }
+                }
+                if (match != CurrencyAliasTrie.NO_MATCH) {
+                    int ordinal = CurrencyAliasTrie.matchOrdinal(match);
+                    if (from < 0) {
+                        from = ordinal;
+                    } else if (to < 0 && ordinal != from) {
+                        to = ordinal;
+                    }
+                    i = CurrencyAliasTrie.matchEnd(match);
+                    continue;
+                }
+                if (Character.isLetter(c)) {
+                    // Aliases only start at a word boundary
+                    int start = i;
+                    while (i < length && Character.isLetter(text.charAt(i))) {
+                        i++;
+                    }
+                    boolean connector = isConnector(text, start, i);
+                    afterNumber &= connector;
+                    otherWords |= !connector;
+                    continue;
+                }
+                afterNumber = false;
+            }
+            i++;
+        }
+
+        if (lowerCaseCodeUsed && otherWords) {
+            return parse(text, false);
+        }
+        if (amountStart < 0 || from < 0) {
+            return null;
+        }
+        return new FreeTextConversion(amountCanonical ? text.substring(amountStart, amountEnd) : amount(text, amountStart, amountEnd, amountFraction),
+                Currencies.code(from), to < 0 ? null : Currencies.code(to));
+    }
+
+    // The amount in the "123.45" form the /rate path expects
+    private static String amount(String text, int start, int end, int fraction) {
+        StringBuilder amount = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (isDigit(c)) {
+                amount.append(c);
+            } else if (i == fraction) {
+                amount.append('.');
+            }
+        }
+        return amount.toString();
+    }
+
+    // Only whitespace and currencies between 'from' and a number
+    private static boolean isNumberNext(String text, int from) {
+        while (true) {
+            while (from < text.length() && Character.isWhitespace(text.charAt(from))) {
+                from++;
+            }
+            if (from == text.length()) {
+                return false;
+            }
+            if (isDigit(text.charAt(from))) {
+                return true;
+            }
+            long match = ALIASES.match(text, from);
+            if (match == CurrencyAliasTrie.NO_MATCH) {
+                return false;
+            }
+            from = CurrencyAliasTrie.matchEnd(match);
+        }
+    }
+
+    private static boolean isConnector(String text, int start, int end) {
+        for (String connector : CONNECTORS) {
+            if (connector.length() == end - start && text.regionMatches(true, start, connector, 0, connector.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int skipDigits(String text, int i) {
+        while (i < text.length() && isDigit(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
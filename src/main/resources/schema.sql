@@ -14,6 +14,9 @@ CREATE TABLE IF NOT EXISTS users (
     FOREIGN KEY (default_pair_to_id) REFERENCES currency (id)
 );
 
+-- Bot the user signed up with (one process serves several bots, each with its own users), see BotRegistry
+ALTER TABLE users ADD COLUMN IF NOT EXISTS bot VARCHAR(32) DEFAULT 'main' NOT NULL;
+
 CREATE TABLE IF NOT EXISTS log_in_out (
     id SERIAL PRIMARY KEY,
     is_in BOOLEAN NOT NULL,
@@ -31,6 +34,74 @@ CREATE TABLE IF NOT EXISTS conversion_history (
     amount DECIMAL(14, 2) NOT NULL,
     rate DECIMAL(17, 8) NOT NULL,
     created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL,
+    partition_month INTEGER DEFAULT 0 NOT NULL,
     FOREIGN KEY (from_currency_id) REFERENCES currency (id),
     FOREIGN KEY (to_currency_id) REFERENCES currency (id)
-);
\ No newline at end of file
+);
+
+-- conversion_history is partitioned by month (yyyyMM) of created_at, see DatabaseService.partitionOf
+ALTER TABLE conversion_history ADD COLUMN IF NOT EXISTS partition_month INTEGER DEFAULT 0 NOT NULL;
+UPDATE conversion_history SET partition_month = YEAR(created_at) * 100 + MONTH(created_at) WHERE partition_month = 0;
+CREATE INDEX IF NOT EXISTS conversion_history_user_partition_idx ON conversion_history (user_id, partition_month, created_at);
+CREATE INDEX IF NOT EXISTS conversion_history_partition_idx ON conversion_history (partition_month);
+
+-- Partitions older than the retention window, moved to compressed files by HistoryArchiveService
+CREATE TABLE IF NOT EXISTS history_archive (
+    partition_month INTEGER NOT NULL,
+    part INTEGER NOT NULL,
+    file_path VARCHAR(1024) NOT NULL,
+    row_count BIGINT NOT NULL,
+    archived_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL,
+    PRIMARY KEY (partition_month, part)
+);
+CREATE TABLE IF NOT EXISTS rate_alert (
+    id SERIAL PRIMARY KEY,
+    user_id INTEGER NOT NULL,
+    chat_id BIGINT NOT NULL,
+    from_currency_id INTEGER NOT NULL,
+    to_currency_id INTEGER NOT NULL,
+    direction CHAR(1) NOT NULL,
+    threshold DECIMAL(17, 8) NOT NULL,
+    armed BOOLEAN DEFAULT TRUE NOT NULL,
+    created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL,
+    FOREIGN KEY (user_id) REFERENCES users (id),
+    FOREIGN KEY (from_currency_id) REFERENCES currency (id),
+    FOREIGN KEY (to_currency_id) REFERENCES currency (id)
+);
+
+CREATE INDEX IF NOT EXISTS rate_alert_user_idx ON rate_alert (user_id);
+
+CREATE TABLE IF NOT EXISTS digest_subscription (
+    user_id INTEGER PRIMARY KEY,
+    chat_id BIGINT NOT NULL,
+    period VARCHAR(6) NOT NULL,
+    at_minute INTEGER NOT NULL,
+    next_run_at TIMESTAMP NOT NULL,
+    FOREIGN KEY (user_id) REFERENCES users (id)
+);
+
+-- Written to the primary every second and read back from the read replica to measure its lag
+CREATE TABLE IF NOT EXISTS replication_heartbeat (
+    id INTEGER PRIMARY KEY,
+    beat_at BIGINT NOT NULL
+);
+
+-- Targets of '/rate ... fav'
+CREATE TABLE IF NOT EXISTS favourite_currency (
+    user_id INTEGER NOT NULL,
+    currency_id INTEGER NOT NULL,
+    position INTEGER NOT NULL,
+    PRIMARY KEY (user_id, currency_id),
+    FOREIGN KEY (user_id) REFERENCES users (id),
+    FOREIGN KEY (currency_id) REFERENCES currency (id)
+);
+
+-- /portfolio: one aggregate per user and currency, holdings of 0 are deleted
+CREATE TABLE IF NOT EXISTS portfolio_holding (
+    user_id INTEGER NOT NULL,
+    currency_id INTEGER NOT NULL,
+    amount DECIMAL(28, 8) NOT NULL,
+    PRIMARY KEY (user_id, currency_id),
+    FOREIGN KEY (user_id) REFERENCES users (id),
+    FOREIGN KEY (currency_id) REFERENCES currency (id)
+);
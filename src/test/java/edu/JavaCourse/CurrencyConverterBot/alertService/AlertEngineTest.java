@@ -0,0 +1,65 @@
+package edu.JavaCourse.CurrencyConverterBot.alertService;
+
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateSnapshot;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class AlertEngineTest extends TestCase {
+    private static final int USD = Currencies.ordinal("USD");
+    private static final int EUR = Currencies.ordinal("EUR");
+
+    private final AlertEngine engine = new AlertEngine(0.01);
+    private final List<AlertEngine.FiredAlert> fired = new ArrayList<>();
+    private final List<Long> rearmed = new ArrayList<>();
+
+    public void testCrossingFiresAndMovingBackPastTheBandRearms() {
+        engine.add(1, "main", 10, USD, EUR, AlertEngine.ABOVE, 1.0, true);
+        evaluate(usdEur(1, 0.95), usdEur(2, 1.02));
+        assertEquals(1, fired.size());
+
+        // back below the threshold, but not past threshold * (1 - h)
+        evaluate(usdEur(2, 1.02), usdEur(3, 0.995));
+        assertTrue(rearmed.isEmpty());
+        evaluate(usdEur(3, 0.995), usdEur(4, 0.98));
+        assertEquals(List.of(1L), rearmed);
+    }
+
+    public void testFirstSnapshotRearmsByLevel() {
+        // disarmed when the bot stopped, the rate fell back meanwhile
+        engine.add(1, "main", 10, USD, EUR, AlertEngine.ABOVE, 1.0, false);
+        engine.add(2, "main", 10, USD, EUR, AlertEngine.ABOVE, 0.97, false);
+        engine.add(3, "main", 10, USD, EUR, AlertEngine.BELOW, 0.9, false);
+        evaluate(null, usdEur(1, 0.98));
+        assertEquals(Set.of(1L, 3L), new HashSet<>(rearmed));
+        assertTrue("nothing fires without a previous rate", fired.isEmpty());
+
+        // re-armed, so the next crossing fires
+        evaluate(usdEur(1, 0.98), usdEur(2, 1.01));
+        assertEquals(1, fired.size());
+        assertEquals(1, fired.get(0).id());
+    }
+
+    public void testPairMissingFromThePreviousSnapshotRearmsByLevel() {
+        engine.add(1, "main", 10, USD, EUR, AlertEngine.BELOW, 0.9, false);
+        evaluate(new RateSnapshot(1, 1, RateSnapshot.emptyRates()), usdEur(2, 0.95));
+        assertEquals(List.of(1L), rearmed);
+    }
+
+    private void evaluate(RateSnapshot previous, RateSnapshot current) {
+        fired.clear();
+        rearmed.clear();
+        engine.evaluate(previous, current, fired, rearmed);
+    }
+
+    private static RateSnapshot usdEur(long version, double rate) {
+        double[] rates = RateSnapshot.emptyRates();
+        rates[USD] = 1;
+        rates[EUR] = rate;
+        return new RateSnapshot(version, version, rates);
+    }
+}
@@ -0,0 +1,98 @@
+package edu.JavaCourse.CurrencyConverterBot.benchmark;
+
+import edu.JavaCourse.CurrencyConverterBot.config.DatabaseConfig;
+import edu.JavaCourse.CurrencyConverterBot.dbService.HistoryShards;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Conversions logged per second by 16 concurrent users against conversion_history split over 1, 2 and 4 local H2
+// files (every shard is a separate database, so 1 is the group commit of one writer, not history on the primary):
+// mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=edu.JavaCourse.CurrencyConverterBot.benchmark.HistoryShardWriteBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(16)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HistoryShardWriteBenchmark {
+    private static final int USERS = 10_000;
+
+    @Param({"1", "2", "4"})
+    public int shardCount;
+
+    private Path dir;
+    private final List<HistoryShards.Shard> shards = new ArrayList<>();
+    private HistoryShards historyShards;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("history-shard-benchmark");
+        for (int i = 0; i < shardCount; i++) {
+            String url = "jdbc:h2:file:" + dir.resolve("history-" + i) + ";DB_CLOSE_DELAY=-1";
+            new DatabaseConfig(url, "sa", "", new DefaultResourceLoader()).initializeDatabase();
+            shards.add(new HistoryShards.Shard(url, new JdbcTemplate(new DriverManagerDataSource(url, "sa", ""))));
+        }
+        historyShards = new HistoryShards("jdbc:h2:mem:primary", shards);
+        historyShards.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        historyShards.stop();
+        for (HistoryShards.Shard shard : shards) {
+            shard.jdbcTemplate().execute("SHUTDOWN");
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    // One /rate: one row, returns once it is committed
+    @Benchmark
+    public void logConversion() {
+        long userId = ThreadLocalRandom.current().nextLong(1, USERS + 1);
+        LocalDateTime now = LocalDateTime.now();
+        historyShards.insert(userId, List.<Object[]>of(new Object[]{userId, 1L, 2L, BigDecimal.TEN, new BigDecimal("0.9"),
+                Timestamp.valueOf(now), now.getYear() * 100 + now.getMonthValue()}));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HistoryShardWriteBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,175 @@
+package edu.JavaCourse.CurrencyConverterBot.benchmark;
+
+import com.sun.net.httpserver.HttpServer;
+import edu.JavaCourse.CurrencyConverterBot.rateService.HedgedRateFetcher;
+import edu.JavaCourse.CurrencyConverterBot.rateService.HttpRateProvider;
+import edu.JavaCourse.CurrencyConverterBot.rateService.RateService;
+import edu.JavaCourse.CurrencyConverterBot.telegram.BotRegistry;
+import edu.JavaCourse.CurrencyConverterBot.telegram.InlineQueryHandler;
+import edu.JavaCourse.CurrencyConverterBot.telegram.MyBot;
+import edu.JavaCourse.CurrencyConverterBot.telegram.ReplyCache;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.InlineQuery;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// N bots served by one process (BotRegistry) against the same N bots as N single-bot processes: memory of the JVMs
+// (heap in use after a GC and resident set) and the requests the rates upstream gets. Every configuration runs in
+// fresh JVMs against a local fake rates API that reports new rates on every request; each bot then answers the
+// same inline query load. Not a JMH benchmark - the point is footprint, not throughput. Run with the test classpath:
+// mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt -Dmdep.includeScope=test
+// java -cp target/classes:target/test-classes:$(cat target/cp.txt) edu.JavaCourse.CurrencyConverterBot.benchmark.MultiBotFootprint 4 30
+public class MultiBotFootprint {
+    private static final int INLINE_QUERIES_PER_BOT = 20_000;
+    private static final String[] CODES = {"usd", "eur", "gbp", "rub", "cny", "jpy", "chf", "try", "inr", "btc"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("child")) {
+            runChild(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        int bots = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+        byte[] rates;
+        try (InputStream in = MultiBotFootprint.class.getResourceAsStream("/rates-mock.json")) {
+            rates = new String(in.readAllBytes(), StandardCharsets.UTF_8).replaceFirst("\"updated\":\\d+", "\"updated\":%d").getBytes(StandardCharsets.UTF_8);
+        }
+        AtomicInteger fetches = new AtomicInteger();
+        HttpServer upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        String template = new String(rates, StandardCharsets.UTF_8);
+        upstream.createContext("/rates", exchange -> {
+            byte[] body = String.format(Locale.ROOT, template, 1_700_000_000L + fetches.incrementAndGet()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        upstream.start();
+        String url = "http://127.0.0.1:" + upstream.getAddress().getPort() + "/rates";
+
+        try {
+            fetches.set(0);
+            long[] shared = sum(runChildren(url, 1, bots, seconds));
+            int sharedFetches = fetches.get();
+            fetches.set(0);
+            long[] separate = sum(runChildren(url, bots, 1, seconds));
+            int separateFetches = fetches.get();
+
+            System.out.printf("%d bots, %d s, rates refreshed every second%n", bots, seconds);
+            System.out.printf("%-22s %12s %12s %16s%n", "", "heap MB", "RSS MB", "upstream fetches");
+            System.out.printf("%-22s %12.1f %12.1f %16d%n", "1 process", shared[0] / 1e6, shared[1] / 1e6, sharedFetches);
+            System.out.printf("%-22s %12.1f %12.1f %16d%n", bots + " processes", separate[0] / 1e6, separate[1] / 1e6, separateFetches);
+        } finally {
+            upstream.stop(0);
+        }
+    }
+
+    // Starts 'processes' JVMs with 'botsPerProcess' bots each, returns their (heap, rss) lines
+    private static List<long[]> runChildren(String url, int processes, int botsPerProcess, int seconds) throws IOException, InterruptedException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> children = new ArrayList<>();
+        for (int i = 0; i < processes; i++) {
+            children.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), MultiBotFootprint.class.getName(),
+                    "child", url, String.valueOf(botsPerProcess), String.valueOf(seconds))
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start());
+        }
+        List<long[]> results = new ArrayList<>();
+        for (Process child : children) {
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                String last = null;
+                while ((line = out.readLine()) != null) {
+                    last = line;
+                }
+                child.waitFor();
+                if (last == null || !last.startsWith("footprint ")) {
+                    throw new IllegalStateException("Child process failed with exit code " + child.exitValue());
+                }
+                String[] parts = last.split(" ");
+                results.add(new long[]{Long.parseLong(parts[1]), Long.parseLong(parts[2])});
+            }
+        }
+        return results;
+    }
+
+    private static long[] sum(List<long[]> results) {
+        long[] total = new long[2];
+        for (long[] result : results) {
+            total[0] += result[0];
+            total[1] += result[1];
+        }
+        return total;
+    }
+
+    // What a process shares between its bots (rates, the inline and reply caches) plus one MyBot per bot
+    private static void runChild(String url, int bots, int seconds) throws Exception {
+        HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(3)).build();
+        HedgedRateFetcher fetcher = new HedgedRateFetcher(List.of(new HttpRateProvider("primary", url, httpClient, Duration.ofSeconds(3))),
+                300, 3000, 3, 60_000);
+        RateService rateService = new RateService(fetcher, new DefaultResourceLoader(), 1, 7200);
+        InlineQueryHandler inlineQueryHandler = new InlineQueryHandler(rateService, 300);
+        ReplyCache replyCache = new ReplyCache(20_000, 65_536);
+        rateService.addListener(inlineQueryHandler);
+        rateService.start();
+
+        BotRegistry botRegistry = new BotRegistry();
+        for (int i = 0; i < bots; i++) {
+            botRegistry.register(new MyBot(new DefaultBotOptions(), i == 0 ? BotRegistry.PRIMARY : "bot" + i, i + ":token", "bot" + i,
+                    null, inlineQueryHandler, null, null, null, replyCache, null, null, null, null));
+        }
+
+        long deadline = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+        Random random = new Random(42);
+        while (System.nanoTime() < deadline) {
+            for (MyBot ignored : botRegistry.getBots()) {
+                for (int q = 0; q < INLINE_QUERIES_PER_BOT / Math.max(seconds, 1); q++) {
+                    InlineQuery query = new InlineQuery();
+                    query.setId(String.valueOf(q));
+                    query.setQuery(random.nextInt(500) + " " + CODES[random.nextInt(CODES.length)] + " " + CODES[random.nextInt(CODES.length)]);
+                    inlineQueryHandler.handle(query);
+                }
+            }
+            Thread.sleep(1000);
+        }
+
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.println("footprint " + heap + " " + residentSetBytes());
+        rateService.stop();
+        System.exit(0);
+    }
+
+    // VmRSS of this process (Linux), 0 elsewhere
+    private static long residentSetBytes() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) {
+            return 0;
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+            }
+        }
+        return 0;
+    }
+}
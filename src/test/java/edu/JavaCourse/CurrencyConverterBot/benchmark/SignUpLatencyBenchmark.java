@@ -0,0 +1,123 @@
+package edu.JavaCourse.CurrencyConverterBot.benchmark;
+
+import edu.JavaCourse.CurrencyConverterBot.businessLogicService.BusinessLogicService;
+import edu.JavaCourse.CurrencyConverterBot.businessLogicService.PasswordHasher;
+import edu.JavaCourse.CurrencyConverterBot.config.DatabaseConfig;
+import edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.EmbeddedDatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.HistoryShards;
+import edu.JavaCourse.CurrencyConverterBot.dbService.JdbcDatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.ReadReplicaRouter;
+import edu.JavaCourse.CurrencyConverterBot.telegram.SendToUserException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// /signup of 16 concurrent users end to end (checks, password hash on the PasswordHasher pool, user and session in one
+// write on the command executor), as a latency distribution, against both storage engines:
+// mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=edu.JavaCourse.CurrencyConverterBot.benchmark.SignUpLatencyBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Threads(16)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SignUpLatencyBenchmark {
+    @Param({"jdbc", "embedded"})
+    public String engine;
+
+    private final AtomicLong users = new AtomicLong();
+    private Path dir;
+    private EmbeddedDatabaseService embedded;
+    private JdbcTemplate jdbcTemplate;
+    private HistoryShards historyShards;
+    private PasswordHasher passwordHasher;
+    private ExecutorService commandExecutor;
+    private BusinessLogicService businessLogicService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        DatabaseService databaseService;
+        if (engine.equals("embedded")) {
+            dir = Files.createTempDirectory("signup-benchmark");
+            embedded = new EmbeddedDatabaseService(dir.toString(), 3600, false);
+            embedded.open();
+            databaseService = embedded;
+        } else {
+            String url = "jdbc:h2:mem:signup-benchmark;DB_CLOSE_DELAY=-1";
+            new DatabaseConfig(url, "sa", "", new DefaultResourceLoader()).initializeDatabase();
+            DriverManagerDataSource dataSource = new DriverManagerDataSource(url, "sa", "");
+            jdbcTemplate = new JdbcTemplate(dataSource);
+            historyShards = new HistoryShards(url, List.of(new HistoryShards.Shard(url, jdbcTemplate)));
+            databaseService = new JdbcDatabaseService(jdbcTemplate, new TransactionTemplate(new DataSourceTransactionManager(dataSource)),
+                    new ReadReplicaRouter(jdbcTemplate, null, 5000), historyShards);
+        }
+        // The defaults of auth.hashThreads, auth.hashQueueSize and auth.hashTimeoutMs
+        passwordHasher = new PasswordHasher(2, 64, 2000);
+        // bot.commandThreads
+        commandExecutor = Executors.newFixedThreadPool(4);
+        businessLogicService = new BusinessLogicService(databaseService, null, null, null, null, passwordHasher, commandExecutor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        passwordHasher.stop();
+        commandExecutor.shutdown();
+        if (embedded != null) {
+            embedded.close();
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        } else {
+            historyShards.stop();
+            jdbcTemplate.execute("SHUTDOWN");
+        }
+    }
+
+    // A fresh username and telegram account every time, so every call creates a user
+    @Benchmark
+    public void signUp() throws SendToUserException, SQLException {
+        long user = users.incrementAndGet();
+        businessLogicService.signUp("main", "tg_user" + user, "user" + user, "password" + user, "USD", "EUR").join();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SignUpLatencyBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
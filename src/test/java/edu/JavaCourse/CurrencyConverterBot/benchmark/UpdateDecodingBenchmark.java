@@ -0,0 +1,77 @@
+package edu.JavaCourse.CurrencyConverterBot.benchmark;
+
+import edu.JavaCourse.CurrencyConverterBot.controller.UpdateDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Webhook body -> Update: full data binding through Jackson2JsonDecoder (what bodyToMono(Update.class) did) against
+// UpdateDecoder. Run with the gc profiler (main below) to compare allocations per update as well:
+// mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=edu.JavaCourse.CurrencyConverterBot.benchmark.UpdateDecodingBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UpdateDecodingBenchmark {
+    static final String MESSAGE = "{\"update_id\":812345678,\"message\":{\"message_id\":4321,"
+            + "\"from\":{\"id\":123456789,\"is_bot\":false,\"first_name\":\"Ivan\",\"last_name\":\"Petrov\",\"username\":\"ivan_petrov\",\"language_code\":\"ru\"},"
+            + "\"chat\":{\"id\":123456789,\"first_name\":\"Ivan\",\"last_name\":\"Petrov\",\"username\":\"ivan_petrov\",\"type\":\"private\"},"
+            + "\"date\":1718000000,\"text\":\"/rate usd eur 100\",\"entities\":[{\"offset\":0,\"length\":5,\"type\":\"bot_command\"}]}}";
+    static final String INLINE_QUERY = "{\"update_id\":812345679,\"inline_query\":{\"id\":\"5300000000000000001\","
+            + "\"from\":{\"id\":123456789,\"is_bot\":false,\"first_name\":\"Ivan\",\"username\":\"ivan_petrov\",\"language_code\":\"ru\"},"
+            + "\"chat_type\":\"private\",\"query\":\"100 usd eur\",\"offset\":\"\"}}";
+
+    @Param({"message", "inlineQuery"})
+    public String body;
+
+    private byte[] bytes;
+    private final DefaultDataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+    private final Jackson2JsonDecoder jsonDecoder = new Jackson2JsonDecoder();
+    private final ResolvableType updateType = ResolvableType.forClass(Update.class);
+    private final UpdateDecoder updateDecoder = new UpdateDecoder();
+
+    @Setup
+    public void setUp() {
+        bytes = (body.equals("message") ? MESSAGE : INLINE_QUERY).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object fullDataBinding() {
+        DataBuffer buffer = bufferFactory.wrap(bytes);
+        return jsonDecoder.decode(buffer, updateType, MediaType.APPLICATION_JSON, null);
+    }
+
+    @Benchmark
+    public Update updateDecoder() {
+        return updateDecoder.decode(bufferFactory.wrap(bytes));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(UpdateDecodingBenchmark.class.getSimpleName())
+                .addProfiler("gc")
+                .build()).run();
+    }
+}
@@ -0,0 +1,73 @@
+package edu.JavaCourse.CurrencyConverterBot.businessLogicService;
+
+import edu.JavaCourse.CurrencyConverterBot.dbService.DatabaseService;
+import edu.JavaCourse.CurrencyConverterBot.dbService.HistoryReadRepository;
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import junit.framework.TestCase;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+public class RecentHistoryTest extends TestCase {
+    private static final long USER = 7;
+
+    // Rows of one user; 'duringRead' runs while the rows are read, like a conversion from another chat
+    private final List<Object[]> rows = new ArrayList<>();
+    private Runnable duringRead = () -> {
+    };
+    private final RecentHistory history = new RecentHistory(new HistoryReadRepository() {
+        @Override
+        public List<String> findConversionHistoryByUserIdAndPeriod(Long userId, String fromCurrency, String toCurrency, LocalDate startDate, LocalDate endDate) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void streamConversionHistory(Long userId, LocalDate startDate, LocalDate endDate, DatabaseService.ConversionRowHandler handler) {
+            List<Object[]> read = new ArrayList<>(rows);
+            duringRead.run();
+            for (Object[] row : read) {
+                handler.handle((LocalDateTime) row[0], Currencies.databaseId(Currencies.ordinal((String) row[1])),
+                        Currencies.databaseId(Currencies.ordinal((String) row[2])), BigDecimal.valueOf((Double) row[3]), BigDecimal.valueOf(0.9));
+            }
+        }
+
+        @Override
+        public List<String> findHistoryArchives(Long userId, int startMonth, int endMonth) {
+            throw new UnsupportedOperationException();
+        }
+    }, 100, 10);
+
+    public void testConversionsRecordedDuringTheReadAreKept() {
+        LocalDateTime written = LocalDateTime.now().withNano(1_000_000);
+        rows.add(new Object[]{written, "USD", "EUR", 1.0});
+        duringRead = () -> {
+            // Written before the read and recorded after it started: read and recorded, kept once
+            history.recordConversion(USER, written, Currencies.ordinal("USD"), Currencies.ordinal("EUR"), 1.0, 0.9);
+            // Written after the read: only recorded
+            history.recordConversion(USER, written.plusNanos(2_000_000), Currencies.ordinal("USD"), Currencies.ordinal("GBP"), 2.0, 0.9);
+            // A /history meanwhile goes to the database
+            assertNull(today(null));
+        };
+
+        assertEquals(2, today(null).size());
+        assertEquals(1, today("EUR").size());
+    }
+
+    public void testConversionsAfterTheLoadAreAdded() {
+        LocalDateTime written = LocalDateTime.now().withNano(0);
+        rows.add(new Object[]{written, "USD", "EUR", 1.0});
+        assertEquals(1, today(null).size());
+
+        history.recordConversion(USER, written, Currencies.ordinal("USD"), Currencies.ordinal("EUR"), 1.0, 0.9);
+        history.recordConversions(USER, written.plusNanos(5_000_000), Currencies.ordinal("USD"),
+                new int[]{Currencies.ordinal("EUR"), Currencies.ordinal("GBP")}, 3.0, new double[]{0.9, Double.NaN});
+        assertEquals(2, today(null).size());
+    }
+
+    private List<String> today(String toCurrency) {
+        return history.find(USER, toCurrency == null ? null : "USD", toCurrency, LocalDate.now(), LocalDate.now());
+    }
+}
@@ -0,0 +1,259 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import junit.framework.TestCase;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// What both storage engines must do the same way; every engine runs these through its own subclass
+public abstract class DatabaseServiceConformanceTest extends TestCase {
+    protected DatabaseService db;
+    protected HistoryReadRepository history;
+
+    // Opens an empty database and sets db and history
+    protected abstract void openDatabase() throws Exception;
+
+    protected abstract void closeDatabase() throws Exception;
+
+    @Override
+    protected void setUp() throws Exception {
+        openDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        closeDatabase();
+    }
+
+    public void testSignUpRejectsTakenUsername() {
+        long userId = signUp("alice", "tg_alice");
+        assertEquals(Long.valueOf(userId), db.getUserIdIfExists("alice"));
+        assertEquals(Long.valueOf(userId), db.getUserIdIfLoggedIn("tg_alice"));
+
+        try {
+            db.createUserAndLogIn("main", "alice", "other-hash", id("USD"), id("EUR"), "tg_mallory");
+            fail("a taken username must be rejected");
+        } catch (DuplicateKeyException expected) {
+        }
+        assertNull("a rejected signup doesn't log in", db.getUserIdIfLoggedIn("tg_mallory"));
+        assertEquals("hash-alice", db.findUserCredentials("alice").passwordHash());
+        assertNull(db.getUserIdIfExists("bob"));
+        assertNull(db.findUserCredentials("bob"));
+    }
+
+    public void testSessions() {
+        long alice = signUp("alice", "tg_alice");
+        long bob = signUp("bob", "tg_bob");
+        assertEquals(alice, db.findUserCredentials("alice").userId());
+
+        // a logged in telegram account neither logs in as another user nor signs up
+        assertEquals(DatabaseService.LogInResult.ALREADY_LOGGED_IN, db.logInUser(bob, "hash-bob", "tg_alice"));
+        assertNull(db.createUserAndLogIn("main", "carol", "hash-carol", id("USD"), id("EUR"), "tg_alice"));
+        assertNull(db.getUserIdIfExists("carol"));
+        assertEquals(Long.valueOf(alice), db.getUserIdIfLoggedIn("tg_alice"));
+
+        // once logged out it switches between users, the last log in/out wins
+        db.logOutUser(alice, "tg_alice");
+        assertEquals(DatabaseService.LogInResult.LOGGED_IN, db.logInUser(bob, "hash-bob", "tg_alice"));
+        assertEquals(Long.valueOf(bob), db.getUserIdIfLoggedIn("tg_alice"));
+        db.logOutUser(bob, "tg_alice");
+        assertNull(db.getUserIdIfLoggedIn("tg_alice"));
+        // a session is only created for the hash the password was verified against
+        assertEquals(DatabaseService.LogInResult.PASSWORD_CHANGED, db.logInUser(alice, "hash-bob", "tg_alice"));
+        assertNull(db.getUserIdIfLoggedIn("tg_alice"));
+        assertEquals(DatabaseService.LogInResult.LOGGED_IN, db.logInUser(alice, "hash-alice", "tg_alice"));
+        assertEquals(Long.valueOf(alice), db.getUserIdIfLoggedIn("tg_alice"));
+        assertEquals(Long.valueOf(bob), db.getUserIdIfLoggedIn("tg_bob"));
+        assertNull(db.getUserIdIfLoggedIn("tg_nobody"));
+    }
+
+    public void testCurrencySettingsAndFavourites() {
+        long userId = signUp("alice", "tg_alice");
+        assertEquals("USD-EUR", db.getDefaultPair(userId));
+        db.changeHomeCurrency(userId, "GBP");
+        assertEquals("GBP", db.getHomeCurrency(userId));
+        assertEquals("EUR", db.getDefaultToCurrency(userId));
+        db.changeDefaultPair(userId, "JPY", "CHF");
+        assertEquals("JPY-CHF", db.getDefaultPair(userId));
+        assertTrue(db.isCurrencyExists("RUB"));
+        assertFalse(db.isCurrencyExists("XXQ"));
+
+        assertEquals(List.of(), db.getFavouriteCurrencies(userId));
+        db.changeFavouriteCurrencies(userId, List.of(id("RUB"), id("USD"), id("CNY")));
+        assertEquals(List.of("RUB", "USD", "CNY"), db.getFavouriteCurrencies(userId));
+        db.changeFavouriteCurrencies(userId, List.of(id("EUR")));
+        assertEquals(List.of("EUR"), db.getFavouriteCurrencies(userId));
+    }
+
+    public void testHistoryFilters() {
+        long alice = signUp("alice", "tg_alice");
+        long bob = signUp("bob", "tg_bob");
+        db.saveLogToConversionHistory(alice, id("USD"), id("EUR"), 100.0, 0.9);
+        db.saveLogsToConversionHistory(alice, id("USD"), new long[]{id("GBP"), id("JPY")}, 10.0, new double[]{0.8, 150.0});
+        db.saveLogToConversionHistory(alice, id("EUR"), id("RUB"), 5.0, 98.5);
+        db.saveLogToConversionHistory(bob, id("USD"), id("EUR"), 1.0, 0.9);
+        LocalDate today = LocalDate.now();
+
+        assertEquals(4, history.findConversionHistoryByUserIdAndPeriod(alice, null, null, today, today).size());
+        assertPairs(history.findConversionHistoryByUserIdAndPeriod(alice, "USD", "EUR", today, today), "USD-EUR");
+        // one currency - conversions from or to it
+        assertPairs(history.findConversionHistoryByUserIdAndPeriod(alice, "EUR", null, today, today), "EUR-RUB", "USD-EUR");
+        assertPairs(history.findConversionHistoryByUserIdAndPeriod(alice, "JPY", null, today, today), "USD-JPY");
+        assertEquals(0, history.findConversionHistoryByUserIdAndPeriod(alice, null, null, today.minusDays(7), today.minusDays(1)).size());
+        assertEquals(1, history.findConversionHistoryByUserIdAndPeriod(bob, null, null, today, today).size());
+
+        Map<String, BigDecimal> amounts = new TreeMap<>();
+        history.streamConversionHistory(alice, null, null, (createdAt, fromCurrencyId, toCurrencyId, amount, rate) -> {
+            assertEquals(today, createdAt.toLocalDate());
+            amounts.put(code(fromCurrencyId) + "-" + code(toCurrencyId), amount);
+        });
+        assertEquals(4, amounts.size());
+        assertEquals(0, new BigDecimal("10.00").compareTo(amounts.get("USD-JPY")));
+        List<LocalDateTime> yesterday = new ArrayList<>();
+        history.streamConversionHistory(alice, today.minusDays(1), today.minusDays(1), (createdAt, fromCurrencyId, toCurrencyId, amount, rate) -> yesterday.add(createdAt));
+        assertEquals(0, yesterday.size());
+    }
+
+    public void testPartitionsAndArchives() {
+        long alice = signUp("alice", "tg_alice");
+        long bob = signUp("bob", "tg_bob");
+        db.saveLogToConversionHistory(bob, id("USD"), id("EUR"), 1.0, 0.9);
+        db.saveLogsToConversionHistory(alice, id("USD"), new long[]{id("GBP"), id("JPY")}, 10.0, new double[]{0.8, 150.0});
+        int month = DatabaseService.partitionOf(LocalDate.now());
+
+        assertEquals(List.of(), db.findPartitionsBefore(month));
+        assertEquals(List.of(month), db.findPartitionsBefore(month + 1));
+        List<Long> streamedUsers = new ArrayList<>();
+        db.streamPartition(month, (userId, createdAt, fromCurrencyId, toCurrencyId, amount, rate) -> streamedUsers.add(userId));
+        assertEquals("ordered by user", List.of(alice, alice, bob), streamedUsers);
+
+        assertFalse(db.isPartitionArchived(month));
+        db.saveHistoryArchive(month, "archive/" + month + "-1.csv.gz", 2);
+        db.saveHistoryArchive(month, "archive/" + month + "-2.csv.gz", 1);
+        assertTrue(db.isPartitionArchived(month));
+        assertFalse(db.isPartitionArchived(month - 1));
+        assertEquals(List.of("archive/" + month + "-1.csv.gz", "archive/" + month + "-2.csv.gz"), history.findHistoryArchives(alice, month, month));
+        assertEquals(List.of(), history.findHistoryArchives(alice, month + 1, month + 1));
+        // an archived month is read from its files, not from the table
+        LocalDate today = LocalDate.now();
+        assertEquals(0, history.findConversionHistoryByUserIdAndPeriod(alice, null, null, today, today).size());
+
+        assertEquals(3, db.deletePartition(month));
+        assertEquals(0, db.deletePartition(month));
+        assertEquals(List.of(), db.findPartitionsBefore(month + 1));
+    }
+
+    public void testAlerts() {
+        long alice = signUp("alice", "tg_alice");
+        long bob = signUp("bob", "tg_bob");
+        long above = db.createAlert(alice, 1001L, id("USD"), id("EUR"), '>', 1.1, true);
+        long below = db.createAlert(alice, 1001L, id("GBP"), id("JPY"), '<', 150.125, false);
+        long bobs = db.createAlert(bob, 1002L, id("USD"), id("RUB"), '>', 100.0, true);
+
+        assertEquals(List.of("#" + above + ": USD-EUR > 1.1", "#" + below + ": GBP-JPY < 150.125"), db.findAlertsByUserId(alice));
+        Map<Long, String> loaded = loadAlerts();
+        assertEquals(3, loaded.size());
+        assertEquals("main 1001 USD-EUR > 1.1 armed", loaded.get(above));
+        assertEquals("main 1001 GBP-JPY < 150.125 disarmed", loaded.get(below));
+
+        db.setAlertsArmed(List.of(above, bobs), false);
+        assertEquals("main 1001 USD-EUR > 1.1 disarmed", loadAlerts().get(above));
+        assertFalse("only the owner deletes an alert", db.deleteAlert(bob, above));
+        assertTrue(db.deleteAlert(alice, above));
+        assertFalse(db.deleteAlert(alice, above));
+        assertEquals(List.of("#" + below + ": GBP-JPY < 150.125"), db.findAlertsByUserId(alice));
+        assertEquals(1, db.findAlertsByUserId(bob).size());
+    }
+
+    public void testDigests() {
+        long alice = signUp("alice", "tg_alice");
+        long bob = signUp("bob", "tg_bob");
+        LocalDateTime nextRun = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS).plusHours(1);
+        db.saveDigestSubscription(alice, 1001L, "DAILY", 9 * 60 + 30, nextRun);
+        db.saveDigestSubscription(bob, 1002L, "HOURLY", 5, nextRun);
+        assertEquals("daily at 09:30", db.findDigestSubscription(alice));
+        assertEquals("hourly at minute 05", db.findDigestSubscription(bob));
+        // a new subscription replaces the old one
+        db.saveDigestSubscription(bob, 1002L, "HOURLY", 15, nextRun);
+        assertEquals("hourly at minute 15", db.findDigestSubscription(bob));
+
+        db.changeDefaultPair(bob, "GBP", "JPY");
+        List<String> targets = new ArrayList<>();
+        db.findDigestTargets(List.of(bob), (userId, bot, chatId, fromCurrencyId, toCurrencyId) ->
+                targets.add(userId + " " + bot + " " + chatId + " " + code(fromCurrencyId) + "-" + code(toCurrencyId)));
+        assertEquals(List.of(bob + " main 1002 GBP-JPY"), targets);
+
+        db.updateDigestNextRunAt(List.of(alice), List.of(nextRun.plusDays(1)));
+        Map<Long, LocalDateTime> nextRuns = new TreeMap<>();
+        db.loadDigestSubscriptions((userId, chatId, period, atMinute, nextRunAt) -> nextRuns.put(userId, nextRunAt));
+        assertEquals(nextRun.plusDays(1), nextRuns.get(alice));
+        assertEquals(nextRun, nextRuns.get(bob));
+
+        assertTrue(db.deleteDigestSubscription(alice));
+        assertFalse(db.deleteDigestSubscription(alice));
+        assertNull(db.findDigestSubscription(alice));
+    }
+
+    public void testPortfolio() {
+        long alice = signUp("alice", "tg_alice");
+        long bob = signUp("bob", "tg_bob");
+        db.addPortfolioHolding(alice, id("USD"), 1.5);
+        db.addPortfolioHolding(alice, id("USD"), 2.25);
+        db.addPortfolioHolding(alice, id("EUR"), 10.0);
+        db.addPortfolioHolding(bob, id("USD"), 7.0);
+        assertEquals(Map.of(alice + " USD", 3.75, alice + " EUR", 10.0, bob + " USD", 7.0), loadHoldings());
+
+        // a holding that reaches 0 is deleted
+        db.addPortfolioHolding(alice, id("USD"), -3.75);
+        db.addPortfolioHolding(bob, id("USD"), -2.0);
+        assertEquals(Map.of(alice + " EUR", 10.0, bob + " USD", 5.0), loadHoldings());
+        // small crypto holdings are kept to 8 decimal places
+        db.addPortfolioHolding(alice, id("BTC"), 0.0015);
+        db.addPortfolioHolding(alice, id("BTC"), 0.00000001);
+        assertEquals(0.00150001, loadHoldings().get(alice + " BTC"));
+    }
+
+    protected long signUp(String username, String tgUsername) {
+        return db.createUserAndLogIn("main", username, "hash-" + username, id("USD"), id("EUR"), tgUsername);
+    }
+
+    protected long id(String currency) {
+        return db.getCurrencyIdByName(currency);
+    }
+
+    protected static String code(long currencyId) {
+        return Currencies.code(Currencies.ordinalOfDatabaseId(currencyId));
+    }
+
+    protected Map<String, Double> loadHoldings() {
+        Map<String, Double> holdings = new TreeMap<>();
+        db.loadPortfolioHoldings((userId, currencyId, amount) -> holdings.put(userId + " " + code(currencyId), amount));
+        return holdings;
+    }
+
+    private Map<Long, String> loadAlerts() {
+        Map<Long, String> loaded = new TreeMap<>();
+        db.loadAlerts((id, bot, chatId, fromCurrencyId, toCurrencyId, direction, threshold, armed) -> loaded.put(id,
+                bot + " " + chatId + " " + code(fromCurrencyId) + "-" + code(toCurrencyId) + " " + direction + " "
+                        + BigDecimal.valueOf(threshold).stripTrailingZeros().toPlainString() + (armed ? " armed" : " disarmed")));
+        return loaded;
+    }
+
+    // Rows of the same instant have no defined order, so the pairs are compared sorted
+    private static void assertPairs(List<String> rows, String... pairs) {
+        List<String> actual = new ArrayList<>();
+        for (String row : rows) {
+            actual.add(row.substring(row.indexOf(": ") + 2, row.indexOf(" amount")));
+        }
+        actual.sort(null);
+        assertEquals(List.of(pairs), actual);
+    }
+}
@@ -0,0 +1,115 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+public class EmbeddedDatabaseServiceTest extends DatabaseServiceConformanceTest {
+    private Path dir;
+    private EmbeddedDatabaseService embedded;
+
+    @Override
+    protected void openDatabase() throws IOException {
+        dir = Files.createTempDirectory("embedded-db-test");
+        use(open(dir));
+    }
+
+    @Override
+    protected void closeDatabase() throws IOException {
+        embedded.close();
+        deleteRecursively(dir);
+    }
+
+    public void testStateSurvivesRestart() throws IOException {
+        long alice = signUp("alice", "tg_alice");
+        db.saveLogToConversionHistory(alice, id("USD"), id("EUR"), 100.0, 0.9);
+        db.addPortfolioHolding(alice, id("GBP"), 12.5);
+        embedded.close();
+
+        use(open(dir));
+        assertEquals(Long.valueOf(alice), db.getUserIdIfLoggedIn("tg_alice"));
+        assertEquals(1, history.findConversionHistoryByUserIdAndPeriod(alice, null, null, LocalDate.now(), LocalDate.now()).size());
+        assertEquals(Map.of(alice + " GBP", 12.5), loadHoldings());
+    }
+
+    // The process dies without close(): no final snapshot, the log holds everything since the last one and its
+    // last record is torn. Appends go straight to the file, so a copy of the directory is that state on disk.
+    public void testReplayAfterUncleanStop() throws IOException {
+        long alice = signUp("alice", "tg_alice");
+        db.saveLogToConversionHistory(alice, id("USD"), id("EUR"), 100.0, 0.9);
+        embedded.snapshot();
+        long bob = signUp("bob", "tg_bob");
+        db.changeFavouriteCurrencies(alice, List.of(id("RUB"), id("CNY")));
+        long alertId = db.createAlert(bob, 1002L, id("USD"), id("JPY"), '>', 150.0, true);
+        db.addPortfolioHolding(bob, id("EUR"), 3.0);
+        db.logOutUser(alice, "tg_alice");
+
+        Path crashed = crashCopy(dir);
+        try (FileChannel wal = FileChannel.open(crashed.resolve("wal.log"), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            // the header of a record whose payload never made it to the file
+            wal.write(ByteBuffer.allocate(12).putInt(64).putLong(1000).flip());
+        }
+        embedded.close();
+
+        use(open(crashed));
+        assertEquals(Long.valueOf(bob), db.getUserIdIfExists("bob"));
+        assertNull(db.getUserIdIfLoggedIn("tg_alice"));
+        assertEquals(Long.valueOf(bob), db.getUserIdIfLoggedIn("tg_bob"));
+        assertEquals(List.of("RUB", "CNY"), db.getFavouriteCurrencies(alice));
+        assertEquals(List.of("#" + alertId + ": USD-JPY > 150"), db.findAlertsByUserId(bob));
+        assertEquals(1, history.findConversionHistoryByUserIdAndPeriod(alice, null, null, LocalDate.now(), LocalDate.now()).size());
+
+        // the torn tail was cut off on open, so what is written after the restart isn't hidden behind it
+        db.addPortfolioHolding(bob, id("EUR"), 1.0);
+        long carol = signUp("carol", "tg_carol");
+        Path crashedAgain = crashCopy(crashed);
+        embedded.close();
+        deleteRecursively(crashed);
+
+        use(open(crashedAgain));
+        assertEquals(Long.valueOf(carol), db.getUserIdIfLoggedIn("tg_carol"));
+        assertEquals(Map.of(bob + " EUR", 4.0), loadHoldings());
+        embedded.close();
+        deleteRecursively(crashedAgain);
+        use(open(dir));
+    }
+
+    private void use(EmbeddedDatabaseService service) {
+        embedded = service;
+        db = service;
+        history = service;
+    }
+
+    private static EmbeddedDatabaseService open(Path path) throws IOException {
+        EmbeddedDatabaseService service = new EmbeddedDatabaseService(path.toString(), 3600, false);
+        service.open();
+        return service;
+    }
+
+    // The files of a live database as a crash would leave them
+    private static Path crashCopy(Path path) throws IOException {
+        Path copy = Files.createTempDirectory("embedded-db-crashed");
+        try (Stream<Path> files = Files.list(path)) {
+            for (Path file : files.toList()) {
+                Files.copy(file, copy.resolve(file.getFileName()));
+            }
+        }
+        return copy;
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import edu.JavaCourse.CurrencyConverterBot.config.DatabaseConfig;
+import junit.framework.TestCase;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// conversion_history on one local H2 file (the primary) rebalanced onto three: every row ends up on its user's shard
+// exactly once and /history of every user reads all of its rows from there
+public class HistoryShardRebalancerTest extends TestCase {
+    private static final int USERS = 200;
+
+    private Path dir;
+    private final List<HistoryShards.Shard> shards = new ArrayList<>();
+    private HistoryShards current;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("history-shards-test");
+        for (int i = 0; i < 3; i++) {
+            String url = "jdbc:h2:file:" + dir.resolve("history-" + i) + ";DB_CLOSE_DELAY=-1";
+            new DatabaseConfig(url, "sa", "", new DefaultResourceLoader()).initializeDatabase();
+            shards.add(new HistoryShards.Shard(url, new JdbcTemplate(new DriverManagerDataSource(url, "sa", ""))));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        if (current != null) {
+            current.stop();
+        }
+        for (HistoryShards.Shard shard : shards) {
+            shard.jdbcTemplate().execute("SHUTDOWN");
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    public void testRebalanceFromOneShardToThree() {
+        HistoryShards.Shard primary = shards.get(0);
+        HistoryShards previous = new HistoryShards(primary.url(), List.of(primary));
+        long total = 0;
+        for (long userId = 1; userId <= USERS; userId++) {
+            previous.insert(userId, rowsOf(userId));
+            total += rowsOf(userId).size();
+        }
+
+        current = new HistoryShards(primary.url(), shards);
+        HistoryShardRebalancer rebalancer = new HistoryShardRebalancer(List.of(primary), current);
+        rebalancer.rebalance();
+        assertLayout(total);
+
+        // Started again with the same settings (a rebalancing interrupted midway) nothing moves twice
+        rebalancer.rebalance();
+        assertLayout(total);
+
+        current.start();
+        JdbcHistoryReadRepository history = new JdbcHistoryReadRepository(new ReadReplicaRouter(primary.jdbcTemplate(), null, 5000), current);
+        LocalDate today = LocalDate.now();
+        for (long userId = 1; userId <= USERS; userId++) {
+            assertEquals("user " + userId, rowsOf(userId).size(),
+                    history.findConversionHistoryByUserIdAndPeriod(userId, null, null, today, today).size());
+        }
+    }
+
+    private void assertLayout(long total) {
+        long rows = 0;
+        for (int i = 0; i < shards.size(); i++) {
+            JdbcTemplate shard = shards.get(i).jdbcTemplate();
+            Long count = shard.queryForObject("SELECT COUNT(*) FROM conversion_history", Long.class);
+            assertTrue("shard " + i + " is empty", count > 0);
+            rows += count;
+            for (long userId : shard.queryForList("SELECT DISTINCT user_id FROM conversion_history", Long.class)) {
+                assertEquals("user " + userId, i, HistoryShards.shardOf(userId, shards.size()));
+                assertEquals("user " + userId, Long.valueOf(rowsOf(userId).size()),
+                        shard.queryForObject("SELECT COUNT(*) FROM conversion_history WHERE user_id = ?", Long.class, userId));
+            }
+        }
+        assertEquals(total, rows);
+    }
+
+    // 1 to 7 conversions of today per user
+    private static List<Object[]> rowsOf(long userId) {
+        LocalDateTime createdAt = LocalDate.now().atStartOfDay().plusMinutes(userId);
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i <= userId % 7; i++) {
+            rows.add(new Object[]{userId, 1L, 2L + i, BigDecimal.valueOf(userId), new BigDecimal("0.9"),
+                    Timestamp.valueOf(createdAt.plusSeconds(i)), DatabaseService.partitionOf(createdAt.toLocalDate())});
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,39 @@
+package edu.JavaCourse.CurrencyConverterBot.dbService;
+
+import edu.JavaCourse.CurrencyConverterBot.config.DatabaseConfig;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Against a fresh in-memory H2 database per test, history on the primary (not sharded, no replica)
+public class JdbcDatabaseServiceTest extends DatabaseServiceConformanceTest {
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private JdbcTemplate jdbcTemplate;
+    private ReadReplicaRouter readReplicaRouter;
+    private HistoryShards historyShards;
+
+    @Override
+    protected void openDatabase() {
+        String url = "jdbc:h2:mem:conformance-" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+        new DatabaseConfig(url, "sa", "", new DefaultResourceLoader()).initializeDatabase();
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(url, "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        readReplicaRouter = new ReadReplicaRouter(jdbcTemplate, null, 5000);
+        historyShards = new HistoryShards(url, List.of(new HistoryShards.Shard(url, jdbcTemplate)));
+        historyShards.start();
+        db = new JdbcDatabaseService(jdbcTemplate, new TransactionTemplate(new DataSourceTransactionManager(dataSource)), readReplicaRouter, historyShards);
+        history = new JdbcHistoryReadRepository(readReplicaRouter, historyShards);
+    }
+
+    @Override
+    protected void closeDatabase() {
+        historyShards.stop();
+        jdbcTemplate.execute("SHUTDOWN");
+    }
+}
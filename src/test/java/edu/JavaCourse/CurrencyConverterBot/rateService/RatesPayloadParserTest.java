@@ -0,0 +1,107 @@
+package edu.JavaCourse.CurrencyConverterBot.rateService;
+
+import junit.framework.TestCase;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class RatesPayloadParserTest extends TestCase {
+    private static final int EUR = Currencies.ordinal("EUR");
+
+    public void testNumbersMatchDoubleParseDouble() {
+        String[] numbers = {"0", "1", "-1", "0.92", "3.6725", "152.41500000", "0.000012345", "1e3", "1E-3", "2.5e+2",
+                "-0.5e-5", "1234567890123.4567"};
+        for (String number : numbers) {
+            assertEquals(number, Double.parseDouble(number), eurRate(number));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            String number = randomRate(random);
+            assertEquals(number, Double.parseDouble(number), eurRate(number));
+        }
+    }
+
+    // More than 18 significant digits or an exponent past 10^22: parsed by Double.parseDouble
+    public void testLongNumbersFallBackToDoubleParseDouble() {
+        String[] numbers = {"0.12345678901234567890123", "12345678901234567890123456789", "1e23", "1e-30", "4.9e-324",
+                "1.7976931348623157e308", "1e400", "1e99999999999"};
+        for (String number : numbers) {
+            assertEquals(number, Double.parseDouble(number), eurRate(number));
+        }
+    }
+
+    public void testUpdatedOnlyIsSkipped() {
+        byte[] payload = bytes("{\"updated\":1700000000,\"rates\":{\"EUR\":0.92}}");
+        assertNull(RatesPayloadParser.parse(payload, 0, payload.length, 1700000000));
+        assertEquals(1700000000, RatesPayloadParser.parse(payload).getUpdated());
+    }
+
+    public void testUnknownKeysAndCurrenciesAreSkipped() {
+        RateSnapshot snapshot = RatesPayloadParser.parse(bytes(
+                "{\"valid\":true,\"meta\":{\"a\":[1,{\"b\":\"}\"}]},\"updated\":1,\"rates\":{\"XXX\":1,\"LONGER\":2,\"EUR\":0.5}}"));
+        assertEquals(0.5, snapshot.getRate(EUR));
+    }
+
+    public void testInvalidPayloadIsRejected() {
+        assertRejected("{\"valid\":false,\"updated\":1,\"rates\":{}}");
+    }
+
+    public void testTruncatedAndMalformedPayloadsAreRejected() {
+        String payload = "{\"valid\":true,\"updated\":1,\"meta\":[1,{\"a\":\"b\"}],\"rates\":{\"EUR\":1.5e2}}";
+        for (int length = 0; length < payload.length(); length++) {
+            assertRejected(payload.substring(0, length));
+        }
+        assertRejected("{\"updated\":1,\"rates\":{\"EUR\":1e}}");
+        assertRejected("{\"updated\":1,\"rates\":{\"EUR\":1e+}}");
+        assertRejected("{\"updated\":1,\"rates\":{\"EUR\":-}}");
+        assertRejected("{\"updated\":1,\"rates\":{\"EUR\":0.9,}}");
+        assertRejected("{\"rates\":{\"EUR\":0.9}}");
+        assertRejected("{}");
+    }
+
+    // Nothing past offset + length is read, even when the buffer goes on
+    public void testParsingStopsAtTheEndOfTheSlice() {
+        String payload = "{\"updated\":1,\"rates\":{\"EUR\":1e";
+        byte[] buffer = bytes("xx" + payload + "5}}");
+        try {
+            RatesPayloadParser.parse(buffer, 2, payload.length(), Long.MIN_VALUE);
+            fail("parsed past the slice");
+        } catch (RateFetchException expected) {
+        }
+        RateSnapshot snapshot = RatesPayloadParser.parse(buffer, 2, payload.length() + 3, Long.MIN_VALUE);
+        assertEquals(1e5, snapshot.getRate(EUR));
+    }
+
+    private static double eurRate(String number) {
+        return RatesPayloadParser.parse(bytes("{\"updated\":1,\"rates\":{\"EUR\":" + number + "}}")).getRate(EUR);
+    }
+
+    private static void assertRejected(String payload) {
+        try {
+            RatesPayloadParser.parse(bytes(payload));
+            fail("accepted " + payload);
+        } catch (RateFetchException expected) {
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Rates as providers print them: 1 to 6 integer digits, up to 10 fraction digits, sometimes an exponent
+    private static String randomRate(Random random) {
+        StringBuilder text = new StringBuilder();
+        text.append(random.nextInt(1, 1_000_000));
+        int fraction = random.nextInt(11);
+        if (fraction > 0) {
+            text.append('.');
+            for (int i = 0; i < fraction; i++) {
+                text.append(random.nextInt(10));
+            }
+        }
+        if (random.nextInt(4) == 0) {
+            text.append('e').append(random.nextInt(-12, 13));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,164 @@
+package edu.JavaCourse.CurrencyConverterBot.telegram;
+
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.TestCase;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// LongPollingReceiver against a local fake Bot API server: getUpdates serves 'totalUpdates' updates in ids 1..n,
+// records the offsets it is asked for and treats them as confirmations, like Telegram does
+public class LongPollingReceiverTest extends TestCase {
+    private static final String TOKEN = "123:test";
+
+    private HttpServer server;
+    private volatile int totalUpdates;
+    // the offset of every getUpdates request, and how many updates were handled when it arrived
+    private final List<int[]> polls = new CopyOnWriteArrayList<>();
+    private final AtomicInteger confirmedOffset = new AtomicInteger(1);
+    private final Set<Integer> handled = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger handledCount = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/bot" + TOKEN + "/", exchange -> {
+            String method = exchange.getRequestURI().getPath().substring(("/bot" + TOKEN + "/").length());
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            Object result = method.equalsIgnoreCase("getUpdates") ? getUpdates(new JSONObject(body)) : Boolean.TRUE;
+            byte[] response = new JSONObject().put("ok", true).put("result", result).toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop(0);
+    }
+
+    public void testEveryUpdateIsHandledOnceAndConfirmedOnlyAfterHandling() throws Exception {
+        totalUpdates = 1000;
+        LongPollingReceiver receiver = new LongPollingReceiver(List.of(bot(update -> {
+        })), 0, 8);
+        receiver.start();
+        waitFor(() -> confirmedOffset.get() == totalUpdates + 1);
+        receiver.stop();
+
+        assertEquals(totalUpdates, handled.size());
+        assertEquals(totalUpdates, handledCount.get());
+        for (int[] poll : polls) {
+            assertTrue("offset " + poll[0] + " confirmed with only " + poll[1] + " updates handled", poll[1] >= poll[0] - 1);
+        }
+        assertTrue("updates are fetched in batches, not one getUpdates each", polls.size() < totalUpdates);
+    }
+
+    public void testBatchInterruptedByStopIsNotLost() throws Exception {
+        totalUpdates = 50;
+        CountDownLatch release = new CountDownLatch(1);
+        LongPollingReceiver receiver = new LongPollingReceiver(List.of(bot(update -> {
+            if (update.getUpdateId() == 10) {
+                await(release);
+            }
+        })), 0, 4);
+        receiver.start();
+        // update 10 holds up the rest of its chat (10, 17, ..., 45), the other chats finish
+        waitFor(() -> handledCount.get() == totalUpdates - 6);
+
+        Thread stopping = new Thread(receiver::stop);
+        stopping.start();
+        Thread.sleep(200);
+        assertEquals("the batch must not be confirmed while it is handled", 1, confirmedOffset.get());
+        release.countDown();
+        stopping.join();
+        receiver.awaitTermination();
+        assertEquals("a batch finished during the stop is confirmed", totalUpdates + 1, confirmedOffset.get());
+    }
+
+    private JSONArray getUpdates(JSONObject request) {
+        int offset = request.optInt("offset", 1);
+        int limit = request.optInt("limit", 100);
+        polls.add(new int[]{offset, handledCount.get()});
+        confirmedOffset.accumulateAndGet(offset, Math::max);
+        JSONArray updates = new JSONArray();
+        for (int id = Math.max(offset, 1); id <= totalUpdates && updates.length() < limit; id++) {
+            JSONObject chat = new JSONObject().put("id", id % 7).put("type", "private");
+            JSONObject from = new JSONObject().put("id", id % 7).put("is_bot", false).put("first_name", "User").put("username", "user" + id % 7);
+            updates.put(new JSONObject().put("update_id", id)
+                    .put("message", new JSONObject().put("message_id", id).put("date", 0).put("chat", chat).put("from", from).put("text", "/help")));
+        }
+        if (updates.isEmpty()) {
+            // stands in for the long poll timeout
+            sleep(20);
+        }
+        return updates;
+    }
+
+    private interface Handler {
+        void handle(Update update);
+    }
+
+    private MyBot bot(Handler handler) {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setBaseUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/bot");
+        return new MyBot(options, BotRegistry.PRIMARY, TOKEN, "test_bot", null, null, null, null, null, null, null, null, null, null) {
+            @Override
+            public SendMessage processUpdate(Update update) {
+                handler.handle(update);
+                if (!handled.add(update.getUpdateId())) {
+                    fail("update " + update.getUpdateId() + " handled twice");
+                }
+                handledCount.incrementAndGet();
+                return null;
+            }
+        };
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (!condition.holds()) {
+            if (System.nanoTime() > deadline) {
+                fail("timed out");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
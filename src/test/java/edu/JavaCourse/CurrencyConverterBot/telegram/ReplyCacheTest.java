@@ -0,0 +1,71 @@
+package edu.JavaCourse.CurrencyConverterBot.telegram;
+
+import edu.JavaCourse.CurrencyConverterBot.businessLogicService.BusinessLogicService;
+import edu.JavaCourse.CurrencyConverterBot.rateService.Currencies;
+import junit.framework.TestCase;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ReplyCacheTest extends TestCase {
+    private static final Pattern ENTRIES = Pattern.compile("(\\d+) entries");
+
+    private final ReplyCache cache = new ReplyCache(3, 1000);
+
+    public void testRepliesAreCachedTheSecondTimeTheirKeyIsSeen() {
+        String first = cache.reply("5", usdEur("5", 0.9, 1));
+        assertEquals("5 USD = 4.50 EUR", first);
+        assertEquals("a one-off amount is not cached", 0, entries());
+
+        String second = cache.reply("5", usdEur("5", 0.9, 1));
+        assertNotSame(first, second);
+        assertEquals(1, entries());
+        assertSame(second, cache.reply("5", usdEur("5", 0.9, 1)));
+        // no amount is 1.00 and has its own key
+        cache.reply(null, usdEur("1", 0.9, 1));
+        assertEquals(1, entries());
+    }
+
+    public void testNewerRatesStartANewGeneration() {
+        cache.reply("5", usdEur("5", 0.9, 1));
+        String cached = cache.reply("5", usdEur("5", 0.9, 1));
+        assertSame(cached, cache.reply("5", usdEur("5", 0.9, 1)));
+
+        // the doorkeeper survives the swap: the key is cached again on its next miss
+        assertEquals("5 USD = 5.00 EUR", cache.reply("5", usdEur("5", 1.0, 2)));
+        assertEquals(1, entries());
+        assertTrue(cache.report().endsWith("rates version 2"));
+        String renewed = cache.reply("5", usdEur("5", 1.0, 2));
+        assertSame(renewed, cache.reply("5", usdEur("5", 1.0, 2)));
+
+        // a conversion that used older rates neither gets nor replaces the newer replies
+        assertEquals("5 USD = 4.50 EUR", cache.reply("5", usdEur("5", 0.9, 1)));
+        assertSame(renewed, cache.reply("5", usdEur("5", 1.0, 2)));
+        assertTrue(cache.report().endsWith("rates version 2"));
+    }
+
+    public void testAFullGenerationTakesNoMoreReplies() {
+        for (int i = 1; i <= 5; i++) {
+            cache.reply(String.valueOf(i), usdEur(String.valueOf(i), 0.9, 1));
+            cache.reply(String.valueOf(i), usdEur(String.valueOf(i), 0.9, 1));
+        }
+        assertEquals(3, entries());
+        String uncached = cache.reply("5", usdEur("5", 0.9, 1));
+        assertNotSame(uncached, cache.reply("5", usdEur("5", 0.9, 1)));
+
+        // the next refresh starts empty; "1" passed the doorkeeper before, so it is cached right away
+        cache.reply("1", usdEur("1", 0.9, 2));
+        assertEquals(1, entries());
+    }
+
+    private int entries() {
+        Matcher matcher = ENTRIES.matcher(cache.report());
+        assertTrue(matcher.find());
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    private static BusinessLogicService.Conversion usdEur(String amount, double rate, long ratesVersion) {
+        return new BusinessLogicService.Conversion("USD", "EUR", Currencies.ordinal("USD"), Currencies.ordinal("EUR"),
+                Double.parseDouble(amount), rate, ratesVersion);
+    }
+}
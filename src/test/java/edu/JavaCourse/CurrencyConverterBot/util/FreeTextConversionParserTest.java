@@ -0,0 +1,35 @@
+package edu.JavaCourse.CurrencyConverterBot.util;
+
+import edu.JavaCourse.CurrencyConverterBot.util.FreeTextConversionParser.FreeTextConversion;
+import junit.framework.TestCase;
+
+public class FreeTextConversionParserTest extends TestCase {
+    public void testWordAliasesMatchInAnyCase() {
+        assertEquals(new FreeTextConversion("100", "USD", "EUR"), FreeTextConversionParser.parse("100 Dollars to EURO"));
+        assertEquals(new FreeTextConversion("50", "EUR", "RUB"), FreeTextConversionParser.parse("50€ в рублях"));
+        assertEquals(new FreeTextConversion("1000.50", "GBP", null), FreeTextConversionParser.parse("how much are 1,000.50 pounds"));
+    }
+
+    public void testUpperCaseCodesMatchAnywhere() {
+        assertEquals(new FreeTextConversion("100", "TRY", "USD"), FreeTextConversionParser.parse("what is TRY in USD for 100"));
+        assertEquals(new FreeTextConversion("5", "PEN", null), FreeTextConversionParser.parse("5 PEN"));
+    }
+
+    public void testLowerCaseCodesOnlyNextToTheAmount() {
+        assertEquals(new FreeTextConversion("100", "USD", "EUR"), FreeTextConversionParser.parse("100 usd eur"));
+        assertEquals(new FreeTextConversion("20", "USD", "EUR"), FreeTextConversionParser.parse("usd eur 20"));
+        assertEquals(new FreeTextConversion("100", "USD", "EUR"), FreeTextConversionParser.parse("100usd to eur"));
+        assertEquals(new FreeTextConversion("7", "TRY", null), FreeTextConversionParser.parse("7 try"));
+    }
+
+    public void testWordsThatAreCodesAreNotConversions() {
+        assertNull(FreeTextConversionParser.parse("let's try 5 times"));
+        assertNull(FreeTextConversionParser.parse("I'll try all 3 options"));
+        assertNull(FreeTextConversionParser.parse("top 10 movies"));
+        assertNull(FreeTextConversionParser.parse("2 cup of tea"));
+        assertNull(FreeTextConversionParser.parse("I paid 20 for all"));
+        assertNull(FreeTextConversionParser.parse("bob owes me 5 pen drives"));
+        // the code-like word is dropped, the rest of the message still converts
+        assertEquals(new FreeTextConversion("5", "USD", null), FreeTextConversionParser.parse("can you try to convert 5 dollars"));
+    }
+}